@@ -69,6 +69,9 @@ android {
 
         // Enables MultiDex for apps with >64K methods
         multiDexEnabled = true
+
+        // Runner for the instrumented download benchmarks in src/androidTest
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
     }
 
     /**
@@ -227,4 +230,10 @@ dependencies {
     implementation(libs.media3.ui)
     implementation(libs.media3.session)
 
+    // Instrumented download benchmarks against an in-process HTTP server
+    androidTestImplementation(libs.junit)
+    androidTestImplementation(libs.androidx.test.runner)
+    androidTestImplementation(libs.androidx.test.junit)
+    androidTestImplementation(libs.okhttp.mockwebserver)
+
 }
\ No newline at end of file
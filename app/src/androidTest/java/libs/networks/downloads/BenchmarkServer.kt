@@ -0,0 +1,112 @@
+package libs.networks.downloads
+
+import mockwebserver3.Dispatcher
+import mockwebserver3.MockResponse
+import mockwebserver3.MockWebServer
+import mockwebserver3.RecordedRequest
+import okio.Buffer
+import java.io.Closeable
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import kotlin.random.Random
+
+/**
+ * In-process HTTP server the download benchmarks run against.
+ *
+ * It serves one file of seeded random bytes and shapes every response according to
+ * [BenchmarkServerConfig]: a fixed latency before the headers, a per-connection bandwidth
+ * cap like the per-flow throttling of real CDNs, optional range support and a share of
+ * range requests that fail with `503`, so the retry path is part of the measurement.
+ *
+ * @param config How responses are shaped.
+ */
+class BenchmarkServer(private val config: BenchmarkServerConfig) : Closeable {
+
+	/** Content of the served file; the same for every run with the same size. */
+	val content: ByteArray = Random(CONTENT_SEED).nextBytes(config.fileSize)
+
+	/** CRC32C of [content] as hex, to verify what the engine wrote. */
+	val contentCrc32c: String = "%08x".format(Crc32c().apply { update(content) }.value)
+
+	private val server = MockWebServer()
+	private val errorRandom = Random(ERROR_SEED)
+
+	companion object {
+		private const val CONTENT_SEED = 42
+		private const val ERROR_SEED = 7
+
+		/** Granularity the bandwidth cap is enforced at. */
+		private const val THROTTLE_PERIOD_MS = 50L
+	}
+
+	init {
+		server.dispatcher = object : Dispatcher() {
+			override fun dispatch(request: RecordedRequest): MockResponse = respond(request)
+		}
+		server.start()
+	}
+
+	/** URL of the served file. */
+	val fileUrl: String
+		get() = server.url("/benchmark.bin").toString()
+
+	override fun close() {
+		server.close()
+	}
+
+	private fun respond(request: RecordedRequest): MockResponse {
+		val range = request.headers["Range"]?.let { parseRange(it) }
+		// The probe is never failed: the engine only retries ranges, not the first request.
+		val isProbe = range == null || range.first == 0
+		val isFailure = !isProbe && synchronized(errorRandom) { errorRandom.nextDouble() < config.errorRate }
+		if (isFailure) return shape(MockResponse.Builder().code(503)).build()
+
+		if (range == null || !config.supportsRanges) {
+			return shape(MockResponse.Builder().code(200))
+				.addHeader("ETag", "\"benchmark\"")
+				.body(Buffer().write(content))
+				.build()
+		}
+
+		val (start, end) = range
+		return shape(MockResponse.Builder().code(206))
+			.addHeader("ETag", "\"benchmark\"")
+			.addHeader("Content-Range", "bytes $start-$end/${content.size}")
+			.body(Buffer().write(content, start, end - start + 1))
+			.build()
+	}
+
+	private fun shape(builder: MockResponse.Builder): MockResponse.Builder {
+		if (config.latencyMs > 0) builder.headersDelay(config.latencyMs, MILLISECONDS)
+		if (config.bytesPerSecondPerConnection > 0) {
+			val bytesPerPeriod = config.bytesPerSecondPerConnection * THROTTLE_PERIOD_MS / 1000L
+			builder.throttleBody(bytesPerPeriod, THROTTLE_PERIOD_MS, MILLISECONDS)
+		}
+		return builder
+	}
+
+	/** Parses `bytes=start-end` or `bytes=start-` into an inclusive range within the file. */
+	private fun parseRange(header: String): Pair<Int, Int>? {
+		val bounds = header.removePrefix("bytes=").split('-')
+		val start = bounds.getOrNull(0)?.toIntOrNull() ?: return null
+		val end = bounds.getOrNull(1)?.toIntOrNull() ?: (content.size - 1)
+		if (start >= content.size) return null
+		return start to minOf(end, content.size - 1)
+	}
+}
+
+/**
+ * Response shaping of a [BenchmarkServer].
+ *
+ * @property fileSize Size of the served file in bytes.
+ * @property bytesPerSecondPerConnection Bandwidth cap of each response, `0` for none.
+ * @property latencyMs Delay before the headers of every response.
+ * @property supportsRanges Whether `Range` requests are answered with `206`.
+ * @property errorRate Share of requests answered with `503`, between `0` and `1`.
+ */
+data class BenchmarkServerConfig(
+	val fileSize: Int = 32 * 1024 * 1024,
+	val bytesPerSecondPerConnection: Long = 0L,
+	val latencyMs: Long = 0L,
+	val supportsRanges: Boolean = true,
+	val errorRate: Double = 0.0
+)
@@ -1,15 +1,38 @@
 package core.bases
 
 import android.app.Activity
+import android.app.Application
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import core.caches.ExtractionCache
 import core.caches.GlobalRawFiles
 import core.database.GlobalDatabaseHelper
+import core.services.DownloadService
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.launch
+import libs.networks.CachingDns
+import libs.networks.ConnectivityMonitor
+import libs.networks.HttpClientFactory
+import libs.networks.RedirectResolver
+import libs.networks.UrlMetadataProber
+import libs.networks.downloads.BandwidthLimits
+import libs.networks.downloads.DiskSpaceReservations
+import libs.networks.downloads.DownloadProgressHub
+import libs.networks.downloads.DownloadQueue
+import libs.networks.downloads.SegmentedDownloader
+import libs.networks.downloads.hls.HlsDownloader
 import libs.process.AsyncJobsUtility.executeOnMainThread
 import libs.process.ThreadsUtility
+import libs.ytdlp.MediaDownloadRouter
+import libs.ytdlp.PlaylistExtractor
+import libs.ytdlp.YtdlpExtractor
+import libs.ytdlp.YtdlpRuntime
+import libs.ytdlp.YtdlpUrlRefresher
+import okhttp3.OkHttpClient
 import java.io.File
 
 class GlobalApplication : LanguageAwareApplication() {
@@ -27,6 +50,18 @@ class GlobalApplication : LanguageAwareApplication() {
         lateinit var globalRawFiles: GlobalRawFiles
         lateinit var globalLanguageHelper: GlobalLanguageHelper
         lateinit var globalAppTimer: GlobalAppTimer
+        lateinit var globalHttpClient: OkHttpClient
+        lateinit var globalUrlMetadataProber: UrlMetadataProber
+        lateinit var globalRedirectResolver: RedirectResolver
+        lateinit var globalConnectivityMonitor: ConnectivityMonitor
+        lateinit var globalBandwidthLimits: BandwidthLimits
+        lateinit var globalDownloadProgressHub: DownloadProgressHub
+        lateinit var globalDownloadQueue: DownloadQueue
+        lateinit var globalExtractionCache: ExtractionCache
+        lateinit var globalYtdlpRuntime: YtdlpRuntime
+        lateinit var globalYtdlpExtractor: YtdlpExtractor
+        lateinit var globalPlaylistExtractor: PlaylistExtractor
+        lateinit var globalMediaDownloadRouter: MediaDownloadRouter
     }
 
     private val startupManager = StartupManager()
@@ -37,9 +72,48 @@ class GlobalApplication : LanguageAwareApplication() {
 
         startupManager.apply {
             addCriticalTask {
+                globalHttpClient = HttpClientFactory.createSharedClient()
+                globalUrlMetadataProber = UrlMetadataProber(globalHttpClient)
+                globalRedirectResolver = RedirectResolver(globalHttpClient)
+                globalConnectivityMonitor = ConnectivityMonitor(this) {
+                    (globalHttpClient.dns as? CachingDns)?.clear()
+                    globalRedirectResolver.clear()
+                }
+                globalConnectivityMonitor.start()
                 globalAppTimer = GlobalAppTimer(3600000, 500)
                 globalAppTimer.start()
                 globalDatabaseHelper = GlobalDatabaseHelper.getInstance()
+                globalBandwidthLimits = BandwidthLimits()
+                globalDownloadProgressHub = DownloadProgressHub()
+                globalExtractionCache = ExtractionCache()
+                globalYtdlpRuntime = YtdlpRuntime(this)
+                globalYtdlpExtractor = YtdlpExtractor(this, globalYtdlpRuntime, globalExtractionCache)
+                globalPlaylistExtractor = PlaylistExtractor(globalYtdlpRuntime, globalYtdlpExtractor)
+                val downloadClient = HttpClientFactory.createDownloadClient(globalHttpClient)
+                val diskSpace = DiskSpaceReservations(this)
+                globalDownloadQueue = DownloadQueue(
+                    downloader = SegmentedDownloader(
+                        httpClient = downloadClient,
+                        bandwidthLimits = globalBandwidthLimits,
+                        urlRefresher = YtdlpUrlRefresher(globalYtdlpExtractor)
+                    ),
+                    progressHub = globalDownloadProgressHub,
+                    diskSpace = diskSpace,
+                    metadataProber = globalUrlMetadataProber,
+                    bandwidthLimits = globalBandwidthLimits
+                )
+                DownloadService.followQueue(this, globalDownloadQueue)
+                globalMediaDownloadRouter = MediaDownloadRouter(
+                    runtime = globalYtdlpRuntime,
+                    extractor = globalYtdlpExtractor,
+                    downloadQueue = globalDownloadQueue,
+                    hlsDownloader = HlsDownloader(
+                        httpClient = downloadClient,
+                        bandwidthLimits = globalBandwidthLimits,
+                        diskSpace = diskSpace
+                    ),
+                    bandwidthLimits = globalBandwidthLimits
+                )
             }
 
             addHighPriorityTask {
@@ -51,6 +125,19 @@ class GlobalApplication : LanguageAwareApplication() {
                 globalRawFiles = GlobalRawFiles()
                 globalRawFiles.loadRawFilesIntoMemory()
             }
+
+            addBackgroundTask {
+                globalDatabaseHelper.getGlobalAppSettings()?.let { settings ->
+                    globalDownloadQueue.maxConcurrentDownloads = settings.maxConcurrentDownloads
+                    globalDownloadQueue.maxDownloadsPerHost = settings.maxDownloadsPerHost
+                    globalBandwidthLimits.setGlobalLimit(settings.downloadSpeedLimit)
+                }
+                globalDownloadQueue.restoreUnfinishedDownloads()
+            }
+
+            addAfterFirstFrameTask {
+                globalYtdlpRuntime.warmUp()
+            }
         }
 
         startupManager.executeCriticalTasks()
@@ -58,6 +145,7 @@ class GlobalApplication : LanguageAwareApplication() {
             startupManager.executeHighPriorityTasks()
             startupManager.executeBackgroundTasks()
         })
+        startupManager.executeAfterFirstFrameTasks(this)
     }
 
     override fun onTerminate() {
@@ -70,6 +158,10 @@ class GlobalApplication : LanguageAwareApplication() {
     private fun manageActivityLifeCycle() {
         executeOnMainThread {
             registerActivityLifecycleCallbacks(object : GlobalAppLifeCycle {
+                override fun onActivityStarted(activity: Activity) {
+                    DownloadService.startIfBusy(activity, globalDownloadQueue)
+                }
+
                 override fun onActivityDestroyed(activity: Activity) {
                     if (activity is GlobalBaseActivity) {
                         activity.clearWeakActivityReference()
@@ -83,6 +175,7 @@ class GlobalApplication : LanguageAwareApplication() {
         private val criticalTasks = mutableListOf<() -> Unit>()
         private val highPriorityTasks = mutableListOf<() -> Unit>()
         private val backgroundTasks = mutableListOf<() -> Unit>()
+        private val afterFirstFrameTasks = mutableListOf<() -> Unit>()
         private val scope = CoroutineScope(Dispatchers.Default)
 
         fun addCriticalTask(task: () -> Unit) {
@@ -97,6 +190,10 @@ class GlobalApplication : LanguageAwareApplication() {
             backgroundTasks.add(task)
         }
 
+        fun addAfterFirstFrameTask(task: () -> Unit) {
+            afterFirstFrameTasks.add(task)
+        }
+
         fun executeCriticalTasks() {
             criticalTasks.forEach { it() }
         }
@@ -116,5 +213,26 @@ class GlobalApplication : LanguageAwareApplication() {
                 }.awaitAll()
             }
         }
+
+        // Waits for the first resumed activity, then for its next frame; the message posted
+        // from that frame callback only runs once the frame has been laid out and drawn, so
+        // these tasks never compete with the first frame. Must be called from onCreate, before
+        // any activity is created, so the first one is not missed.
+        fun executeAfterFirstFrameTasks(application: Application) {
+            application.registerActivityLifecycleCallbacks(object : GlobalAppLifeCycle {
+                override fun onActivityResumed(activity: Activity) {
+                    application.unregisterActivityLifecycleCallbacks(this)
+                    Choreographer.getInstance().postFrameCallback {
+                        Handler(Looper.getMainLooper()).post {
+                            scope.launch {
+                                afterFirstFrameTasks.map {
+                                    async(Dispatchers.IO) { it() }
+                                }.awaitAll()
+                            }
+                        }
+                    }
+                }
+            })
+        }
     }
 }
\ No newline at end of file
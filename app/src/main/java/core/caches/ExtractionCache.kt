@@ -0,0 +1,280 @@
+package core.caches
+
+import core.bases.GlobalApplication.Companion.internalDataFolder
+import libs.networks.URLUtilityKT
+import libs.process.LogHelperUtils
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.File
+import java.io.IOException
+import java.security.MessageDigest
+
+/**
+ * Disk cache of yt-dlp extraction results, so opening or downloading a recently seen link
+ * does not pay for another extraction.
+ *
+ * Each entry holds the raw info JSON printed by yt-dlp, stored under a canonical form of
+ * the page URL: tracking parameters, `www.`/`m.` prefixes and short-link hosts do not
+ * create separate entries. An entry expires after the time-to-live of its site, and never
+ * later than the earliest signed media URL inside it, since a cached result whose stream
+ * URLs were already rejected by the CDN is worth nothing. Entries written by another
+ * extractor version are treated as misses, because its output may differ.
+ *
+ * The cache is bounded by [maxBytes] and [maxEntries] and evicts the least recently used
+ * entries first; the order survives restarts through the file modification times.
+ *
+ * Usage:
+ * ```
+ * val infoJson = globalExtractionCache.get(url, extractorVersion)
+ *     ?: extract(url).also { globalExtractionCache.put(url, extractorVersion, it) }
+ * ```
+ *
+ * @param directory Folder the entries are stored in.
+ * @param maxBytes Upper bound of the combined size of all entries.
+ * @param maxEntries Upper bound of the number of entries.
+ */
+class ExtractionCache(
+    private val directory: File = File(internalDataFolder, "extractions"),
+    private val maxBytes: Long = DEFAULT_MAX_BYTES,
+    private val maxEntries: Int = DEFAULT_MAX_ENTRIES
+) {
+
+    private val logger = LogHelperUtils.from(javaClass)
+
+    /** Index of the entries on disk, least recently used first; loaded on first use. */
+    private val entries = LinkedHashMap<String, CacheEntry>(16, 0.75f, true)
+    private var isIndexLoaded = false
+    private var totalBytes = 0L
+
+    companion object {
+        /** Default size bound of the cache (32 MiB). */
+        const val DEFAULT_MAX_BYTES = 32L * 1024 * 1024
+
+        /** Default number of cached extractions. */
+        const val DEFAULT_MAX_ENTRIES = 300
+
+        /** Time-to-live of sites without a specific one. */
+        private const val DEFAULT_TIME_TO_LIVE_MS = 3 * 60 * 60 * 1000L
+
+        /** Signed URLs are dropped this long before they expire, so a download can still start. */
+        private const val EXPIRY_SAFETY_MARGIN_MS = 10 * 60 * 1000L
+
+        /**
+         * Time-to-live per site, matched against the end of the host. Sites that sign their
+         * media URLs for a short time get a short one.
+         */
+        private val SITE_TIME_TO_LIVE_MS = mapOf(
+            "youtube.com" to 5 * 60 * 60 * 1000L,
+            "instagram.com" to 60 * 60 * 1000L,
+            "facebook.com" to 60 * 60 * 1000L,
+            "tiktok.com" to 60 * 60 * 1000L,
+            "x.com" to 60 * 60 * 1000L,
+            "twitter.com" to 60 * 60 * 1000L
+        )
+
+        /** Query parameters that only track the click and never change the extracted media. */
+        private val TRACKING_PARAMETERS = setOf("fbclid", "gclid", "igshid", "si", "feature", "ref")
+
+        /** Expiry timestamps (epoch seconds) embedded in signed media URLs. */
+        private val SIGNED_EXPIRY_REGEX = Regex("""[?&/~](?:expire|expires|x-expires|exp)[=/](\d{10})\b""", RegexOption.IGNORE_CASE)
+
+        private const val ENTRY_FILE_SUFFIX = ".json"
+
+        /**
+         * Returns the key a page URL is cached under. It builds on
+         * [URLUtilityKT.normalizeEncodedUrl] and also folds hosts and short links that
+         * point to the same page.
+         *
+         * @param url The page URL as the user entered it.
+         */
+        @JvmStatic
+        fun canonicalKeyOf(url: String): String {
+            val normalizedUrl = URLUtilityKT.normalizeEncodedUrl(url.trim())
+            val httpUrl = normalizedUrl.toHttpUrlOrNull() ?: return normalizedUrl
+            val host = httpUrl.host.lowercase().removePrefix("www.").removePrefix("m.")
+            val builder = httpUrl.newBuilder().scheme("https").host(host).fragment(null)
+
+            if (host == "youtu.be" && httpUrl.pathSegments.firstOrNull().orEmpty().isNotEmpty()) {
+                builder.host("youtube.com").encodedPath("/watch")
+                    .setQueryParameter("v", httpUrl.pathSegments.first())
+            }
+            httpUrl.queryParameterNames
+                .filter { it.startsWith("utm_") || it in TRACKING_PARAMETERS }
+                .forEach { builder.removeAllQueryParameters(it) }
+            return builder.build().toString()
+        }
+    }
+
+    /**
+     * Returns the cached info JSON of [url], or null if there is none, it has expired or it
+     * was written by another extractor version.
+     *
+     * @param url The page URL.
+     * @param extractorVersion Version of the extractor the caller would run on a miss.
+     */
+    @Synchronized
+    fun get(url: String, extractorVersion: String): String? {
+        loadIndex()
+        val key = canonicalKeyOf(url)
+        val entry = entries[key] ?: return null
+        if (entry.extractorVersion != extractorVersion || entry.expiresAt <= System.currentTimeMillis()) {
+            removeEntry(key)
+            return null
+        }
+        return try {
+            val infoJson = entry.file.bufferedReader().use { reader ->
+                reader.readLine()
+                reader.readText()
+            }
+            entry.file.setLastModified(System.currentTimeMillis())
+            infoJson
+        } catch (error: IOException) {
+            logger.e("Could not read the cached extraction of $key", error)
+            removeEntry(key)
+            null
+        }
+    }
+
+    /**
+     * Stores the info JSON of [url]. Results whose signed URLs are about to expire are not
+     * stored at all.
+     *
+     * @param url The page URL that was extracted.
+     * @param extractorVersion Version of the extractor that produced [infoJson].
+     * @param infoJson The info JSON printed by the extractor.
+     */
+    @Synchronized
+    fun put(url: String, extractorVersion: String, infoJson: String) {
+        loadIndex()
+        val key = canonicalKeyOf(url)
+        val currentTime = System.currentTimeMillis()
+        val expiresAt = getExpiryOf(key, infoJson, currentTime)
+        if (expiresAt <= currentTime) return
+
+        val header = JSONObject()
+            .put("key", key)
+            .put("extractorVersion", extractorVersion)
+            .put("expiresAt", expiresAt)
+        val file = File(directory, fileNameOf(key))
+        try {
+            directory.mkdirs()
+            val temporaryFile = File(directory, file.name + ".tmp")
+            temporaryFile.bufferedWriter().use { writer ->
+                writer.write(header.toString())
+                writer.write("\n")
+                writer.write(infoJson)
+            }
+            if (!temporaryFile.renameTo(file)) throw IOException("Cannot move ${temporaryFile.name} into place")
+        } catch (error: IOException) {
+            logger.e("Could not cache the extraction of $key", error)
+            return
+        }
+
+        entries.remove(key)?.let { totalBytes -= it.byteCount }
+        val entry = CacheEntry(file, extractorVersion, expiresAt, file.length())
+        entries[key] = entry
+        totalBytes += entry.byteCount
+        trimToSize()
+    }
+
+    /**
+     * Drops the cached result of [url], e.g. after one of its media URLs was rejected.
+     *
+     * @param url The page URL.
+     */
+    @Synchronized
+    fun invalidate(url: String) {
+        loadIndex()
+        removeEntry(canonicalKeyOf(url))
+    }
+
+    /** Drops every cached result. */
+    @Synchronized
+    fun clear() {
+        loadIndex()
+        entries.keys.toList().forEach { removeEntry(it) }
+    }
+
+    /**
+     * The earlier of the site's time-to-live and the first signed URL's expiry, minus the
+     * safety margin.
+     */
+    private fun getExpiryOf(key: String, infoJson: String, currentTime: Long): Long {
+        val host = key.toHttpUrlOrNull()?.host.orEmpty()
+        val timeToLive = SITE_TIME_TO_LIVE_MS.entries
+            .firstOrNull { (site, _) -> host == site || host.endsWith(".$site") }?.value
+            ?: DEFAULT_TIME_TO_LIVE_MS
+        val earliestSignedExpiry = SIGNED_EXPIRY_REGEX.findAll(infoJson)
+            .mapNotNull { it.groupValues[1].toLongOrNull() }
+            .filter { it * 1000L > currentTime }
+            .minOrNull()
+            ?.let { it * 1000L - EXPIRY_SAFETY_MARGIN_MS }
+        return minOf(currentTime + timeToLive, earliestSignedExpiry ?: Long.MAX_VALUE)
+    }
+
+    /**
+     * Rebuilds the index from the entry headers, oldest access first. Only the first line
+     * of each file is read.
+     */
+    private fun loadIndex() {
+        if (isIndexLoaded) return
+        isIndexLoaded = true
+        val currentTime = System.currentTimeMillis()
+        val files = directory.listFiles()?.sortedBy { it.lastModified() } ?: return
+        files.forEach { file ->
+            if (!file.name.endsWith(ENTRY_FILE_SUFFIX)) {
+                file.delete()
+                return@forEach
+            }
+            val header = try {
+                file.bufferedReader().use { JSONObject(it.readLine().orEmpty()) }
+            } catch (error: IOException) {
+                null
+            } catch (error: JSONException) {
+                null
+            }
+            val key = header?.optString("key").orEmpty()
+            val expiresAt = header?.optLong("expiresAt") ?: 0L
+            if (header == null || key.isEmpty() || expiresAt <= currentTime) {
+                file.delete()
+                return@forEach
+            }
+            val entry = CacheEntry(file, header.optString("extractorVersion"), expiresAt, file.length())
+            entries[key] = entry
+            totalBytes += entry.byteCount
+        }
+        trimToSize()
+    }
+
+    private fun trimToSize() {
+        val iterator = entries.entries.iterator()
+        while (iterator.hasNext() && (totalBytes > maxBytes || entries.size > maxEntries)) {
+            val entry = iterator.next().value
+            iterator.remove()
+            totalBytes -= entry.byteCount
+            entry.file.delete()
+        }
+    }
+
+    private fun removeEntry(key: String) {
+        val entry = entries.remove(key) ?: return
+        totalBytes -= entry.byteCount
+        entry.file.delete()
+    }
+
+    private fun fileNameOf(key: String): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(key.toByteArray())
+        return digest.take(16).joinToString("") { "%02x".format(it) } + ENTRY_FILE_SUFFIX
+    }
+
+    /**
+     * One cached extraction as seen by the index.
+     */
+    private class CacheEntry(
+        val file: File,
+        val extractorVersion: String,
+        val expiresAt: Long,
+        val byteCount: Long
+    )
+}
@@ -6,12 +6,14 @@ package core.database
 
 import core.bases.GlobalApplication.Companion.APP_INSTANCE
 import core.database.AccountType.BANK
+import core.database.DownloadStatus.QUEUED
 import core.database.TransactionType.EXPENSE
 import io.objectbox.Box
 import io.objectbox.BoxStore
 import io.objectbox.annotation.Backlink
 import io.objectbox.annotation.Entity
 import io.objectbox.annotation.Id
+import io.objectbox.query.QueryBuilder
 import io.objectbox.relation.ToMany
 import io.objectbox.relation.ToOne
 
@@ -66,6 +68,31 @@ enum class TransactionType {
     FEE, REWARD, LOAN, LOAN_REPAYMENT, SUBSCRIPTION, INVESTMENT, OTHER
 }
 
+/**
+ * Enum representing the lifecycle state of a download task.
+ *
+ * @property QUEUED Waiting for a free download slot
+ * @property RUNNING Bytes are currently being transferred
+ * @property PAUSED Stopped by the user or by process death, resumable
+ * @property COMPLETED Every byte has been written
+ * @property FAILED Stopped after an unrecoverable error
+ */
+enum class DownloadStatus {
+    QUEUED, RUNNING, PAUSED, COMPLETED, FAILED
+}
+
+/**
+ * Enum representing the scheduling priority of a queued download.
+ * Higher levels are started first; equal levels keep their queue order.
+ *
+ * @property LOW Background work such as playlist entries
+ * @property NORMAL Regular user-started downloads
+ * @property HIGH Downloads the user explicitly pushed to the front
+ */
+enum class DownloadPriority(val level: Int) {
+    LOW(0), NORMAL(1), HIGH(2)
+}
+
 /**
  * Root database entity containing all application data relationships.
  *
@@ -154,6 +181,9 @@ data class GlobalAppUser(
  * @property lastBackupAt Timestamp of last backup
  * @property isPremiumUser Premium status flag
  * @property appLaunchCount Usage counter
+ * @property maxConcurrentDownloads Downloads allowed to run at the same time
+ * @property maxDownloadsPerHost Downloads allowed to run against one host at the same time
+ * @property downloadSpeedLimit Combined download speed cap in bytes per second, 0 for none
  * @property lastUpdatedAt Last update timestamp
  */
 @Entity
@@ -172,6 +202,9 @@ data class GlobalAppSettings(
     var lastBackupAt: Long = 0L,
     var isPremiumUser: Boolean = true,
     var appLaunchCount: Int = 0,
+    var maxConcurrentDownloads: Int = 3,
+    var maxDownloadsPerHost: Int = 2,
+    var downloadSpeedLimit: Long = 0L,
     var lastUpdatedAt: Long = System.currentTimeMillis()
 )
 
@@ -338,6 +371,89 @@ data class GlobalTransaction(
     var database: ToOne<GlobalDatabase> = ToOne(this, GlobalTransaction_.database)
 }
 
+/**
+ * Entity representing a download and the validators needed to resume it safely.
+ *
+ * @property id Primary key
+ * @property uniqueId Unique timestamp-based identifier
+ * @property url Direct URL the bytes are fetched from
+ * @property headers Request headers and cookies the URL is fetched with, as a JSON object
+ * @property destinationPath File URI or SAF content URI of the destination
+ * @property fileName Display name of the destination file
+ * @property eTag ETag reported by the server on the first response
+ * @property lastModified Last-Modified reported by the server on the first response
+ * @property totalBytes Expected file size, or -1 if unknown
+ * @property downloadedBytes Bytes durably committed across all segments
+ * @property isRangeSupported Whether the server honored byte ranges
+ * @property status Current state (from DownloadStatus enum)
+ * @property errorMessage Reason of the last failure (optional)
+ * @property priority Scheduling priority level (from DownloadPriority enum)
+ * @property queuePosition Order among queued downloads of the same priority
+ * @property checksumTypes Checksums requested for the file, comma-separated
+ * @property checksums Computed checksums of the whole file as TYPE:hex pairs
+ * @property sourcePageUrl Page the media URL was extracted from, empty for plain files
+ * @property formatId Extractor id of the downloaded media format (optional)
+ * @property engine Name of the engine the download runs with, empty for the segmented one
+ * @property createdAt Creation timestamp
+ * @property updatedAt Last checkpoint timestamp
+ * @property segments 1:N relationship with the committed byte ranges
+ */
+@Entity
+data class GlobalDownloadTask(
+    @Id var id: Long = 0,
+    var uniqueId: Long = System.currentTimeMillis(),
+    var url: String = "",
+    var headers: String = "",
+    var destinationPath: String = "",
+    var fileName: String = "",
+    var eTag: String = "",
+    var lastModified: String = "",
+    var totalBytes: Long = -1L,
+    var downloadedBytes: Long = 0L,
+    var isRangeSupported: Boolean = false,
+    var status: String = QUEUED.toString(),
+    var errorMessage: String = "",
+    var priority: Int = DownloadPriority.NORMAL.level,
+    var queuePosition: Long = 0L,
+    var checksumTypes: String = "",
+    var checksums: String = "",
+    var sourcePageUrl: String = "",
+    var formatId: String = "",
+    var engine: String = "",
+    var createdAt: Long = System.currentTimeMillis(),
+    var updatedAt: Long = System.currentTimeMillis()
+) {
+    @Backlink(to = "task")
+    var segments: ToMany<GlobalDownloadSegment> = ToMany(this, GlobalDownloadTask_.segments)
+}
+
+/**
+ * Entity representing the checkpoint of one byte range of a download.
+ *
+ * @property id Primary key
+ * @property segmentIndex Position of the range in the download plan
+ * @property startOffset First byte of the range
+ * @property endOffset Last byte of the range (inclusive), or -1 if open-ended
+ * @property committedBytes Bytes of the range known to be flushed to disk
+ * @property committedCrc32c CRC32C of the committed bytes, or -1 if not computed
+ * @property checksums Computed checksums of the range as TYPE:hex pairs
+ * @property updatedAt Last checkpoint timestamp
+ * @property task Backlink to parent GlobalDownloadTask
+ */
+@Entity
+data class GlobalDownloadSegment(
+    @Id var id: Long = 0,
+    var segmentIndex: Int = 0,
+    var startOffset: Long = 0L,
+    var endOffset: Long = -1L,
+    var committedBytes: Long = 0L,
+    var committedCrc32c: Long = -1L,
+    var checksums: String = "",
+    var updatedAt: Long = System.currentTimeMillis()
+) {
+    var task: ToOne<GlobalDownloadTask> = ToOne(this, GlobalDownloadSegment_.task)
+}
+
 /**
  * Helper class for managing the global database instance.
  * Implements singleton pattern to ensure single database instance.
@@ -346,6 +462,8 @@ data class GlobalTransaction(
  * @property databaseBox Lazy-initialized GlobalDatabase box
  * @property userBox Lazy-initialized GlobalAppUser box
  * @property settingsBox Lazy-initialized GlobalAppSettings box
+ * @property downloadTaskBox Lazy-initialized GlobalDownloadTask box
+ * @property downloadSegmentBox Lazy-initialized GlobalDownloadSegment box
  */
 class GlobalDatabaseHelper private constructor() {
     private val boxStore: BoxStore by lazy {
@@ -366,6 +484,14 @@ class GlobalDatabaseHelper private constructor() {
         boxStore.boxFor(GlobalAppSettings::class.java)
     }
 
+    private val downloadTaskBox: Box<GlobalDownloadTask> by lazy {
+        boxStore.boxFor(GlobalDownloadTask::class.java)
+    }
+
+    private val downloadSegmentBox: Box<GlobalDownloadSegment> by lazy {
+        boxStore.boxFor(GlobalDownloadSegment::class.java)
+    }
+
     companion object {
         @Volatile
         private var instance: GlobalDatabaseHelper? = null
@@ -480,4 +606,148 @@ class GlobalDatabaseHelper private constructor() {
             error.printStackTrace()
         }
     }
+
+    /**
+     * Saves a download task record.
+     * @param task The GlobalDownloadTask to insert or update
+     * @return The id of the saved record, or 0 if an error occurs
+     */
+    @Synchronized
+    fun saveDownloadTask(task: GlobalDownloadTask): Long {
+        return try {
+            task.updatedAt = System.currentTimeMillis()
+            downloadTaskBox.put(task)
+        } catch (error: Exception) {
+            error.printStackTrace()
+            0L
+        }
+    }
+
+    /**
+     * Retrieves the download task writing into the given destination file.
+     * @param destinationPath File URI or SAF content URI of the destination
+     * @return The matching GlobalDownloadTask or null if none exists
+     */
+    fun findDownloadTaskByDestination(destinationPath: String): GlobalDownloadTask? {
+        return try {
+            downloadTaskBox.query(GlobalDownloadTask_.destinationPath.equal(destinationPath))
+                .build().use { query -> query.findFirst() }
+        } catch (error: Exception) {
+            error.printStackTrace()
+            null
+        }
+    }
+
+    /**
+     * Retrieves every download that has not completed yet, oldest first.
+     * These are the tasks to resume after process death or a reboot.
+     * @return List of unfinished GlobalDownloadTask records
+     */
+    fun getUnfinishedDownloadTasks(): List<GlobalDownloadTask> {
+        return try {
+            downloadTaskBox.query(
+                GlobalDownloadTask_.status.notEqual(
+                    DownloadStatus.COMPLETED.toString(),
+                    QueryBuilder.StringOrder.CASE_SENSITIVE
+                )
+            ).order(GlobalDownloadTask_.createdAt).build().use { query -> query.find() }
+        } catch (error: Exception) {
+            error.printStackTrace()
+            emptyList()
+        }
+    }
+
+    /**
+     * Retrieves a download task by its id.
+     * @param taskId Id of the GlobalDownloadTask
+     * @return The GlobalDownloadTask or null if it does not exist
+     */
+    fun getDownloadTask(taskId: Long): GlobalDownloadTask? {
+        return try {
+            downloadTaskBox.get(taskId)
+        } catch (error: Exception) {
+            error.printStackTrace()
+            null
+        }
+    }
+
+    /**
+     * Saves several download task records in one transaction, e.g. after a queue reorder.
+     * @param tasks The GlobalDownloadTask records to update
+     */
+    @Synchronized
+    fun saveDownloadTasks(tasks: List<GlobalDownloadTask>) {
+        try {
+            val updateTime = System.currentTimeMillis()
+            tasks.forEach { it.updatedAt = updateTime }
+            downloadTaskBox.put(tasks)
+        } catch (error: Exception) {
+            error.printStackTrace()
+        }
+    }
+
+    /**
+     * Retrieves the committed segments of a download, ordered by segment index.
+     * @param taskId Id of the parent GlobalDownloadTask
+     * @return List of GlobalDownloadSegment records
+     */
+    fun getDownloadSegments(taskId: Long): List<GlobalDownloadSegment> {
+        return try {
+            downloadSegmentBox.query(GlobalDownloadSegment_.taskId.equal(taskId))
+                .order(GlobalDownloadSegment_.segmentIndex).build().use { query -> query.find() }
+        } catch (error: Exception) {
+            error.printStackTrace()
+            emptyList()
+        }
+    }
+
+    /**
+     * Atomically saves a download task together with its segment checkpoints,
+     * so a crash can never leave the task and its ranges out of sync.
+     * @param task The GlobalDownloadTask to save
+     * @param segments The GlobalDownloadSegment checkpoints belonging to the task
+     */
+    @Synchronized
+    fun saveDownloadCheckpoint(task: GlobalDownloadTask, segments: List<GlobalDownloadSegment>) {
+        try {
+            boxStore.runInTx {
+                task.updatedAt = System.currentTimeMillis()
+                val taskId = downloadTaskBox.put(task)
+                segments.forEach { it.task.targetId = taskId }
+                downloadSegmentBox.put(segments)
+            }
+        } catch (error: Exception) {
+            error.printStackTrace()
+        }
+    }
+
+    /**
+     * Removes every segment checkpoint of a download, e.g. when the remote file changed.
+     * @param taskId Id of the parent GlobalDownloadTask
+     */
+    @Synchronized
+    fun removeDownloadSegments(taskId: Long) {
+        try {
+            downloadSegmentBox.query(GlobalDownloadSegment_.taskId.equal(taskId))
+                .build().use { query -> query.remove() }
+        } catch (error: Exception) {
+            error.printStackTrace()
+        }
+    }
+
+    /**
+     * Removes a download task and all of its segment checkpoints.
+     * @param taskId Id of the GlobalDownloadTask to remove
+     */
+    @Synchronized
+    fun removeDownloadTask(taskId: Long) {
+        try {
+            boxStore.runInTx {
+                removeDownloadSegments(taskId)
+                downloadTaskBox.remove(taskId)
+            }
+        } catch (error: Exception) {
+            error.printStackTrace()
+        }
+    }
 }
\ No newline at end of file
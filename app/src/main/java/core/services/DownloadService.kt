@@ -0,0 +1,275 @@
+package core.services
+
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.PendingIntent
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.content.pm.ServiceInfo
+import android.net.wifi.WifiManager
+import android.os.Build
+import android.os.IBinder
+import android.os.PowerManager
+import android.os.SystemClock
+import androidx.core.app.NotificationCompat
+import androidx.core.app.ServiceCompat
+import androidx.core.content.ContextCompat
+import core.bases.GlobalApplication.Companion.globalConnectivityMonitor
+import core.bases.GlobalApplication.Companion.globalDownloadProgressHub
+import core.bases.GlobalApplication.Companion.globalDownloadQueue
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import libs.files.FileSizeFormatter.humanReadableSizeOf
+import libs.networks.NetworkTransport
+import libs.networks.downloads.DownloadQueue
+import libs.process.LogHelperUtils
+import libs.process.ThreadsUtility
+import net.base.R
+import ui.activities.mother.MotherActivity
+
+/**
+ * Foreground service that keeps the process alive while the [DownloadQueue] has work, so
+ * downloads carry on after [MotherActivity] is destroyed or the app is swiped away.
+ *
+ * The queue, the HTTP client and the file writers live for the whole process; this service
+ * is what stops the system from reclaiming that process in the middle of a transfer. It is
+ * started by [followQueue] as soon as a download is queued, shows one ongoing notification
+ * with the combined progress from the progress hub, and stops itself once the queue is idle.
+ * When it could not be started from the background, or left the foreground on a timeout,
+ * [startIfBusy] brings it back the next time an activity of the app is started.
+ *
+ * The CPU wake lock and the Wi-Fi lock are only held while bytes are actually arriving.
+ * A queue that is held back, waiting for a network or stalled on a server, keeps the
+ * notification but lets the device sleep.
+ */
+class DownloadService : Service() {
+
+    private val logger = LogHelperUtils.from(javaClass)
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
+
+    private lateinit var wakeLock: PowerManager.WakeLock
+    private lateinit var wifiLock: WifiManager.WifiLock
+    private lateinit var notificationManager: NotificationManager
+    private var followJob: Job? = null
+    private var lastStartId = 0
+    private var lastDownloadedBytes = -1L
+    private var lastTransferTime = 0L
+
+    companion object {
+        private const val NOTIFICATION_ID = 4201
+        private const val NOTIFICATION_CHANNEL_ID = "downloads"
+        private const val LOCK_TAG = "VideoMate:downloads"
+
+        /** How often the notification and the locks are brought up to date. */
+        private const val UPDATE_INTERVAL_MS = 1000L
+
+        /** How long the locks are kept after the last byte, to ride out retries and probes. */
+        private const val LOCK_LINGER_MS = 15 * 1000L
+
+        /** Safety timeout of the wake lock; it is renewed while bytes keep flowing. */
+        private const val WAKE_LOCK_TIMEOUT_MS = 10 * 60 * 1000L
+
+        /** Whether an instance is running; only changed on the main thread. */
+        @Volatile
+        private var isRunning = false
+
+        /**
+         * Starts the service every time [queue] goes from idle to busy. Call once, after the
+         * queue has been created.
+         *
+         * @param context Any context; only the application context is kept.
+         * @param queue The queue whose downloads the service keeps alive.
+         */
+        @JvmStatic
+        fun followQueue(context: Context, queue: DownloadQueue) {
+            val appContext = context.applicationContext
+            ThreadsUtility.launch {
+                queue.activeDownloads
+                    .map { it > 0 }
+                    .distinctUntilChanged()
+                    .filter { it }
+                    .collect { start(appContext) }
+            }
+        }
+
+        /**
+         * Starts the service if [queue] has work and the service is not running, e.g. because
+         * a background start was refused or the foreground time ran out. Called whenever an
+         * activity of the app is started, when a foreground start is allowed.
+         *
+         * @param context Any context; only the application context is used.
+         * @param queue The queue whose downloads the service keeps alive.
+         */
+        @JvmStatic
+        fun startIfBusy(context: Context, queue: DownloadQueue) {
+            if (isRunning || queue.activeDownloads.value == 0) return
+            start(context.applicationContext)
+        }
+
+        private fun start(context: Context) {
+            try {
+                ContextCompat.startForegroundService(context, Intent(context, DownloadService::class.java))
+            } catch (error: IllegalStateException) {
+                // Background starts are refused on Android 12+; the queue still runs while the
+                // process lives, and startIfBusy starts the service once the app is in front.
+                LogHelperUtils.from(DownloadService::class.java)
+                    .e("Could not start the download service", error)
+            }
+        }
+    }
+
+    override fun onCreate() {
+        super.onCreate()
+        notificationManager = getSystemService(NOTIFICATION_SERVICE) as NotificationManager
+        notificationManager.createNotificationChannel(
+            NotificationChannel(
+                NOTIFICATION_CHANNEL_ID,
+                getString(R.string.title_downloads),
+                NotificationManager.IMPORTANCE_LOW
+            )
+        )
+        val powerManager = getSystemService(POWER_SERVICE) as PowerManager
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAG).apply {
+            setReferenceCounted(false)
+        }
+        val wifiManager = applicationContext.getSystemService(WIFI_SERVICE) as WifiManager
+        wifiLock = wifiManager.createWifiLock(getWifiLockMode(), LOCK_TAG).apply {
+            setReferenceCounted(false)
+        }
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        ServiceCompat.startForeground(
+            this, NOTIFICATION_ID, buildNotification(),
+            ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC
+        )
+        isRunning = true
+        lastStartId = startId
+        lastTransferTime = SystemClock.elapsedRealtime()
+        if (followJob?.isActive != true) followJob = scope.launch { followDownloads() }
+        return START_NOT_STICKY
+    }
+
+    override fun onTimeout(startId: Int, fgsType: Int) {
+        // Data sync services get a daily time budget on Android 15+. The queue keeps running
+        // while the process lives; startIfBusy brings the service back once the app is in
+        // front and the system allows it again.
+        logger.d("Foreground time limit reached, leaving the foreground")
+        isRunning = false
+        stopSelf()
+    }
+
+    override fun onBind(intent: Intent?): IBinder? = null
+
+    override fun onDestroy() {
+        isRunning = false
+        scope.cancel()
+        releaseLocks()
+        super.onDestroy()
+    }
+
+    /**
+     * Updates the notification and the locks until the queue runs out of work.
+     */
+    private suspend fun followDownloads() {
+        while (scope.isActive) {
+            if (globalDownloadQueue.activeDownloads.value == 0) {
+                logger.d("Download queue is idle, stopping")
+                ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE)
+                // A start that raced with the queue going idle keeps the service alive.
+                stopSelf(lastStartId)
+                return
+            }
+            updateLocks()
+            notificationManager.notify(NOTIFICATION_ID, buildNotification())
+            delay(UPDATE_INTERVAL_MS)
+        }
+    }
+
+    /**
+     * Holds the locks while the downloaded byte count keeps growing, and for a short while
+     * after it stopped so a retry or the next queued download can get going.
+     */
+    private fun updateLocks() {
+        val currentTime = SystemClock.elapsedRealtime()
+        val downloadedBytes = globalDownloadProgressHub.progress.value.values.sumOf { it.downloadedBytes }
+        if (downloadedBytes != lastDownloadedBytes) lastTransferTime = currentTime
+        lastDownloadedBytes = downloadedBytes
+        if (currentTime - lastTransferTime > LOCK_LINGER_MS) {
+            releaseLocks()
+            return
+        }
+
+        if (!wakeLock.isHeld) wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS)
+        val isOnWifi = globalConnectivityMonitor.current.transport == NetworkTransport.WIFI
+        if (isOnWifi && !wifiLock.isHeld) wifiLock.acquire()
+        else if (!isOnWifi && wifiLock.isHeld) wifiLock.release()
+    }
+
+    private fun releaseLocks() {
+        if (wakeLock.isHeld) wakeLock.release()
+        if (wifiLock.isHeld) wifiLock.release()
+    }
+
+    private fun buildNotification(): Notification {
+        val progress = globalDownloadProgressHub.progress.value.values
+        val downloadedBytes = progress.sumOf { it.downloadedBytes }
+        val totalBytes = progress.sumOf { it.totalBytes.coerceAtLeast(0L) }
+        val isSizeKnown = progress.isNotEmpty() && progress.all { it.totalBytes > 0 }
+        val bytesPerSecond = progress.sumOf { it.bytesPerSecond }
+        val activeDownloads = globalDownloadQueue.activeDownloads.value
+
+        val contentText = if (isSizeKnown) {
+            getString(
+                R.string.text_download_progress_of_total,
+                humanReadableSizeOf(downloadedBytes),
+                humanReadableSizeOf(totalBytes),
+                humanReadableSizeOf(bytesPerSecond)
+            )
+        } else {
+            getString(
+                R.string.text_download_progress,
+                humanReadableSizeOf(downloadedBytes),
+                humanReadableSizeOf(bytesPerSecond)
+            )
+        }
+        val openAppIntent = PendingIntent.getActivity(
+            this, 0,
+            Intent(this, MotherActivity::class.java).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+            PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT
+        )
+
+        return NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_nav_downloads)
+            .setContentTitle(resources.getQuantityString(R.plurals.title_downloading_files, activeDownloads, activeDownloads))
+            .setContentText(contentText)
+            .setProgress(100, if (isSizeKnown) (downloadedBytes * 100 / totalBytes).toInt() else 0, !isSizeKnown)
+            .setContentIntent(openAppIntent)
+            .setCategory(NotificationCompat.CATEGORY_PROGRESS)
+            .setForegroundServiceBehavior(NotificationCompat.FOREGROUND_SERVICE_IMMEDIATE)
+            .setOngoing(true)
+            .setOnlyAlertOnce(true)
+            .setSilent(true)
+            .build()
+    }
+
+    @Suppress("DEPRECATION")
+    private fun getWifiLockMode(): Int {
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            WifiManager.WIFI_MODE_FULL_LOW_LATENCY
+        } else {
+            WifiManager.WIFI_MODE_FULL_HIGH_PERF
+        }
+    }
+}
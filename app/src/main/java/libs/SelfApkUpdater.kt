@@ -1,11 +1,12 @@
 package libs
 
+import core.bases.GlobalApplication.Companion.globalHttpClient
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import libs.devices.AppVersionUtility
 import libs.process.LogHelperUtils
-import java.net.HttpURLConnection
-import java.net.URL
+import okhttp3.Request
+import java.util.concurrent.TimeUnit.MILLISECONDS
 
 class SelfApkUpdater {
     private val logger = LogHelperUtils.from(javaClass)
@@ -14,6 +15,8 @@ class SelfApkUpdater {
         const val GITHUB_VERSION_INFO_FILE_URL =
             "https://github.com/shibaFoss/VideoMate/raw/refs" +
                     "/heads/master/others/version_info.txt"
+
+        private const val VERSION_CHECK_TIMEOUT_MS = 10_000L
     }
 
     /**
@@ -37,16 +40,17 @@ class SelfApkUpdater {
      */
     private suspend fun fetchOnlineVersionCode(): Int? = withContext(Dispatchers.IO) {
         return@withContext try {
-            val url = URL(GITHUB_VERSION_INFO_FILE_URL)
-            val connection = url.openConnection() as HttpURLConnection
-            connection.connectTimeout = 5000
-            connection.readTimeout = 5000
-
-            connection.inputStream.bufferedReader().useLines { lines ->
-                lines.firstOrNull { it.startsWith("latest_version=") }
-                    ?.substringAfter("=")
-                    ?.trim()
-                    ?.toIntOrNull()
+            val request = Request.Builder().url(GITHUB_VERSION_INFO_FILE_URL).build()
+            val call = globalHttpClient.newCall(request)
+            call.timeout().timeout(VERSION_CHECK_TIMEOUT_MS, MILLISECONDS)
+
+            call.execute().use { response ->
+                response.body.charStream().buffered().useLines { lines ->
+                    lines.firstOrNull { it.startsWith("latest_version=") }
+                        ?.substringAfter("=")
+                        ?.trim()
+                        ?.toIntOrNull()
+                }
             }
         } catch (error: Exception) {
             logger.e(error)
@@ -1,10 +1,7 @@
 package libs.devices
 
 import android.content.Context
-import android.content.Context.CONNECTIVITY_SERVICE
 import android.content.Context.TELEPHONY_SERVICE
-import android.net.ConnectivityManager
-import android.net.NetworkCapabilities.*
 import android.os.Build
 import android.telephony.TelephonyManager
 import core.bases.GlobalApplication
@@ -90,24 +87,14 @@ object DeviceUtility {
 	/**
 	 * Checks if the device has an active internet connection.
 	 *
-	 * This checks across multiple transport types (Wi-Fi, Cellular, Ethernet, Bluetooth)
-	 * using Android's modern `NetworkCapabilities` API.
+	 * This reads the default-network state cached by `ConnectivityMonitor`, which covers
+	 * every transport type (Wi-Fi, Cellular, Ethernet, Bluetooth) and costs no binder call.
 	 *
 	 * @return `true` if connected to any internet-capable network, `false` otherwise.
 	 */
 	@JvmStatic
 	fun isDeviceConnectedToInternet(): Boolean {
-		val applicationContext = GlobalApplication.APP_INSTANCE
-		val connectivityManager =
-			applicationContext.getSystemService(CONNECTIVITY_SERVICE) as ConnectivityManager
-
-		val network = connectivityManager.activeNetwork ?: return false
-		val capabilities = connectivityManager.getNetworkCapabilities(network) ?: return false
-
-		return capabilities.hasTransport(TRANSPORT_WIFI) ||
-				capabilities.hasTransport(TRANSPORT_CELLULAR) ||
-				capabilities.hasTransport(TRANSPORT_ETHERNET) ||
-				capabilities.hasTransport(TRANSPORT_BLUETOOTH)
+		return GlobalApplication.globalConnectivityMonitor.current.isConnected
 	}
 
 	/**
@@ -0,0 +1,72 @@
+package libs.files
+
+import kotlinx.coroutines.channels.Channel
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Bounded pool of equally sized direct [ByteBuffer]s shared by every file writer.
+ *
+ * Direct buffers live outside the Java heap, so reusing them keeps the download path free of
+ * per-chunk allocations and the GC out of UI frame times. At most [maxBuffers] are ever
+ * created, which puts a hard ceiling of `bufferSize * maxBuffers` bytes on write buffering no
+ * matter how many downloads run; once every buffer is in use, [acquire] suspends until one
+ * is released, which throttles readers to the speed of the storage.
+ *
+ * Usage:
+ * ```
+ * val buffer = bufferPool.acquire()
+ * try { fill(buffer) } finally { bufferPool.release(buffer) }
+ * ```
+ *
+ * @param bufferSize Requested size of each buffer; rounded up to a multiple of [blockSize].
+ * @param maxBuffers Upper bound of buffers ever allocated.
+ * @param blockSize Storage block size the buffers are sized against.
+ */
+class DirectBufferPool(
+    bufferSize: Int = DEFAULT_BUFFER_SIZE,
+    private val maxBuffers: Int = DEFAULT_MAX_BUFFERS,
+    blockSize: Int = DEFAULT_BLOCK_SIZE
+) {
+
+    companion object {
+        /** Default buffer size (256 KiB), a multiple of every common block size. */
+        const val DEFAULT_BUFFER_SIZE = 256 * 1024
+
+        /** Default number of buffers, an 8 MiB ceiling with the default size. */
+        const val DEFAULT_MAX_BUFFERS = 32
+
+        /** Block size of ext4 and f2fs data partitions. */
+        const val DEFAULT_BLOCK_SIZE = 4096
+    }
+
+    /** Capacity of every buffer handed out by this pool. */
+    val bufferSize: Int = (bufferSize + blockSize - 1) / blockSize * blockSize
+
+    private val createdBuffers = AtomicInteger()
+
+    // A buffer lost to a cancelled receive no longer counts, so a new one may be allocated.
+    private val idleBuffers = Channel<ByteBuffer>(maxBuffers) { createdBuffers.decrementAndGet() }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one while under [maxBuffers] and
+     * suspending otherwise until another caller releases one.
+     */
+    suspend fun acquire(): ByteBuffer {
+        val buffer = idleBuffers.tryReceive().getOrNull() ?: if (createdBuffers.incrementAndGet() <= maxBuffers) {
+            ByteBuffer.allocateDirect(bufferSize)
+        } else {
+            createdBuffers.decrementAndGet()
+            idleBuffers.receive()
+        }
+        buffer.clear()
+        return buffer
+    }
+
+    /**
+     * Returns a buffer obtained from [acquire]. It must not be touched afterwards.
+     */
+    fun release(buffer: ByteBuffer) {
+        idleBuffers.trySend(buffer)
+    }
+}
@@ -0,0 +1,139 @@
+package libs.files
+
+import android.content.Context
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants.EINVAL
+import android.system.OsConstants.ENOSPC
+import android.system.OsConstants.ENOSYS
+import android.system.OsConstants.EOPNOTSUPP
+import androidx.documentfile.provider.DocumentFile
+import libs.process.LogHelperUtils
+import java.io.File
+import java.io.FileDescriptor
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Reserves disk space for a file through its file descriptor, without writing any bytes.
+ *
+ * Where the file system supports it, the space is allocated with `posix_fallocate`, which
+ * marks the blocks as reserved in constant time and fails early with `ENOSPC` if the volume
+ * is too small. File systems without fallocate support (some FUSE and SAF providers) fall
+ * back to extending the file with `ftruncate`, which creates a sparse file of the requested
+ * size. Either way the memory cost is constant, so files larger than 2 GB are fine.
+ *
+ * The file ends up exactly as long as requested: content within that size is kept, so a
+ * partial download can be preallocated again, and a stale tail of a longer file is cut off.
+ *
+ * Usage:
+ * ```
+ * val isReserved = FilePreallocator.preallocate(destinationFile, totalBytes)
+ * ```
+ */
+object FilePreallocator {
+
+    private val logger = LogHelperUtils.from(javaClass)
+
+    /**
+     * Preallocates a plain [File], creating it if it does not exist yet.
+     *
+     * @param file The destination file.
+     * @param fileSize The number of bytes to reserve.
+     * @return `true` if the file now spans exactly [fileSize] bytes, `false` otherwise.
+     */
+    @JvmStatic
+    fun preallocate(file: File, fileSize: Long): Boolean {
+        return try {
+            RandomAccessFile(file, "rw").use { randomAccessFile ->
+                preallocate(randomAccessFile.fd, fileSize)
+            }
+        } catch (error: IOException) {
+            logger.e("Could not open ${file.name} for preallocation", error)
+            false
+        }
+    }
+
+    /**
+     * Preallocates a SAF [DocumentFile] through the descriptor of its content URI.
+     *
+     * @param context The Android [Context] used to access the content resolver.
+     * @param file The destination document.
+     * @param fileSize The number of bytes to reserve.
+     * @return `true` if the document now spans exactly [fileSize] bytes, `false` otherwise.
+     */
+    @JvmStatic
+    fun preallocate(context: Context, file: DocumentFile, fileSize: Long): Boolean {
+        return try {
+            val contentResolver = context.contentResolver
+            contentResolver.openFileDescriptor(file.uri, "rw")?.use { parcelFileDescriptor ->
+                preallocate(parcelFileDescriptor.fileDescriptor, fileSize)
+            } ?: false
+        } catch (error: Exception) {
+            logger.e("Could not open ${file.name} for preallocation", error)
+            false
+        }
+    }
+
+    /**
+     * Preallocates an already opened file descriptor. Content within [fileSize] is kept;
+     * anything past it is truncated.
+     *
+     * @param fileDescriptor A descriptor opened for writing.
+     * @param fileSize The number of bytes to reserve.
+     * @return `true` if the file now spans exactly [fileSize] bytes, `false` if the volume is
+     *         full or the descriptor cannot be resized.
+     */
+    @JvmStatic
+    fun preallocate(fileDescriptor: FileDescriptor, fileSize: Long): Boolean {
+        if (fileSize < 0) return true
+        if (!truncateTail(fileDescriptor, fileSize)) return false
+        if (fileSize == 0L) return true
+        return try {
+            Os.posix_fallocate(fileDescriptor, 0, fileSize)
+            true
+        } catch (error: ErrnoException) {
+            when (error.errno) {
+                ENOSPC -> {
+                    logger.d("Not enough space to reserve $fileSize bytes")
+                    false
+                }
+
+                EOPNOTSUPP, ENOSYS, EINVAL -> extendSparse(fileDescriptor, fileSize)
+                else -> {
+                    logger.e("posix_fallocate failed", error)
+                    extendSparse(fileDescriptor, fileSize)
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts the file down to [fileSize] if it is longer, e.g. when an older, larger file is
+     * overwritten, since opening in `"rw"` mode keeps its content.
+     */
+    private fun truncateTail(fileDescriptor: FileDescriptor, fileSize: Long): Boolean {
+        return try {
+            if (Os.fstat(fileDescriptor).st_size > fileSize) Os.ftruncate(fileDescriptor, fileSize)
+            true
+        } catch (error: ErrnoException) {
+            logger.e("Could not truncate file to $fileSize bytes", error)
+            false
+        }
+    }
+
+    /**
+     * Grows the file to [fileSize] without allocating blocks, leaving a sparse hole
+     * that is filled as the download writes into it.
+     */
+    private fun extendSparse(fileDescriptor: FileDescriptor, fileSize: Long): Boolean {
+        return try {
+            val currentSize = Os.fstat(fileDescriptor).st_size
+            if (currentSize < fileSize) Os.ftruncate(fileDescriptor, fileSize)
+            true
+        } catch (error: ErrnoException) {
+            logger.e("Could not extend file to $fileSize bytes", error)
+            false
+        }
+    }
+}
@@ -24,7 +24,6 @@ import net.base.R
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
-import java.io.OutputStream
 import java.net.URLDecoder.decode
 import java.nio.charset.StandardCharsets.UTF_8
 import java.util.Locale
@@ -297,29 +296,19 @@ object FileUtility {
     }
 
     /**
-     * Writes an empty file of the specified size to the provided [DocumentFile].
+     * Reserves an empty file of the specified size in the provided [DocumentFile].
+     *
+     * The space is reserved through the file descriptor by [FilePreallocator], so no
+     * placeholder bytes are held in memory and files larger than 2 GB are supported.
      *
      * @param context The Android [Context] used to access the [ContentResolver].
      * @param file The [DocumentFile] to write to.
-     * @param fileSize The number of bytes to write into the file (creates a file of this size).
+     * @param fileSize The number of bytes to reserve (creates a file of this size).
      * @return `true` if the operation was successful, `false` otherwise.
      */
     @JvmStatic
     fun writeEmptyFile(context: Context, file: DocumentFile, fileSize: Long): Boolean {
-        return try {
-            val contentResolver: ContentResolver = context.contentResolver
-            val outputStream: OutputStream? = contentResolver.openOutputStream(file.uri)
-
-            outputStream?.use { stream ->
-                val placeholder = ByteArray(fileSize.toInt())
-                stream.write(placeholder) // Write the placeholder bytes
-                stream.flush()
-            }
-            true
-        } catch (error: IOException) {
-            error.printStackTrace()
-            false
-        }
+        return FilePreallocator.preallocate(context, file, fileSize)
     }
 
     /**
@@ -0,0 +1,127 @@
+package libs.files
+
+import android.content.Context
+import android.os.ParcelFileDescriptor
+import android.os.ParcelFileDescriptor.AutoCloseOutputStream
+import android.system.ErrnoException
+import android.system.Os
+import androidx.documentfile.provider.DocumentFile
+import java.io.Closeable
+import java.io.FileDescriptor
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Random-access writer over a single file descriptor, for plain files and SAF documents alike.
+ *
+ * `ContentResolver.openOutputStream` only supports sequential writes, which forces segmented
+ * downloads into temporary part files and a final merge. This writer instead opens one
+ * [ParcelFileDescriptor] per download and exposes positional [FileChannel.write] calls, which
+ * are safe to issue concurrently from several connections into one preallocated file.
+ *
+ * Writes are taken from direct [ByteBuffer]s, usually filled from a [DirectBufferPool] and
+ * handed over through a [WriteBehindLane], so the kernel reads them without the extra
+ * heap-to-native copy a `ByteArray` would need.
+ *
+ * Usage:
+ * ```
+ * PositionalFileWriter.open(context, documentFile).use { writer ->
+ *     writer.write(filledBuffer, position)
+ * }
+ * ```
+ *
+ * @param parcelFileDescriptor The descriptor opened in read-write mode; owned by this writer.
+ */
+class PositionalFileWriter private constructor(
+    private val parcelFileDescriptor: ParcelFileDescriptor
+) : Closeable {
+
+    private val outputStream = AutoCloseOutputStream(parcelFileDescriptor)
+
+    /** Channel used for positional writes, syncing and truncation. */
+    val channel: FileChannel = outputStream.channel
+
+    /**
+     * Read side of the same descriptor, for reading back bytes already written. The stream
+     * is never closed on its own, since that would close the descriptor under the writer.
+     */
+    private val readChannel: FileChannel by lazy {
+        FileInputStream(parcelFileDescriptor.fileDescriptor).channel
+    }
+
+    /** Raw descriptor, e.g. for [FilePreallocator]. */
+    val fileDescriptor: FileDescriptor
+        get() = parcelFileDescriptor.fileDescriptor
+
+    /** Block size of the file system the file lives on, for aligning writes. */
+    val blockSize: Int by lazy {
+        try {
+            Os.fstatvfs(parcelFileDescriptor.fileDescriptor).f_bsize.toInt()
+                .takeIf { it > 0 } ?: DirectBufferPool.DEFAULT_BLOCK_SIZE
+        } catch (error: ErrnoException) {
+            DirectBufferPool.DEFAULT_BLOCK_SIZE
+        }
+    }
+
+    companion object {
+
+        /**
+         * Opens a writer for a plain file or SAF document. `file://` documents created with
+         * [DocumentFile.fromFile] are resolved by the content resolver as well.
+         *
+         * @param context The Android [Context] used to access the content resolver.
+         * @param file The destination document.
+         * @return A writer that must be closed once the download stops.
+         * @throws FileNotFoundException if the document cannot be opened for writing.
+         */
+        @JvmStatic
+        fun open(context: Context, file: DocumentFile): PositionalFileWriter {
+            val descriptor = context.contentResolver.openFileDescriptor(file.uri, "rw")
+                ?: throw FileNotFoundException("Cannot open ${file.uri} for writing")
+            return PositionalFileWriter(descriptor)
+        }
+    }
+
+    /**
+     * Writes the whole remaining content of [buffer] starting at [position].
+     * Positional writes may be partial, so this loops until everything reached the file.
+     *
+     * @return The number of bytes written.
+     */
+    fun write(buffer: ByteBuffer, position: Long): Int {
+        val byteCount = buffer.remaining()
+        var writePosition = position
+        while (buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition)
+        }
+        return byteCount
+    }
+
+    /**
+     * Reads bytes previously written at [position] into [buffer].
+     *
+     * @return The number of bytes read, or `-1` past the end of the file.
+     */
+    fun read(buffer: ByteBuffer, position: Long): Int {
+        return readChannel.read(buffer, position)
+    }
+
+    /** Current size of the file in bytes. */
+    fun size(): Long = channel.size()
+
+    /** Cuts the file down to [size] bytes. */
+    fun truncate(size: Long) {
+        channel.truncate(size)
+    }
+
+    /** Flushes written data to the storage device. */
+    fun sync() {
+        channel.force(false)
+    }
+
+    override fun close() {
+        outputStream.close()
+    }
+}
@@ -0,0 +1,84 @@
+package libs.files
+
+import kotlinx.coroutines.channels.Channel
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Background lane that writes filled pool buffers into one [PositionalFileWriter], so the
+ * threads reading from the network never wait for the storage.
+ *
+ * Writers hand over a [PendingWrite] whose buffer holds a large, ideally block-aligned run of
+ * bytes; [run] writes them one at a time in submission order, returns each buffer to the
+ * [DirectBufferPool] and reports back through [PendingWrite.onWritten]. Writes submitted by
+ * one caller therefore complete in the order they were submitted.
+ *
+ * Usage:
+ * ```
+ * launch { lane.run() }
+ * lane.submit(pendingWrite)
+ * lane.close() // once nothing is submitted anymore
+ * ```
+ *
+ * @param writer The file the buffers are written into.
+ * @param bufferPool The pool the buffers are returned to once written.
+ */
+class WriteBehindLane(
+    private val writer: PositionalFileWriter,
+    private val bufferPool: DirectBufferPool
+) {
+
+    private val pendingWrites = Channel<PendingWrite>(Channel.UNLIMITED)
+
+    /**
+     * Writes submitted buffers until [close] is called and everything submitted before it
+     * has been written. Should run on an I/O dispatcher.
+     */
+    suspend fun run() {
+        for (pendingWrite in pendingWrites) {
+            val buffer = pendingWrite.buffer ?: continue
+            val byteCount = buffer.remaining()
+            val error = try {
+                writer.write(buffer, pendingWrite.position)
+                null
+            } catch (error: IOException) {
+                error
+            }
+            pendingWrite.buffer = null
+            bufferPool.release(buffer)
+            pendingWrite.onWritten(byteCount, error)
+        }
+    }
+
+    /**
+     * Queues [pendingWrite]; its buffer must be flipped, i.e. ready to be read from.
+     */
+    fun submit(pendingWrite: PendingWrite) {
+        pendingWrites.trySend(pendingWrite)
+    }
+
+    /** Lets [run] return once the queued writes are done. */
+    fun close() {
+        pendingWrites.close()
+    }
+
+    /**
+     * One buffer on its way to the file. Instances are meant to be reused: the lane clears
+     * [buffer] before calling [onWritten], after which the owner may fill it again.
+     */
+    abstract class PendingWrite {
+        /** Bytes to write, taken from the pool; cleared by the lane once written. */
+        var buffer: ByteBuffer? = null
+
+        /** Absolute file offset of the first byte of [buffer]. */
+        var position = 0L
+
+        /**
+         * Called on the lane once the bytes reached the file, or failed to.
+         *
+         * @param byteCount Number of bytes that were in the buffer.
+         * @param error The write failure, or null on success.
+         */
+        abstract fun onWritten(byteCount: Int, error: IOException?)
+    }
+}
@@ -0,0 +1,56 @@
+package libs.networks
+
+import okhttp3.Dns
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * In-memory DNS cache placed in front of another [Dns] resolver.
+ *
+ * Android's resolver keeps its own short-lived cache, but every miss still costs a round
+ * trip, and segmented downloads, thumbnails and metadata probes hit the same few CDN hosts
+ * over and over. Answers are kept for [timeToLiveMs]; if a refresh fails, a stale answer is
+ * preferred over failing the request outright, since CDN addresses rarely disappear.
+ *
+ * @param delegate The resolver used on cache misses.
+ * @param timeToLiveMs How long a resolved answer is served from memory.
+ */
+class CachingDns(
+	private val delegate: Dns = Dns.SYSTEM,
+	private val timeToLiveMs: Long = DEFAULT_TTL_MS
+) : Dns {
+
+	companion object {
+		/** Default lifetime of a cached answer (5 minutes). */
+		const val DEFAULT_TTL_MS = 5 * 60 * 1000L
+	}
+
+	private val cachedAnswers = ConcurrentHashMap<String, CachedAnswer>()
+
+	override fun lookup(hostname: String): List<InetAddress> {
+		val cachedAnswer = cachedAnswers[hostname]
+		val currentTime = System.currentTimeMillis()
+		if (cachedAnswer != null && cachedAnswer.expiresAt > currentTime) {
+			return cachedAnswer.addresses
+		}
+
+		return try {
+			val addresses = delegate.lookup(hostname)
+			cachedAnswers[hostname] = CachedAnswer(addresses, currentTime + timeToLiveMs)
+			addresses
+		} catch (error: UnknownHostException) {
+			cachedAnswer?.addresses ?: throw error
+		}
+	}
+
+	/**
+	 * Forgets every cached answer, e.g. after switching networks where
+	 * a different resolver may return closer edge nodes.
+	 */
+	fun clear() {
+		cachedAnswers.clear()
+	}
+
+	private class CachedAnswer(val addresses: List<InetAddress>, val expiresAt: Long)
+}
@@ -0,0 +1,149 @@
+package libs.networks
+
+import android.content.Context
+import android.content.Context.CONNECTIVITY_SERVICE
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED
+import android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED
+import android.net.NetworkCapabilities.TRANSPORT_BLUETOOTH
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_ETHERNET
+import android.net.NetworkCapabilities.TRANSPORT_VPN
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import libs.process.LogHelperUtils
+
+/**
+ * Keeps the state of the default network up to date from [ConnectivityManager.NetworkCallback]
+ * events, so nobody has to probe for connectivity.
+ *
+ * The platform pushes every change of the default network and its capabilities; this class
+ * turns them into an immutable [ConnectivitySnapshot]. Reading [current] is a field read with
+ * no binder call and no network I/O, cheap enough for schedulers and UI bindings, and
+ * [snapshot] lets them react to changes instead of polling.
+ *
+ * When the default network is replaced, e.g. Wi-Fi to cellular, [onNetworkSwitched] runs so
+ * caches tied to the old network, such as DNS answers and redirect hops, can be dropped.
+ *
+ * Usage:
+ * ```
+ * if (!globalConnectivityMonitor.current.isValidated) showOfflineBanner()
+ * globalConnectivityMonitor.snapshot.collect { state -> adjustDownloads(state.isMetered) }
+ * ```
+ *
+ * @param context Any context; only the application context is kept.
+ * @param onNetworkSwitched Called on a callback thread when the default network changes.
+ */
+class ConnectivityMonitor(
+	context: Context,
+	private val onNetworkSwitched: (() -> Unit)? = null
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+	private val connectivityManager =
+		context.applicationContext.getSystemService(CONNECTIVITY_SERVICE) as ConnectivityManager
+	private val snapshots = MutableStateFlow(ConnectivitySnapshot.DISCONNECTED)
+
+	@Volatile
+	private var currentNetwork: Network? = null
+
+	/** Latest state of the default network, updated as the platform reports changes. */
+	val snapshot: StateFlow<ConnectivitySnapshot> = snapshots.asStateFlow()
+
+	/** The current state; an O(1) read of the last reported value. */
+	val current: ConnectivitySnapshot
+		get() = snapshots.value
+
+	private val networkCallback = object : ConnectivityManager.NetworkCallback() {
+		override fun onCapabilitiesChanged(network: Network, capabilities: NetworkCapabilities) {
+			val previousNetwork = currentNetwork
+			currentNetwork = network
+			snapshots.value = ConnectivitySnapshot.from(capabilities)
+			if (previousNetwork != null && previousNetwork != network) {
+				logger.d("Default network switched to ${snapshots.value.transport}")
+				onNetworkSwitched?.invoke()
+			}
+		}
+
+		override fun onLost(network: Network) {
+			if (network != currentNetwork) return
+			snapshots.value = ConnectivitySnapshot.DISCONNECTED
+		}
+	}
+
+	/**
+	 * Reads the current default network once and starts listening for changes.
+	 * Call once, when the application is created.
+	 */
+	fun start() {
+		connectivityManager.activeNetwork?.let { network ->
+			connectivityManager.getNetworkCapabilities(network)?.let { capabilities ->
+				currentNetwork = network
+				snapshots.value = ConnectivitySnapshot.from(capabilities)
+			}
+		}
+		connectivityManager.registerDefaultNetworkCallback(networkCallback)
+	}
+}
+
+/**
+ * Transport of the default network.
+ */
+enum class NetworkTransport { NONE, WIFI, CELLULAR, ETHERNET, BLUETOOTH, VPN, OTHER }
+
+/**
+ * State of the default network at one point in time.
+ *
+ * @property isConnected Whether there is a default network that claims internet access.
+ * @property isValidated Whether the system confirmed that the network really reaches the
+ *           internet, i.e. it is not behind a captive portal.
+ * @property isMetered Whether traffic may cost the user money.
+ * @property transport The transport the network runs over.
+ * @property downstreamKbps Estimated downstream bandwidth, `0` if unknown.
+ * @property upstreamKbps Estimated upstream bandwidth, `0` if unknown.
+ */
+data class ConnectivitySnapshot(
+	val isConnected: Boolean,
+	val isValidated: Boolean,
+	val isMetered: Boolean,
+	val transport: NetworkTransport,
+	val downstreamKbps: Int,
+	val upstreamKbps: Int
+) {
+
+	companion object {
+
+		/** State while there is no default network. */
+		@JvmField
+		val DISCONNECTED = ConnectivitySnapshot(false, false, false, NetworkTransport.NONE, 0, 0)
+
+		/**
+		 * Builds a snapshot from the capabilities the platform reported.
+		 * @param capabilities Capabilities of the default network.
+		 */
+		@JvmStatic
+		fun from(capabilities: NetworkCapabilities): ConnectivitySnapshot {
+			val transport = when {
+				capabilities.hasTransport(TRANSPORT_VPN) -> NetworkTransport.VPN
+				capabilities.hasTransport(TRANSPORT_WIFI) -> NetworkTransport.WIFI
+				capabilities.hasTransport(TRANSPORT_CELLULAR) -> NetworkTransport.CELLULAR
+				capabilities.hasTransport(TRANSPORT_ETHERNET) -> NetworkTransport.ETHERNET
+				capabilities.hasTransport(TRANSPORT_BLUETOOTH) -> NetworkTransport.BLUETOOTH
+				else -> NetworkTransport.OTHER
+			}
+			return ConnectivitySnapshot(
+				isConnected = capabilities.hasCapability(NET_CAPABILITY_INTERNET),
+				isValidated = capabilities.hasCapability(NET_CAPABILITY_VALIDATED),
+				isMetered = !capabilities.hasCapability(NET_CAPABILITY_NOT_METERED),
+				transport = transport,
+				downstreamKbps = capabilities.linkDownstreamBandwidthKbps,
+				upstreamKbps = capabilities.linkUpstreamBandwidthKbps
+			)
+		}
+	}
+}
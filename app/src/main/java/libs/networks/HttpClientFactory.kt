@@ -0,0 +1,78 @@
+package libs.networks
+
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.MINUTES
+
+/**
+ * Builds the single [OkHttpClient] the whole app shares.
+ *
+ * One client means one connection pool: TLS sessions and HTTP/2 connections opened for a
+ * metadata probe are reused by the thumbnail and download requests that follow against the
+ * same CDN, instead of every call paying for its own handshake. Clients with different
+ * timeouts or redirect rules must be derived with [OkHttpClient.newBuilder], which keeps the
+ * pool, dispatcher and DNS cache shared.
+ */
+object HttpClientFactory {
+
+	/** Idle connections kept alive in the shared pool. */
+	private const val MAX_IDLE_CONNECTIONS = 16
+
+	/** How long an idle connection stays in the pool. */
+	private const val KEEP_ALIVE_DURATION_MINUTES = 5L
+
+	/** Concurrent asynchronous calls across all hosts. */
+	private const val MAX_REQUESTS = 64
+
+	/** Concurrent asynchronous calls against a single host. */
+	private const val MAX_REQUESTS_PER_HOST = 8
+
+	private const val CONNECT_TIMEOUT_MS = 15_000L
+	private const val READ_TIMEOUT_MS = 30_000L
+	private const val WRITE_TIMEOUT_MS = 15_000L
+
+	/**
+	 * Creates the process-wide client. Call once and keep the instance.
+	 *
+	 * @return A client with a tuned connection pool, per-host dispatcher limits,
+	 *         HTTP/2 preferred and an in-memory DNS cache.
+	 */
+	@JvmStatic
+	fun createSharedClient(): OkHttpClient {
+		val dispatcher = Dispatcher().apply {
+			maxRequests = MAX_REQUESTS
+			maxRequestsPerHost = MAX_REQUESTS_PER_HOST
+		}
+
+		return OkHttpClient.Builder()
+			.connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, MINUTES))
+			.dispatcher(dispatcher)
+			.protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+			.dns(CachingDns())
+			.connectTimeout(CONNECT_TIMEOUT_MS, MILLISECONDS)
+			.readTimeout(READ_TIMEOUT_MS, MILLISECONDS)
+			.writeTimeout(WRITE_TIMEOUT_MS, MILLISECONDS)
+			.retryOnConnectionFailure(true)
+			.build()
+	}
+
+	/**
+	 * Derives the client used for segmented downloads from the shared one.
+	 *
+	 * HTTP/2 would multiplex every range of a file onto one TCP connection, which brings back
+	 * the single-stream throttling that parallel ranges exist to avoid. This client therefore
+	 * speaks HTTP/1.1 only, while still sharing the pool, dispatcher and DNS cache.
+	 *
+	 * @param sharedClient The process-wide client.
+	 * @return A client that opens one TCP connection per concurrent range.
+	 */
+	@JvmStatic
+	fun createDownloadClient(sharedClient: OkHttpClient): OkHttpClient {
+		return sharedClient.newBuilder()
+			.protocols(listOf(Protocol.HTTP_1_1))
+			.build()
+	}
+}
@@ -1,20 +1,12 @@
 package libs.networks;
 
-import static android.content.Context.CONNECTIVITY_SERVICE;
 import static android.content.Context.TELEPHONY_SERVICE;
 import static android.content.Context.WIFI_SERVICE;
-import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
-import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 import static android.webkit.MimeTypeMap.getSingleton;
 
 import android.app.Application;
-import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkCapabilities;
-import android.net.NetworkInfo;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
-import android.os.Build;
 import android.telephony.TelephonyManager;
 import android.webkit.MimeTypeMap;
 import android.webkit.URLUtil;
@@ -24,12 +16,13 @@ import androidx.annotation.Nullable;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
 
 import core.bases.GlobalApplication;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 
 /**
  * Utility class for network-related operations including connectivity checks,
@@ -40,28 +33,12 @@ public class NetworkUtility {
 
     /**
      * Checks if network connectivity is available.
-     * Uses modern NetworkCapabilities API for Android Q+ and falls back to
-     * NetworkInfo for older versions.
+     * Reads the state cached by {@link ConnectivityMonitor}, so no binder call is made.
      *
      * @return true if network is available, false otherwise
      */
     public static boolean isNetworkAvailable() {
-        Context applicationContext = GlobalApplication.APP_INSTANCE;
-        ConnectivityManager connectivityManager = (ConnectivityManager)
-                applicationContext.getSystemService(CONNECTIVITY_SERVICE);
-
-        if (connectivityManager == null) return false;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            NetworkCapabilities capabilities = connectivityManager.
-                    getNetworkCapabilities(connectivityManager.getActiveNetwork());
-
-            return capabilities != null &&
-                    (capabilities.hasTransport(TRANSPORT_WIFI) ||
-                            capabilities.hasTransport(TRANSPORT_CELLULAR));
-        } else {
-            NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-            return activeNetworkInfo != null && activeNetworkInfo.isConnected();
-        }
+        return GlobalApplication.globalConnectivityMonitor.getCurrent().isConnected();
     }
 
     /**
@@ -93,28 +70,18 @@ public class NetworkUtility {
     }
 
     /**
-     * Follows URL redirects to get the original URL.
+     * Follows the whole redirect chain of a URL to get the original URL.
+     * Hops are memoized by {@link RedirectResolver}, so repeated calls for the same
+     * link are answered without any network round trip.
      *
      * @param fileURL The URL that might redirect
      * @return The final URL after following redirects
-     * @throws IOException if there's an error during the connection
+     * @throws IOException if there's an error during the connection or the chain loops
      */
     @NonNull
     public static String getOriginalUrlFromRedirectedUrl
     (@NonNull String fileURL) throws IOException {
-        URL Url = new URL(fileURL);
-        HttpURLConnection connection = (HttpURLConnection) Url.openConnection();
-        connection.setInstanceFollowRedirects(false);
-        connection.connect();
-        int responseCode = connection.getResponseCode();
-        if (responseCode >= 300 && responseCode < 400) {
-            String locationHeaderField = "Location";
-            String originalUrl = connection.getHeaderField(locationHeaderField);
-            if (originalUrl != null) {
-                return originalUrl;
-            }
-        }
-        return fileURL;
+        return GlobalApplication.globalRedirectResolver.resolve(fileURL);
     }
 
     /**
@@ -139,11 +106,11 @@ public class NetworkUtility {
      */
     public static boolean isUrlAccessible(@NonNull String urlString) {
         try {
-            URLConnection urlConnection = new URL(urlString).openConnection();
-            HttpURLConnection connection = (HttpURLConnection) urlConnection;
-            connection.setRequestMethod("HEAD");
-            int responseCode = connection.getResponseCode();
-            return responseCode == HttpURLConnection.HTTP_OK;
+            Request request = new Request.Builder().url(urlString).head().build();
+            OkHttpClient httpClient = GlobalApplication.globalHttpClient;
+            try (Response response = httpClient.newCall(request).execute()) {
+                return response.code() == HttpURLConnection.HTTP_OK;
+            }
         } catch (Throwable error) {
             error.printStackTrace();
             return false;
@@ -0,0 +1,133 @@
+package libs.networks
+
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.net.HttpURLConnection.HTTP_BAD_METHOD
+import java.net.HttpURLConnection.HTTP_MOVED_PERM
+import java.net.HttpURLConnection.HTTP_NOT_IMPLEMENTED
+import java.net.ProtocolException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Follows redirect chains such as `t.co → bit.ly → cdn` hop by hop and remembers each hop.
+ *
+ * Every hop is a `HEAD` request over a no-redirect view of the shared client, so it reuses
+ * the pooled connections and no body is ever fetched. The target of every hop is memoized:
+ * permanent redirects (`301`, `308`) for [permanentTtlMs], temporary ones and final URLs for
+ * [temporaryTtlMs]. Resolving the same link again, or another link that joins the same
+ * chain, therefore skips every hop already seen. Loops and overly long chains fail with a
+ * [ProtocolException] instead of spinning.
+ *
+ * Usage:
+ * ```
+ * val directUrl = globalRedirectResolver.resolve(sharedLink)
+ * ```
+ *
+ * @param httpClient The shared client; redirects are disabled on a derived instance.
+ * @param maxHops Upper bound of redirects followed for one URL.
+ * @param permanentTtlMs How long a permanent redirect is remembered.
+ * @param temporaryTtlMs How long a temporary redirect or a final URL is remembered.
+ */
+class RedirectResolver(
+	httpClient: OkHttpClient,
+	private val maxHops: Int = DEFAULT_MAX_HOPS,
+	private val permanentTtlMs: Long = DEFAULT_PERMANENT_TTL_MS,
+	private val temporaryTtlMs: Long = DEFAULT_TEMPORARY_TTL_MS
+) {
+
+	companion object {
+		/** Default number of redirects followed, the same limit browsers use. */
+		const val DEFAULT_MAX_HOPS = 20
+
+		/** Default lifetime of a memoized permanent redirect (1 hour). */
+		const val DEFAULT_PERMANENT_TTL_MS = 60 * 60 * 1000L
+
+		/** Default lifetime of a memoized temporary redirect or final URL (5 minutes). */
+		const val DEFAULT_TEMPORARY_TTL_MS = 5 * 60 * 1000L
+
+		/** Permanent redirect that must keep the request method. */
+		private const val HTTP_PERMANENT_REDIRECT = 308
+	}
+
+	private val noRedirectClient = httpClient.newBuilder()
+		.followRedirects(false)
+		.followSslRedirects(false)
+		.build()
+	private val memoizedHops = ConcurrentHashMap<String, MemoizedHop>()
+
+	/**
+	 * Returns the URL the redirect chain starting at [url] ends at. Blocks while unknown hops
+	 * are requested, so call it off the main thread.
+	 *
+	 * @param url The URL that might redirect.
+	 * @return The final URL, or [url] itself if it does not redirect.
+	 * @throws IOException if a hop cannot be requested.
+	 * @throws ProtocolException if the chain loops or is longer than [maxHops].
+	 */
+	fun resolve(url: String): String = resolveChain(url).last()
+
+	/**
+	 * Returns every URL of the redirect chain starting at [url], in order.
+	 *
+	 * @param url The URL that might redirect.
+	 * @return [url] followed by each redirect target; the last entry is the final URL.
+	 * @throws IOException if a hop cannot be requested.
+	 * @throws ProtocolException if the chain loops or is longer than [maxHops].
+	 */
+	fun resolveChain(url: String): List<String> {
+		val chain = arrayListOf(url)
+		val visitedUrls = hashSetOf(url)
+		var currentUrl = url
+		while (true) {
+			val nextUrl = nextHop(currentUrl) ?: return chain
+			if (!visitedUrls.add(nextUrl)) throw ProtocolException("Redirect loop at $nextUrl")
+			if (chain.size > maxHops) throw ProtocolException("More than $maxHops redirects from $url")
+			chain.add(nextUrl)
+			currentUrl = nextUrl
+		}
+	}
+
+	/**
+	 * Forgets every memoized hop, e.g. after switching networks where captive portals or
+	 * regional CDNs may redirect differently.
+	 */
+	fun clear() {
+		memoizedHops.clear()
+	}
+
+	/**
+	 * Returns where [url] redirects to, or null if it is a final URL, from the memo if fresh.
+	 */
+	private fun nextHop(url: String): String? {
+		val currentTime = System.currentTimeMillis()
+		memoizedHops[url]?.let { hop ->
+			if (hop.expiresAt > currentTime) return hop.targetUrl
+			memoizedHops.remove(url, hop)
+		}
+
+		val httpUrl = url.toHttpUrlOrNull() ?: return null
+		var response = execute(Request.Builder().url(httpUrl).head().build())
+		if (response.code == HTTP_BAD_METHOD || response.code == HTTP_NOT_IMPLEMENTED) {
+			// Some shorteners only answer GET; the body is closed before it is read.
+			response.close()
+			response = execute(Request.Builder().url(httpUrl).build())
+		}
+
+		response.use {
+			val location = if (it.isRedirect) it.header("Location") else null
+			val targetUrl = location?.let { value -> httpUrl.resolve(value)?.toString() }
+			val isPermanent = targetUrl != null &&
+					(it.code == HTTP_MOVED_PERM || it.code == HTTP_PERMANENT_REDIRECT)
+			val timeToLiveMs = if (isPermanent) permanentTtlMs else temporaryTtlMs
+			memoizedHops[url] = MemoizedHop(targetUrl, currentTime + timeToLiveMs)
+			return targetUrl
+		}
+	}
+
+	private fun execute(request: Request): Response = noRedirectClient.newCall(request).execute()
+
+	private class MemoizedHop(val targetUrl: String?, val expiresAt: Long)
+}
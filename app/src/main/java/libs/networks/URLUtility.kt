@@ -1,14 +1,16 @@
 package libs.networks
 
+import core.bases.GlobalApplication.Companion.globalConnectivityMonitor
+import core.bases.GlobalApplication.Companion.globalHttpClient
 import okhttp3.OkHttpClient
 import okhttp3.Request
-import java.net.HttpURLConnection
 import java.net.HttpURLConnection.HTTP_OK
 import java.net.URI
 import java.net.URL
 import java.net.URLDecoder
 import java.net.URLEncoder
 import java.nio.charset.StandardCharsets.UTF_8
+import java.util.concurrent.TimeUnit.MILLISECONDS
 
 /**
  * Kotlin utility object for URL-related operations including parsing, validation,
@@ -16,6 +18,9 @@ import java.nio.charset.StandardCharsets.UTF_8
  */
 object URLUtilityKT {
 	
+	/** Whole-call timeout of the HEAD request used to detect expired URLs. */
+	private const val URL_EXPIRY_CHECK_TIMEOUT_MS = 5000L
+	
 	/**
 	 * Extracts the host URL (scheme + host) from a given URL string.
 	 * @param urlString The complete URL string
@@ -53,11 +58,11 @@ object URLUtilityKT {
 	@JvmStatic
 	fun isFaviconAvailable(faviconUrl: String): Boolean {
 		return try {
-			val url = URL(faviconUrl)
-			val connection = url.openConnection() as HttpURLConnection
-			connection.requestMethod = "HEAD"
-			val isAvailable = connection.responseCode == HTTP_OK
-			isAvailable
+			val request = Request.Builder().url(faviconUrl).head().build()
+			globalHttpClient.newCall(request).execute().use { response ->
+				val isAvailable = response.code == HTTP_OK
+				isAvailable
+			}
 		} catch (error: Exception) {
 			error.printStackTrace()
 			false
@@ -84,25 +89,13 @@ object URLUtilityKT {
 		}
 	}
 	/**
-	 * Checks internet connectivity by attempting to reach google.com.
-	 * @return true if connection succeeds, false otherwise
+	 * Checks internet connectivity from the cached state of [ConnectivityMonitor],
+	 * without any network I/O.
+	 * @return true if the default network is validated to reach the internet, false otherwise
 	 */
 	@JvmStatic
 	fun isInternetConnected(): Boolean {
-		return try {
-			val url = URL("https://www.google.com")
-			with(url.openConnection() as HttpURLConnection) {
-				requestMethod = "GET"
-				connectTimeout = 1000
-				readTimeout = 1000
-				connect()
-				val isConnected = responseCode == HTTP_OK
-				isConnected
-			}
-		} catch (error: Exception) {
-			error.printStackTrace()
-			false
-		}
+		return globalConnectivityMonitor.current.isValidated
 	}
 
 	/**
@@ -171,21 +164,29 @@ object URLUtilityKT {
 	@JvmStatic
 	fun isUrlExpired(urlString: String): Boolean {
 		return try {
-			val url = URL(urlString)
-			val connection = url.openConnection() as HttpURLConnection
-			connection.requestMethod = "HEAD"
-			connection.connectTimeout = 5000
-			connection.readTimeout = 5000
-			connection.connect()
-			val responseCode = connection.responseCode
-			val isExpired = responseCode >= 400
-			isExpired
+			val request = Request.Builder().url(urlString).head().build()
+			val call = globalHttpClient.newCall(request)
+			call.timeout().timeout(URL_EXPIRY_CHECK_TIMEOUT_MS, MILLISECONDS)
+			call.execute().use { response ->
+				val isExpired = response.code >= 400
+				isExpired
+			}
 		} catch (error: Exception) {
 			error.printStackTrace()
 			true
 		}
 	}
 	
+	/**
+	 * Checks if an HTTP status is how media CDNs reject a signed URL past its expiry.
+	 * @param statusCode The HTTP status code of the response
+	 * @return true for 401, 403 and 410, false otherwise
+	 */
+	@JvmStatic
+	fun isExpiredUrlStatus(statusCode: Int): Boolean {
+		return statusCode == 401 || statusCode == 403 || statusCode == 410
+	}
+	
 	/**
 	 * Removes 'www.' prefix from a URL if present.
 	 * @param url The URL to process
@@ -0,0 +1,232 @@
+package libs.networks
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import libs.networks.downloads.executeCancellable
+import libs.process.LogHelperUtils
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.net.HttpURLConnection.HTTP_PARTIAL
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Probes the metadata of many URLs at once: size, MIME type, range support, validators and
+ * the URL the redirects end at, everything needed before a download is planned.
+ *
+ * All probes of a batch run concurrently over the shared client, so they reuse each other's
+ * pooled connections and TLS sessions, while at most [maxProbesPerHost] run against the same
+ * host so one site with fifty pasted links is not hammered. Successful answers are cached for
+ * [timeToLiveMs] per URL and set of request headers, so probing the same link again, e.g. when
+ * the download starts right after the link was checked, costs nothing. Error statuses and
+ * network failures are never cached, as they often depend on a missing cookie or a passing
+ * outage rather than on the resource.
+ *
+ * Servers that refuse `HEAD` are probed again with a one-byte ranged `GET`.
+ *
+ * Usage:
+ * ```
+ * val results = globalUrlMetadataProber.probeAll(pastedLinks)
+ * results.values.filter { it.isAccessible }.forEach { logger.d("${it.finalUrl}: ${it.contentLength}") }
+ * ```
+ *
+ * @param httpClient The OkHttp client the probes are sent with.
+ * @param maxProbesPerHost Upper bound of probes running against one host at the same time.
+ * @param timeToLiveMs How long a probe result is served from memory.
+ */
+class UrlMetadataProber(
+	private val httpClient: OkHttpClient,
+	private val maxProbesPerHost: Int = DEFAULT_MAX_PROBES_PER_HOST,
+	private val timeToLiveMs: Long = DEFAULT_TTL_MS
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+	/** Permits of the hosts being probed; an entry lives only while a probe uses it. */
+	private val hostPermits = HashMap<String, HostPermits>()
+	private val cachedResults = ConcurrentHashMap<String, CachedMetadata>()
+
+	companion object {
+		/** Default number of concurrent probes against one host. */
+		const val DEFAULT_MAX_PROBES_PER_HOST = 4
+
+		/** Default lifetime of a cached probe result (10 minutes). */
+		const val DEFAULT_TTL_MS = 10 * 60 * 1000L
+	}
+
+	/**
+	 * Probes every URL of [urls] concurrently. Duplicates are probed once.
+	 *
+	 * @param urls The URLs to probe.
+	 * @param headers Extra request headers sent with every probe, e.g. `User-Agent`.
+	 * @return The metadata of every URL, keyed by the URL as passed in.
+	 */
+	suspend fun probeAll(
+		urls: Collection<String>,
+		headers: Map<String, String> = emptyMap()
+	): Map<String, UrlMetadata> = coroutineScope {
+		urls.distinct().map { url ->
+			async { url to probe(url, headers) }
+		}.awaitAll().toMap()
+	}
+
+	/**
+	 * Probes a single URL, answering from the cache when possible.
+	 *
+	 * @param url The URL to probe.
+	 * @param headers Extra request headers sent with the probe.
+	 * @return The metadata of the URL; [UrlMetadata.statusCode] is `-1` if it could not be reached.
+	 */
+	suspend fun probe(url: String, headers: Map<String, String> = emptyMap()): UrlMetadata {
+		val currentTime = System.currentTimeMillis()
+		val cacheKey = cacheKeyOf(url, headers)
+		cachedResults[cacheKey]?.let { cached ->
+			if (cached.expiresAt > currentTime) return cached.metadata
+			cachedResults.remove(cacheKey, cached)
+		}
+
+		val host = url.toHttpUrlOrNull()?.host ?: return UrlMetadata.unreachable(url)
+		val permits = acquireHostPermits(host)
+		return try {
+			permits.semaphore.withPermit {
+				val metadata = withContext(Dispatchers.IO) { sendProbe(url, headers) }
+				if (metadata.isAccessible) {
+					cachedResults[cacheKey] = CachedMetadata(metadata, System.currentTimeMillis() + timeToLiveMs)
+				}
+				metadata
+			}
+		} catch (error: IOException) {
+			logger.d("Could not probe $url: ${error.message}")
+			UrlMetadata.unreachable(url)
+		} finally {
+			releaseHostPermits(host, permits)
+		}
+	}
+
+	/**
+	 * Forgets the cached result of [url], e.g. after its download failed.
+	 *
+	 * @param url The URL to forget.
+	 */
+	fun invalidate(url: String) {
+		cachedResults.keys.removeIf { it == url || it.startsWith("$url\n") }
+	}
+
+	/** Forgets every cached result. */
+	fun clear() {
+		cachedResults.clear()
+	}
+
+	/**
+	 * Headers such as `Cookie` or `Referer` can change the answer, so results are cached per
+	 * URL and header set. A probe without headers is keyed by the plain URL.
+	 */
+	private fun cacheKeyOf(url: String, headers: Map<String, String>): String {
+		if (headers.isEmpty()) return url
+		return headers.entries.sortedBy { it.key.lowercase() }
+			.joinToString("\n", prefix = "$url\n") { (name, value) -> "${name.lowercase()}:$value" }
+	}
+
+	private fun acquireHostPermits(host: String): HostPermits {
+		synchronized(hostPermits) {
+			return hostPermits.getOrPut(host) { HostPermits(Semaphore(maxProbesPerHost)) }
+				.apply { userCount++ }
+		}
+	}
+
+	private fun releaseHostPermits(host: String, permits: HostPermits) {
+		synchronized(hostPermits) {
+			if (--permits.userCount == 0) hostPermits.remove(host)
+		}
+	}
+
+	private suspend fun sendProbe(url: String, headers: Map<String, String>): UrlMetadata {
+		val headRequest = buildRequest(url, headers).head().build()
+		val headMetadata = httpClient.newCall(headRequest).executeCancellable { readMetadata(url, it) }
+		if (headMetadata.isAccessible) return headMetadata
+
+		val rangeRequest = buildRequest(url, headers).header("Range", "bytes=0-0").build()
+		return httpClient.newCall(rangeRequest).executeCancellable { readMetadata(url, it) }
+	}
+
+	private fun buildRequest(url: String, headers: Map<String, String>): Request.Builder {
+		return Request.Builder().url(url).apply {
+			headers.forEach { (name, value) -> header(name, value) }
+		}
+	}
+
+	/**
+	 * Reads the metadata from the headers of a `HEAD` or one-byte ranged `GET` response.
+	 * For a `206`, the size comes from `Content-Range`, since `Content-Length` is one byte.
+	 */
+	private fun readMetadata(url: String, response: Response): UrlMetadata {
+		val finalUrl = response.request.url.toString()
+		val contentLength = if (response.code == HTTP_PARTIAL) {
+			response.header("Content-Range")?.substringAfterLast('/', "")?.trim()?.toLongOrNull() ?: -1L
+		} else response.header("Content-Length")?.toLongOrNull() ?: -1L
+		val mimeType = response.header("Content-Type")?.substringBefore(';')?.trim()?.lowercase()
+			?.takeIf { it.isNotEmpty() } ?: NetworkUtility.getMimeTypeFromUrl(finalUrl).orEmpty()
+
+		return UrlMetadata(
+			url = url,
+			finalUrl = finalUrl,
+			statusCode = response.code,
+			contentLength = contentLength,
+			mimeType = mimeType,
+			acceptsRanges = response.code == HTTP_PARTIAL ||
+					response.header("Accept-Ranges").equals("bytes", ignoreCase = true),
+			eTag = response.header("ETag").orEmpty(),
+			lastModified = response.header("Last-Modified").orEmpty()
+		)
+	}
+
+	private class CachedMetadata(val metadata: UrlMetadata, val expiresAt: Long)
+
+	/** Probe slots of one host, and the number of probes holding or waiting for one. */
+	private class HostPermits(val semaphore: Semaphore) {
+		var userCount = 0
+	}
+}
+
+/**
+ * What a probe learned about a URL.
+ *
+ * @property url The URL as it was probed.
+ * @property finalUrl The URL after following every redirect.
+ * @property statusCode HTTP status of the final response, or `-1` if the URL was unreachable.
+ * @property contentLength Size of the resource in bytes, or `-1` if unknown.
+ * @property mimeType MIME type from `Content-Type` or the file extension, empty if unknown.
+ * @property acceptsRanges Whether the server honors byte ranges.
+ * @property eTag `ETag` validator, empty if absent.
+ * @property lastModified `Last-Modified` validator, empty if absent.
+ */
+data class UrlMetadata(
+	val url: String,
+	val finalUrl: String,
+	val statusCode: Int,
+	val contentLength: Long,
+	val mimeType: String,
+	val acceptsRanges: Boolean,
+	val eTag: String,
+	val lastModified: String
+) {
+
+	/** Whether the URL answered with a success status. */
+	val isAccessible: Boolean
+		get() = statusCode in 200..299
+
+	companion object {
+
+		/** Result of a probe that did not get any answer. */
+		@JvmStatic
+		fun unreachable(url: String): UrlMetadata {
+			return UrlMetadata(url, url, -1, -1L, "", false, "", "")
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package libs.networks.downloads
+
+import kotlinx.coroutines.delay
+import kotlin.math.ceil
+
+/**
+ * Token bucket that paces a byte stream to [bytesPerSecond].
+ *
+ * Tokens refill continuously and the bucket holds at most [BURST_SECONDS] worth of them, so
+ * a stream may briefly catch up after a pause but never floods the link. Callers take tokens
+ * after every chunk with [acquire]; if the bucket runs into debt, the caller suspends exactly
+ * long enough to repay it. Together with chunks of [chunkSize] bytes this yields a steady
+ * flow instead of the burst-and-sleep pattern of per-second throttling.
+ *
+ * The rate may be changed at any time, including to [UNLIMITED]; running transfers pick up
+ * the new rate on their next chunk.
+ *
+ * @param bytesPerSecond Initial rate, or [UNLIMITED].
+ */
+class BandwidthLimiter(bytesPerSecond: Long = UNLIMITED) {
+
+	companion object {
+		/** Rate value meaning no limit at all. */
+		const val UNLIMITED = 0L
+
+		/** Seconds worth of tokens the bucket can hold. */
+		private const val BURST_SECONDS = 0.25
+
+		/** Preferred number of chunks per second under a limit. */
+		private const val CHUNKS_PER_SECOND = 20
+
+		/** Lower bound of [chunkSize], so slow limits do not degrade into tiny reads. */
+		private const val MIN_CHUNK_SIZE = 4 * 1024
+
+		private const val NANOS_PER_SECOND = 1_000_000_000.0
+	}
+
+	private var availableTokens = 0.0
+	private var lastRefillNanos = System.nanoTime()
+
+	/** Current rate in bytes per second, or [UNLIMITED]. */
+	@Volatile
+	var bytesPerSecond: Long = bytesPerSecond.coerceAtLeast(UNLIMITED)
+		@Synchronized set(value) {
+			refill(System.nanoTime())
+			field = value.coerceAtLeast(UNLIMITED)
+			availableTokens = if (field == UNLIMITED) 0.0 else minOf(availableTokens, field * BURST_SECONDS)
+		}
+
+	/** Whether a limit is currently set. */
+	val isLimited: Boolean
+		get() = bytesPerSecond > UNLIMITED
+
+	/** Largest read that keeps the flow smooth at the current rate. */
+	val chunkSize: Int
+		get() {
+			val rate = bytesPerSecond
+			if (rate <= UNLIMITED) return Int.MAX_VALUE
+			return (rate / CHUNKS_PER_SECOND).coerceIn(MIN_CHUNK_SIZE.toLong(), Int.MAX_VALUE.toLong()).toInt()
+		}
+
+	/**
+	 * Takes [byteCount] tokens, suspending until the bucket is out of debt.
+	 *
+	 * @param byteCount Bytes that were just transferred.
+	 */
+	suspend fun acquire(byteCount: Int) {
+		val waitNanos = reserve(byteCount)
+		if (waitNanos > 0) delay(ceil(waitNanos / 1_000_000.0).toLong())
+	}
+
+	@Synchronized
+	private fun reserve(byteCount: Int): Long {
+		val rate = bytesPerSecond
+		if (rate <= UNLIMITED) return 0L
+		refill(System.nanoTime())
+		availableTokens -= byteCount
+		if (availableTokens >= 0) return 0L
+		return (-availableTokens / rate * NANOS_PER_SECOND).toLong()
+	}
+
+	private fun refill(now: Long) {
+		val rate = bytesPerSecond
+		val elapsedNanos = now - lastRefillNanos
+		lastRefillNanos = now
+		if (rate <= UNLIMITED) return
+		availableTokens = minOf(rate * BURST_SECONDS, availableTokens + elapsedNanos * rate / NANOS_PER_SECOND)
+	}
+}
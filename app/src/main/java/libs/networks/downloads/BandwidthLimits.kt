@@ -0,0 +1,134 @@
+package libs.networks.downloads
+
+import core.bases.GlobalApplication.Companion.globalDatabaseHelper
+import core.database.GlobalAppSettings
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Registry of the [BandwidthLimiter]s a download has to respect: one for the whole app,
+ * one per host and one per task. A transfer takes tokens from each applicable bucket, so the
+ * strictest limit always wins, and every limit can be changed while downloads are running.
+ *
+ * Tasks are identified by [DownloadRequest.destinationKey], which is stable across restarts.
+ * A task limit outlives pauses and retries of its transfer and is only dropped through
+ * [clearTaskLimit] once the download is completed or removed. Once a transfer stops,
+ * [release] drops the limiter of its host when no other transfer uses it and no limit is set
+ * on it, so the host map does not grow with every download ever run.
+ *
+ * The global limit is saved in [GlobalAppSettings.downloadSpeedLimit], so it survives a
+ * restart.
+ *
+ * Usage:
+ * ```
+ * bandwidthLimits.setGlobalLimit(2 * 1024 * 1024)
+ * bandwidthLimits.setHostLimit("cdn.example.com", 512 * 1024)
+ * bandwidthLimits.setTaskLimit(request.destinationKey, BandwidthLimiter.UNLIMITED)
+ * ```
+ */
+class BandwidthLimits {
+
+	/** Limiter shared by every download of the app. */
+	val globalLimiter = BandwidthLimiter()
+
+	private val hostLimiters = ConcurrentHashMap<String, BandwidthLimiter>()
+	private val taskLimiters = ConcurrentHashMap<String, BandwidthLimiter>()
+
+	/** Task keys of the running transfers per host; guarded by itself. */
+	private val activeTasksByHost = HashMap<String, MutableSet<String>>()
+
+	/**
+	 * Caps the combined speed of all downloads and saves the cap in the app settings when it
+	 * changed. Touches the database, so call it off the main thread.
+	 *
+	 * @param bytesPerSecond The new rate, or [BandwidthLimiter.UNLIMITED].
+	 */
+	fun setGlobalLimit(bytesPerSecond: Long) {
+		globalLimiter.bytesPerSecond = bytesPerSecond
+		val settings = globalDatabaseHelper.getGlobalAppSettings() ?: return
+		if (settings.downloadSpeedLimit == globalLimiter.bytesPerSecond) return
+		settings.downloadSpeedLimit = globalLimiter.bytesPerSecond
+		globalDatabaseHelper.saveGlobalData(settings = settings)
+	}
+
+	/**
+	 * Caps the combined speed of all downloads from one host.
+	 * @param host Host name as it appears in the download URLs.
+	 * @param bytesPerSecond The new rate, or [BandwidthLimiter.UNLIMITED].
+	 */
+	fun setHostLimit(host: String, bytesPerSecond: Long) {
+		hostLimiters.getOrPut(host.lowercase()) { BandwidthLimiter() }.bytesPerSecond = bytesPerSecond
+	}
+
+	/**
+	 * Caps the speed of a single download.
+	 * @param taskKey The [DownloadRequest.destinationKey] of the download.
+	 * @param bytesPerSecond The new rate, or [BandwidthLimiter.UNLIMITED].
+	 */
+	fun setTaskLimit(taskKey: String, bytesPerSecond: Long) {
+		taskLimiters.getOrPut(taskKey) { BandwidthLimiter() }.bytesPerSecond = bytesPerSecond
+	}
+
+	/**
+	 * Forgets the limit of a finished or removed download.
+	 * @param taskKey The [DownloadRequest.destinationKey] of the download.
+	 */
+	fun clearTaskLimit(taskKey: String) {
+		taskLimiters.remove(taskKey)
+	}
+
+	/**
+	 * Returns the limiters that apply to [request], narrowest first. Host and task limiters
+	 * are created on demand, so a limit set later still reaches a transfer already running.
+	 *
+	 * @param request The download about to be started.
+	 * @return The task, host and global limiters of the request.
+	 */
+	fun limitersFor(request: DownloadRequest): List<BandwidthLimiter> {
+		val host = hostOf(request)
+		synchronized(activeTasksByHost) {
+			activeTasksByHost.getOrPut(host) { HashSet() }.add(request.destinationKey)
+		}
+		return listOf(
+			taskLimiters.getOrPut(request.destinationKey) { BandwidthLimiter() },
+			hostLimiters.getOrPut(host) { BandwidthLimiter() },
+			globalLimiter
+		)
+	}
+
+	/**
+	 * Returns the strictest rate currently set for [request], for engines such as yt-dlp
+	 * that cannot take tokens from a limiter and only accept a fixed rate when they start.
+	 *
+	 * @param request The download about to be started.
+	 * @return The lowest task, host or global rate, or [BandwidthLimiter.UNLIMITED].
+	 */
+	fun rateFor(request: DownloadRequest): Long {
+		return listOfNotNull(taskLimiters[request.destinationKey], hostLimiters[hostOf(request)], globalLimiter)
+			.map { it.bytesPerSecond }
+			.filter { it > BandwidthLimiter.UNLIMITED }
+			.minOrNull() ?: BandwidthLimiter.UNLIMITED
+	}
+
+	/**
+	 * Forgets the host limiter of a transfer that stopped, however it ended, unless other
+	 * transfers use it or a limit is set on it. The task limiter is kept, so a paused or
+	 * retried download comes back with its limit.
+	 *
+	 * @param request The download that stopped.
+	 */
+	fun release(request: DownloadRequest) {
+		val host = hostOf(request)
+		synchronized(activeTasksByHost) {
+			val activeTasks = activeTasksByHost[host] ?: return
+			activeTasks.remove(request.destinationKey)
+			if (activeTasks.isNotEmpty()) return
+			activeTasksByHost.remove(host)
+			hostLimiters[host]?.let { limiter ->
+				if (!limiter.isLimited) hostLimiters.remove(host, limiter)
+			}
+		}
+	}
+
+	private fun hostOf(request: DownloadRequest): String = request.url.toHttpUrlOrNull()?.host.orEmpty()
+}
@@ -0,0 +1,30 @@
+package libs.networks.downloads
+
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import okhttp3.Call
+import okhttp3.Response
+
+/**
+ * Executes this call and hands the response to [block], cancelling the underlying socket
+ * as soon as the calling coroutine is cancelled so blocked reads return immediately.
+ * The response is closed once [block] returns.
+ */
+internal suspend fun <T> Call.executeCancellable(block: suspend (Response) -> T): T {
+	val call = this
+	return coroutineScope {
+		val cancellationWatcher = launch {
+			try {
+				awaitCancellation()
+			} finally {
+				call.cancel()
+			}
+		}
+		try {
+			call.execute().use { response -> block(response) }
+		} finally {
+			cancellationWatcher.cancel()
+		}
+	}
+}
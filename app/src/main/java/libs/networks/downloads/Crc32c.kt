@@ -0,0 +1,137 @@
+package libs.networks.downloads
+
+import android.os.Build.VERSION.SDK_INT
+import android.os.Build.VERSION_CODES
+import androidx.annotation.RequiresApi
+import java.nio.ByteBuffer
+import java.util.zip.CRC32C
+
+/**
+ * CRC32C (Castagnoli) that works on every supported API level.
+ *
+ * `java.util.zip.CRC32C` only exists from API 34 on. There it is used as is, since ART
+ * compiles it to the CPU's CRC instructions. Older devices fall back to a table-driven
+ * slicing-by-8 implementation that consumes eight bytes per step, which keeps hashing
+ * well ahead of flash write speeds.
+ *
+ * Usage:
+ * ```
+ * val crc = Crc32c()
+ * crc.update(buffer)
+ * val hex = "%08x".format(crc.value)
+ * ```
+ */
+class Crc32c {
+
+	private val platformCrc = if (SDK_INT >= VERSION_CODES.UPSIDE_DOWN_CAKE) PlatformCrc32c() else null
+	private var crc = 0xFFFFFFFF.toInt()
+	private var scratch: ByteArray? = null
+
+	companion object {
+
+		/** Reflected CRC32C (Castagnoli) polynomial. */
+		const val POLYNOMIAL = 0x82F63B78.toInt()
+
+		/** Bytes copied out of a direct buffer per step of the portable implementation. */
+		private const val SCRATCH_SIZE = 8 * 1024
+
+		/** Eight lookup tables of 256 entries, for slicing-by-8. */
+		private val TABLES: IntArray by lazy { buildTables() }
+
+		private fun buildTables(): IntArray {
+			val tables = IntArray(8 * 256)
+			for (index in 0 until 256) {
+				var value = index
+				repeat(8) { value = if (value and 1 != 0) (value ushr 1) xor POLYNOMIAL else value ushr 1 }
+				tables[index] = value
+			}
+			for (index in 0 until 256) {
+				var value = tables[index]
+				for (slice in 1 until 8) {
+					value = (value ushr 8) xor tables[value and 0xFF]
+					tables[slice * 256 + index] = value
+				}
+			}
+			return tables
+		}
+	}
+
+	/** CRC32C of everything hashed since creation or the last [reset]. */
+	val value: Long
+		get() = platformCrc?.value ?: (crc.inv().toLong() and 0xFFFFFFFFL)
+
+	/**
+	 * Adds the remaining bytes of [buffer]. The buffer's position is advanced to its limit,
+	 * like [CRC32C.update] does.
+	 */
+	fun update(buffer: ByteBuffer) {
+		platformCrc?.let {
+			it.update(buffer)
+			return
+		}
+		if (buffer.hasArray()) {
+			update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+			buffer.position(buffer.limit())
+			return
+		}
+		val chunk = scratch ?: ByteArray(SCRATCH_SIZE).also { scratch = it }
+		while (buffer.hasRemaining()) {
+			val length = minOf(chunk.size, buffer.remaining())
+			buffer.get(chunk, 0, length)
+			update(chunk, 0, length)
+		}
+	}
+
+	/** Adds [length] bytes of [bytes] starting at [offset]. */
+	fun update(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset) {
+		platformCrc?.let {
+			it.update(bytes, offset, length)
+			return
+		}
+		val tables = TABLES
+		var value = crc
+		var position = offset
+		val end = offset + length
+		while (end - position >= 8) {
+			val low = value xor ((bytes[position].toInt() and 0xFF) or
+				((bytes[position + 1].toInt() and 0xFF) shl 8) or
+				((bytes[position + 2].toInt() and 0xFF) shl 16) or
+				((bytes[position + 3].toInt() and 0xFF) shl 24))
+			value = tables[7 * 256 + (low and 0xFF)] xor
+				tables[6 * 256 + ((low ushr 8) and 0xFF)] xor
+				tables[5 * 256 + ((low ushr 16) and 0xFF)] xor
+				tables[4 * 256 + (low ushr 24)] xor
+				tables[3 * 256 + (bytes[position + 4].toInt() and 0xFF)] xor
+				tables[2 * 256 + (bytes[position + 5].toInt() and 0xFF)] xor
+				tables[256 + (bytes[position + 6].toInt() and 0xFF)] xor
+				tables[bytes[position + 7].toInt() and 0xFF]
+			position += 8
+		}
+		while (position < end) {
+			value = (value ushr 8) xor tables[(value xor bytes[position].toInt()) and 0xFF]
+			position++
+		}
+		crc = value
+	}
+
+	/** Starts over, as if nothing had been hashed. */
+	fun reset() {
+		platformCrc?.reset()
+		crc = 0xFFFFFFFF.toInt()
+	}
+
+	/** Holder of the API 34 class, so older devices never resolve it. */
+	@RequiresApi(VERSION_CODES.UPSIDE_DOWN_CAKE)
+	private class PlatformCrc32c {
+		private val checksum = CRC32C()
+
+		val value: Long
+			get() = checksum.value
+
+		fun update(buffer: ByteBuffer) = checksum.update(buffer)
+
+		fun update(bytes: ByteArray, offset: Int, length: Int) = checksum.update(bytes, offset, length)
+
+		fun reset() = checksum.reset()
+	}
+}
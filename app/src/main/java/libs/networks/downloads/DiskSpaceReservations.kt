@@ -0,0 +1,232 @@
+package libs.networks.downloads
+
+import android.content.Context
+import android.net.Uri
+import android.system.ErrnoException
+import android.system.Os
+import android.system.StructStat
+import android.system.StructStatVfs
+import androidx.documentfile.provider.DocumentFile
+import libs.process.LogHelperUtils
+import java.io.File
+import java.io.IOException
+
+/**
+ * Admission control that keeps queued downloads from filling a volume half way through.
+ *
+ * Before a download starts, the bytes it still has to write are reserved on the volume of
+ * its destination. A download is admitted only if the free space covers its own bytes, the
+ * bytes every running download on the same volume still has to write, and a safety margin.
+ * One that does not fit next to the others is held in the queue until a reservation is
+ * released; one that does not fit even on its own is rejected right away, instead of
+ * failing at 95%.
+ *
+ * The bytes still to write are the expected size minus the blocks already allocated to the
+ * destination, so a preallocated or partly written file is not counted twice. Free space is
+ * read with `statvfs` at most once per [recheckIntervalMs] per volume, never per chunk.
+ *
+ * While downloads run, [findOverflowingReservations] is polled at the same rate, so one that
+ * no longer fits, because another app filled the volume meanwhile, is held before it fails.
+ *
+ * @param context The Android [Context] used to open SAF destinations.
+ * @param recheckIntervalMs Minimum time between two free-space reads of the same volume.
+ * @param minFreeBytes Space always left free for the system and other apps.
+ */
+class DiskSpaceReservations(
+	context: Context,
+	val recheckIntervalMs: Long = DEFAULT_RECHECK_INTERVAL_MS,
+	private val minFreeBytes: Long = DEFAULT_MIN_FREE_BYTES
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+	private val contentResolver = context.applicationContext.contentResolver
+	private val reservations = LinkedHashMap<Long, Reservation>()
+	private val freeSpaceSamples = HashMap<Long, FreeSpaceSample>()
+
+	companion object {
+		/** Default time a free-space reading is trusted. */
+		const val DEFAULT_RECHECK_INTERVAL_MS = 2000L
+
+		/** Default space never handed out to downloads (64 MiB). */
+		const val DEFAULT_MIN_FREE_BYTES = 64L * 1024 * 1024
+
+		/** `st_blocks` is always counted in 512-byte units. */
+		private const val STAT_BLOCK_SIZE = 512L
+	}
+
+	/**
+	 * Outcome of [tryReserve].
+	 */
+	enum class Admission {
+		/** The bytes are reserved and the download may start. */
+		ADMITTED,
+
+		/** The download only fits once running downloads release their reservations. */
+		HELD,
+
+		/** The download does not fit on its volume at all. */
+		REJECTED
+	}
+
+	/**
+	 * Reserves the bytes [taskId] still has to write. Downloads of unknown size, and
+	 * destinations whose volume cannot be inspected, are admitted without a reservation.
+	 *
+	 * @param taskId Id of the download task.
+	 * @param request The download about to be started.
+	 * @param expectedBytes Expected size of the finished file, or `-1` if unknown.
+	 * @return Whether the download may start now, later or not at all.
+	 */
+	@Synchronized
+	fun tryReserve(taskId: Long, request: DownloadRequest, expectedBytes: Long): Admission {
+		reservations.remove(taskId)
+		if (expectedBytes <= 0) return Admission.ADMITTED
+		val volume = inspect(request.destination) ?: return Admission.ADMITTED
+
+		val neededBytes = (expectedBytes - volume.allocatedBytes).coerceAtLeast(0L)
+		val usableBytes = getFreeBytes(volume) - minFreeBytes
+		val reservedBytes = reservations.values.filter { it.volumeId == volume.volumeId }.sumOf { it.byteCount }
+		return when {
+			neededBytes > usableBytes -> {
+				logger.d("Rejecting ${request.destinationName}: needs $neededBytes bytes, $usableBytes usable")
+				Admission.REJECTED
+			}
+
+			neededBytes + reservedBytes > usableBytes -> Admission.HELD
+			else -> {
+				reservations[taskId] = Reservation(volume.volumeId, request, expectedBytes, neededBytes)
+				Admission.ADMITTED
+			}
+		}
+	}
+
+	/**
+	 * Re-reads the free space of every volume with running downloads, and returns those that
+	 * no longer fit on it. Each reservation is first shrunk to the bytes its download still
+	 * has to write; while the rest does not fit, the most recently admitted downloads are
+	 * given up first. Meant to be called every [recheckIntervalMs] while downloads run; the
+	 * free space itself is read no more often than that.
+	 *
+	 * @return Ids of the downloads to hold until space is released, newest first.
+	 */
+	@Synchronized
+	fun findOverflowingReservations(): List<Long> {
+		val overflowingTaskIds = ArrayList<Long>()
+		reservations.entries.groupBy { it.value.volumeId }.forEach { (_, volumeReservations) ->
+			var volume: VolumeState? = null
+			volumeReservations.forEach { (_, reservation) ->
+				val destinationVolume = inspect(reservation.request.destination) ?: return@forEach
+				reservation.byteCount = (reservation.expectedBytes - destinationVolume.allocatedBytes).coerceAtLeast(0L)
+				volume = destinationVolume
+			}
+			val usableBytes = getFreeBytes(volume ?: return@forEach) - minFreeBytes
+			var remainingBytes = volumeReservations.sumOf { it.value.byteCount }
+			for ((taskId, reservation) in volumeReservations.asReversed()) {
+				if (remainingBytes <= usableBytes) break
+				logger.d("${reservation.request.destinationName} no longer fits: $remainingBytes bytes left, $usableBytes usable")
+				overflowingTaskIds.add(taskId)
+				remainingBytes -= reservation.byteCount
+			}
+		}
+		return overflowingTaskIds
+	}
+
+	/**
+	 * Releases the reservation of a finished, paused or removed download.
+	 *
+	 * @param taskId Id of the download task.
+	 */
+	@Synchronized
+	fun release(taskId: Long) {
+		val reservation = reservations.remove(taskId) ?: return
+		// Whatever the download wrote now shows up in the free space, so read it again.
+		freeSpaceSamples.remove(reservation.volumeId)
+	}
+
+	private fun getFreeBytes(volume: VolumeState): Long {
+		val currentTime = System.currentTimeMillis()
+		val sample = freeSpaceSamples[volume.volumeId]
+		if (sample != null && currentTime - sample.sampledAt < recheckIntervalMs) return sample.freeBytes
+
+		val freeBytes = volume.readFreeBytes()
+		freeSpaceSamples[volume.volumeId] = FreeSpaceSample(freeBytes, currentTime)
+		return freeBytes
+	}
+
+	/**
+	 * Finds the volume of [destination] and how many bytes it already occupies there. A file
+	 * that does not exist yet is looked up through its nearest existing parent directory.
+	 */
+	private fun inspect(destination: DocumentFile): VolumeState? {
+		val uri = destination.uri
+		return try {
+			if (uri.scheme == "file") {
+				val file = File(uri.path ?: return null)
+				val existingPath = generateSequence(file) { it.parentFile }.firstOrNull { it.exists() } ?: return null
+				val stat = Os.stat(existingPath.path)
+				val allocatedBytes = if (existingPath == file) stat.allocatedBytes() else 0L
+				VolumeState(stat.st_dev, allocatedBytes) { Os.statvfs(existingPath.path).availableBytes() }
+			} else {
+				contentResolver.openFileDescriptor(uri, "r")?.use { descriptor ->
+					val stat = Os.fstat(descriptor.fileDescriptor)
+					VolumeState(stat.st_dev, stat.allocatedBytes()) { readDocumentFreeBytes(uri) }
+				}
+			}
+		} catch (error: ErrnoException) {
+			logger.e("Could not inspect the volume of $uri", error)
+			null
+		} catch (error: IOException) {
+			logger.e("Could not inspect the volume of $uri", error)
+			null
+		} catch (error: SecurityException) {
+			logger.e("Could not inspect the volume of $uri", error)
+			null
+		}
+	}
+
+	/**
+	 * Reads the free space of the volume of a SAF document through a fresh descriptor, only
+	 * when the cached reading has expired. A document that cannot be read anymore counts as
+	 * unlimited, like a destination that cannot be inspected.
+	 */
+	private fun readDocumentFreeBytes(uri: Uri): Long {
+		return try {
+			contentResolver.openFileDescriptor(uri, "r")?.use { descriptor ->
+				Os.fstatvfs(descriptor.fileDescriptor).availableBytes()
+			} ?: Long.MAX_VALUE
+		} catch (error: ErrnoException) {
+			logger.e("Could not read the free space of $uri", error)
+			Long.MAX_VALUE
+		} catch (error: IOException) {
+			logger.e("Could not read the free space of $uri", error)
+			Long.MAX_VALUE
+		} catch (error: SecurityException) {
+			logger.e("Could not read the free space of $uri", error)
+			Long.MAX_VALUE
+		}
+	}
+
+	private fun StructStat.allocatedBytes(): Long = st_blocks * STAT_BLOCK_SIZE
+
+	private fun StructStatVfs.availableBytes(): Long = f_bavail * f_frsize
+
+	/**
+	 * Volume of one destination, identified by its device id, and the space the destination
+	 * already holds on it. Free space is only read through [readFreeBytes] when needed.
+	 */
+	private class VolumeState(
+		val volumeId: Long,
+		val allocatedBytes: Long,
+		val readFreeBytes: () -> Long
+	)
+
+	/** Bytes held for one download; [byteCount] shrinks as the download writes. */
+	private class Reservation(
+		val volumeId: Long,
+		val request: DownloadRequest,
+		val expectedBytes: Long,
+		var byteCount: Long
+	)
+
+	private class FreeSpaceSample(val freeBytes: Long, val sampledAt: Long)
+}
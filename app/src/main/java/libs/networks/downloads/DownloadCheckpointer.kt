@@ -0,0 +1,242 @@
+package libs.networks.downloads
+
+import core.bases.GlobalApplication.Companion.globalDatabaseHelper
+import core.database.DownloadStatus
+import core.database.GlobalDownloadSegment
+import core.database.GlobalDownloadTask
+import kotlinx.coroutines.delay
+import libs.process.LogHelperUtils
+import java.io.IOException
+import java.nio.channels.FileChannel
+
+/**
+ * Persists the progress of a [SegmentedDownloader] run into ObjectBox so the download can
+ * continue from the last committed byte after a network drop, process death or reboot.
+ *
+ * A checkpoint only ever records bytes that are durably on disk: the per-segment offsets are
+ * captured first, the file is then synced with [FileChannel.force], and only after that are
+ * the captured offsets stored. Flushes happen at most once per [flushIntervalMs], so the
+ * database and the flash are not hammered on every network read.
+ *
+ * @param taskRecord The database record this download is checkpointed into.
+ * @param flushIntervalMs Minimum time between two periodic checkpoints.
+ */
+class DownloadCheckpointer(
+	val taskRecord: GlobalDownloadTask,
+	private val flushIntervalMs: Long = DEFAULT_FLUSH_INTERVAL_MS
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+	private val segmentRecords = HashMap<Int, GlobalDownloadSegment>()
+
+	companion object {
+		/** Default time between two periodic checkpoints. */
+		const val DEFAULT_FLUSH_INTERVAL_MS = 2000L
+
+		/**
+		 * Returns a checkpointer bound to the record of an earlier attempt at the same
+		 * destination file, or to a freshly created record if there is none.
+		 *
+		 * A record only carries over when it belongs to the same, unfinished download. A
+		 * completed record, or one left by a different URL, is cleared and reused for
+		 * [request], so its saved ranges are never applied to another file.
+		 *
+		 * @param request The download about to be started.
+		 * @return A checkpointer ready to be passed to [SegmentedDownloader.download].
+		 */
+		@JvmStatic
+		fun forRequest(request: DownloadRequest): DownloadCheckpointer {
+			val destinationKey = request.destinationKey
+			val existingRecord = globalDatabaseHelper.findDownloadTaskByDestination(destinationKey)
+			if (existingRecord != null && isSameDownload(existingRecord, request)) {
+				// Saved with the next status change; the caller's cookies are the freshest.
+				existingRecord.headers = DownloadRequest.formatHeaders(request.headers)
+				return DownloadCheckpointer(existingRecord)
+			}
+
+			val taskRecord = (existingRecord ?: GlobalDownloadTask(destinationPath = destinationKey)).apply {
+				url = request.url
+				headers = DownloadRequest.formatHeaders(request.headers)
+				fileName = request.destinationName
+				checksumTypes = ChecksumType.format(request.checksumTypes)
+				checksums = ""
+				sourcePageUrl = request.sourcePageUrl
+				formatId = request.formatId
+				engine = request.engine
+				status = DownloadStatus.QUEUED.toString()
+				errorMessage = ""
+			}
+			return DownloadCheckpointer(taskRecord).apply {
+				if (existingRecord != null) reset() else globalDatabaseHelper.saveDownloadTask(taskRecord)
+			}
+		}
+
+		/**
+		 * Whether [taskRecord] is an unfinished attempt at [request]. Extracted media is
+		 * matched by page and format, since its URL changes whenever it is refreshed.
+		 *
+		 * @param taskRecord The saved download.
+		 * @param request The download about to be started.
+		 */
+		@JvmStatic
+		fun isSameDownload(taskRecord: GlobalDownloadTask, request: DownloadRequest): Boolean {
+			if (taskRecord.status == DownloadStatus.COMPLETED.toString()) return false
+			if (taskRecord.engine != request.engine) return false
+			return if (request.isRefreshable) {
+				taskRecord.sourcePageUrl == request.sourcePageUrl && taskRecord.formatId == request.formatId
+			} else {
+				taskRecord.sourcePageUrl.isEmpty() && taskRecord.url == request.url
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the in-memory download state from the last checkpoint.
+	 *
+	 * The checkpoint is dropped when the destination no longer holds every committed byte,
+	 * e.g. because the partial file was deleted or truncated, as resuming would leave holes
+	 * that the restored checksums could not reveal.
+	 *
+	 * @param destinationLength Current length of the destination file.
+	 * @return The saved state, or null when nothing resumable was recorded (no checkpoint,
+	 *         unknown size, an open-ended single stream, or a damaged destination).
+	 */
+	fun restoreState(destinationLength: Long): DownloadState? {
+		val savedSegments = globalDatabaseHelper.getDownloadSegments(taskRecord.id)
+		if (taskRecord.totalBytes <= 0 || savedSegments.isEmpty()) return null
+		if (savedSegments.any { it.endOffset < 0 }) return null
+		val committedEnd = savedSegments.maxOf { it.startOffset + it.committedBytes }
+		if (destinationLength < committedEnd) {
+			logger.d("${taskRecord.fileName} is shorter than its checkpoint, starting over")
+			reset()
+			return null
+		}
+
+		val state = DownloadState(
+			taskRecord.totalBytes, taskRecord.eTag,
+			taskRecord.lastModified, taskRecord.isRangeSupported
+		)
+		savedSegments.forEach { record ->
+			segmentRecords[record.segmentIndex] = record
+			state.segments.add(
+				DownloadSegment(record.segmentIndex, record.startOffset, record.endOffset)
+					.apply {
+						downloadedBytes = record.committedBytes
+						if (record.committedCrc32c >= 0) {
+							crc32cProgress = Crc32cProgress(0L, 0L, record.committedCrc32c, record.committedBytes)
+						}
+					}
+			)
+		}
+		logger.d("Resuming ${taskRecord.fileName} from ${state.downloadedBytes} bytes")
+		return state
+	}
+
+	/**
+	 * Writes a checkpoint every [flushIntervalMs] until the calling coroutine is cancelled.
+	 */
+	suspend fun runPeriodicFlush(state: DownloadState, channel: FileChannel) {
+		while (true) {
+			delay(flushIntervalMs)
+			flush(state, channel)
+		}
+	}
+
+	/**
+	 * Syncs the file and stores the offsets that were written before the sync.
+	 *
+	 * @param state The live state of the download.
+	 * @param channel The channel the segments are written through.
+	 */
+	@Synchronized
+	fun flush(state: DownloadState, channel: FileChannel) {
+		if (state.segments.isEmpty()) return
+		val committedSegments = state.snapshotSegments()
+
+		try {
+			channel.force(false)
+		} catch (error: IOException) {
+			logger.e("Could not sync ${taskRecord.fileName}, skipping checkpoint", error)
+			return
+		}
+
+		val checkpointTime = System.currentTimeMillis()
+		val records = committedSegments.map { segment ->
+			segmentRecords.getOrPut(segment.index) {
+				GlobalDownloadSegment(segmentIndex = segment.index)
+			}.apply {
+				startOffset = segment.startOffset
+				endOffset = segment.endOffset
+				committedBytes = segment.downloadedBytes
+				committedCrc32c = segment.crc32c
+				updatedAt = checkpointTime
+			}
+		}
+
+		taskRecord.apply {
+			totalBytes = state.totalBytes
+			eTag = state.eTag
+			lastModified = state.lastModified
+			downloadedBytes = records.sumOf { it.committedBytes }
+			isRangeSupported = state.acceptsRanges
+		}
+		globalDatabaseHelper.saveDownloadCheckpoint(taskRecord, records)
+	}
+
+	/**
+	 * Stores the checksums computed while the file was written, on the task record for the
+	 * whole file and on each segment record for its own range.
+	 *
+	 * @param state The state of a completed download.
+	 */
+	@Synchronized
+	fun saveChecksums(state: DownloadState) {
+		taskRecord.checksums = ChecksumType.formatValues(state.checksums)
+		val records = state.segmentChecksums.mapNotNull { (index, checksums) ->
+			segmentRecords[index]?.apply { this.checksums = ChecksumType.formatValues(checksums) }
+		}
+		globalDatabaseHelper.saveDownloadCheckpoint(taskRecord, records)
+	}
+
+	/**
+	 * Records the URL and headers a download continues with after its previous URL expired,
+	 * so a resume after a restart does not start with the dead URL or stale cookies.
+	 *
+	 * @param request The request with the freshly extracted URL.
+	 */
+	@Synchronized
+	fun updateUrl(request: DownloadRequest) {
+		taskRecord.url = request.url
+		taskRecord.headers = DownloadRequest.formatHeaders(request.headers)
+		globalDatabaseHelper.saveDownloadTask(taskRecord)
+	}
+
+	/**
+	 * Drops every saved range, used when the remote file no longer matches the checkpoint.
+	 */
+	@Synchronized
+	fun reset() {
+		globalDatabaseHelper.removeDownloadSegments(taskRecord.id)
+		segmentRecords.clear()
+		taskRecord.apply {
+			totalBytes = -1L
+			downloadedBytes = 0L
+			eTag = ""
+			lastModified = ""
+		}
+		globalDatabaseHelper.saveDownloadTask(taskRecord)
+	}
+
+	/**
+	 * Updates the status of the task record.
+	 *
+	 * @param status The new status.
+	 * @param errorMessage Reason of a failure, empty otherwise.
+	 */
+	@Synchronized
+	fun markStatus(status: DownloadStatus, errorMessage: String = "") {
+		taskRecord.status = status.toString()
+		taskRecord.errorMessage = errorMessage
+		globalDatabaseHelper.saveDownloadTask(taskRecord)
+	}
+}
@@ -0,0 +1,246 @@
+package libs.networks.downloads
+
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * Integrity checksums that can be computed while a download is written.
+ *
+ * @property algorithm Name of the algorithm as used by the JDK.
+ */
+enum class ChecksumType(val algorithm: String) {
+	SHA_256("SHA-256"),
+	MD5("MD5"),
+	CRC32C("CRC32C");
+
+	/**
+	 * Whether checksums of adjacent ranges can be merged into the checksum of the whole
+	 * file. Only true for CRC32C; cryptographic digests have to see the bytes in order.
+	 */
+	val isCombinable: Boolean
+		get() = this == CRC32C
+
+	companion object {
+
+		/**
+		 * Parses a value written by [format], ignoring unknown names.
+		 * @param value Comma-separated type names, e.g. `SHA_256,CRC32C`.
+		 */
+		@JvmStatic
+		fun parseSet(value: String): Set<ChecksumType> {
+			return value.split(',').mapNotNull { name -> entries.firstOrNull { it.name == name.trim() } }.toSet()
+		}
+
+		/**
+		 * Serializes a selection for storage in the database.
+		 * @param types The selected types.
+		 */
+		@JvmStatic
+		fun format(types: Set<ChecksumType>): String = types.joinToString(",") { it.name }
+
+		/**
+		 * Serializes computed checksums as `TYPE:hex` pairs, e.g. `CRC32C:1a2b3c4d`.
+		 * @param checksums Hex checksums by type.
+		 */
+		@JvmStatic
+		fun formatValues(checksums: Map<ChecksumType, String>): String {
+			return checksums.entries.joinToString(",") { (type, value) -> "${type.name}:$value" }
+		}
+	}
+}
+
+/**
+ * Running checksums of one download segment, fed with every chunk as it is written, so the
+ * file never has to be read back from flash to be verified.
+ *
+ * Each segment is only written by the connection that owns it, so updates need no locking.
+ * A CRC32C can be continued from a value saved at a checkpoint with [restoreCrc32c], so a
+ * resumed CRC-only download does not need to read its committed bytes back.
+ *
+ * @param types The checksums to compute.
+ */
+class SegmentChecksums(private val types: Set<ChecksumType>) {
+
+	private val messageDigests = types.filterNot { it == ChecksumType.CRC32C }
+		.associateWith { MessageDigest.getInstance(it.algorithm) }
+	private val crc32c = if (ChecksumType.CRC32C in types) Crc32c() else null
+	private var finishedChecksums: Map<ChecksumType, String>? = null
+	private var crc32cPrefixValue = 0L
+	private var crc32cPrefixLength = 0L
+	private var hashedBytes = 0L
+
+	companion object {
+
+		/**
+		 * Merges the checksums of consecutive segments into the checksums of the whole file.
+		 *
+		 * CRC32C values are combined exactly from the per-segment values and lengths, for any
+		 * number of segments. Cryptographic digests are only reported when the file was written
+		 * as one segment, since they cannot be merged; their per-segment values still are.
+		 *
+		 * @param orderedSegments Checksums and byte length of every segment, in file order.
+		 * @return Hex checksums of the whole file, by type.
+		 */
+		@JvmStatic
+		fun combine(orderedSegments: List<Pair<SegmentChecksums, Long>>): Map<ChecksumType, String> {
+			if (orderedSegments.isEmpty()) return emptyMap()
+			if (orderedSegments.size == 1) return orderedSegments.first().first.finish()
+
+			val types = orderedSegments.first().first.types
+			if (types.none { it.isCombinable }) return emptyMap()
+			var fileCrc = 0L
+			orderedSegments.forEachIndexed { position, (checksums, length) ->
+				val segmentCrc = checksums.getCrc32cProgress()?.combinedValue() ?: 0L
+				fileCrc = if (position == 0) segmentCrc else combineCrc32c(fileCrc, segmentCrc, length)
+			}
+			return mapOf(ChecksumType.CRC32C to "%08x".format(fileCrc))
+		}
+
+		/** Reflected CRC32C (Castagnoli) polynomial. */
+		private const val CRC32C_POLYNOMIAL = 0x82F63B78L
+
+		/**
+		 * Returns the CRC of `A + B` given the CRCs of `A` and `B` and the length of `B`,
+		 * by appending `length` zero bits to `crcA` through GF(2) matrix squaring, the same
+		 * way zlib's `crc32_combine` does for plain CRC32.
+		 */
+		@JvmStatic
+		fun combineCrc32c(crcA: Long, crcB: Long, lengthB: Long): Long {
+			if (lengthB <= 0) return crcA
+			val even = LongArray(32)
+			val odd = LongArray(32)
+
+			odd[0] = CRC32C_POLYNOMIAL
+			var row = 1L
+			for (n in 1 until 32) {
+				odd[n] = row
+				row = row shl 1
+			}
+			squareMatrix(even, odd)
+			squareMatrix(odd, even)
+
+			var crc = crcA
+			var remaining = lengthB
+			while (true) {
+				squareMatrix(even, odd)
+				if (remaining and 1L != 0L) crc = multiplyMatrix(even, crc)
+				remaining = remaining shr 1
+				if (remaining == 0L) break
+
+				squareMatrix(odd, even)
+				if (remaining and 1L != 0L) crc = multiplyMatrix(odd, crc)
+				remaining = remaining shr 1
+				if (remaining == 0L) break
+			}
+			return (crc xor crcB) and 0xFFFFFFFFL
+		}
+
+		private fun multiplyMatrix(matrix: LongArray, vector: Long): Long {
+			var sum = 0L
+			var remaining = vector
+			var index = 0
+			while (remaining != 0L) {
+				if (remaining and 1L != 0L) sum = sum xor matrix[index]
+				remaining = remaining ushr 1
+				index++
+			}
+			return sum
+		}
+
+		private fun squareMatrix(square: LongArray, matrix: LongArray) {
+			for (n in 0 until 32) square[n] = multiplyMatrix(matrix, matrix[n])
+		}
+	}
+
+	/**
+	 * Adds the remaining bytes of [buffer] to every checksum. The buffer position is left
+	 * unchanged, so the same chunk can still be handed to the file afterwards.
+	 */
+	fun update(buffer: ByteBuffer) {
+		val startPosition = buffer.position()
+		hashedBytes += buffer.remaining()
+		messageDigests.values.forEach { digest ->
+			buffer.position(startPosition)
+			digest.update(buffer)
+		}
+		crc32c?.let {
+			buffer.position(startPosition)
+			it.update(buffer)
+		}
+		buffer.position(startPosition)
+	}
+
+	/** Whether the checksums can be continued from a saved CRC32C alone. */
+	val isCrc32cOnly: Boolean
+		get() = types == setOf(ChecksumType.CRC32C)
+
+	/**
+	 * Continues the CRC32C from a value saved at a checkpoint instead of re-reading the
+	 * bytes it covers. Only meaningful when [isCrc32cOnly].
+	 *
+	 * @param value CRC32C of the first [length] bytes of the segment.
+	 * @param length Number of bytes the saved value covers.
+	 */
+	fun restoreCrc32c(value: Long, length: Long) {
+		reset()
+		crc32cPrefixValue = value
+		crc32cPrefixLength = length
+	}
+
+	/**
+	 * Captures the CRC32C of everything hashed so far, for storing in a checkpoint.
+	 *
+	 * @return The current progress, or null if CRC32C is not computed.
+	 */
+	fun getCrc32cProgress(): Crc32cProgress? {
+		val checksum = crc32c ?: return null
+		return Crc32cProgress(crc32cPrefixValue, crc32cPrefixLength, checksum.value, hashedBytes)
+	}
+
+	/** Drops everything hashed so far, e.g. when a segment restarts from its first byte. */
+	fun reset() {
+		messageDigests.values.forEach { it.reset() }
+		crc32c?.reset()
+		finishedChecksums = null
+		crc32cPrefixValue = 0L
+		crc32cPrefixLength = 0L
+		hashedBytes = 0L
+	}
+
+	/**
+	 * Completes the checksums of this segment. Later calls return the same values.
+	 *
+	 * @return Hex checksums by type.
+	 */
+	fun finish(): Map<ChecksumType, String> {
+		finishedChecksums?.let { return it }
+		val checksums = LinkedHashMap<ChecksumType, String>()
+		types.forEach { type ->
+			checksums[type] = if (type == ChecksumType.CRC32C) "%08x".format(getCrc32cProgress()?.combinedValue() ?: 0L)
+			else messageDigests.getValue(type).digest().joinToString("") { "%02x".format(it) }
+		}
+		finishedChecksums = checksums
+		return checksums
+	}
+}
+
+/**
+ * CRC32C of the leading bytes of a segment, split into a restored prefix and the part hashed
+ * since. Kept as raw parts so publishing it after every chunk costs no combine step.
+ */
+class Crc32cProgress(
+	private val prefixValue: Long,
+	private val prefixLength: Long,
+	private val value: Long,
+	private val length: Long
+) {
+
+	/** Number of leading bytes of the segment covered by this CRC. */
+	val byteCount: Long
+		get() = prefixLength + length
+
+	/** CRC32C of all [byteCount] bytes. */
+	fun combinedValue(): Long {
+		return if (prefixLength == 0L) value else SegmentChecksums.combineCrc32c(prefixValue, value, length)
+	}
+}
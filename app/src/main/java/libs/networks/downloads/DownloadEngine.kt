@@ -0,0 +1,26 @@
+package libs.networks.downloads
+
+import java.io.IOException
+
+/**
+ * A way of running a queued download other than the [SegmentedDownloader], such as the
+ * native HLS engine or yt-dlp's own downloader.
+ *
+ * Engines are registered on the [DownloadQueue] under the name carried by
+ * [DownloadRequest.engine], which is stored with the task record, so a restored download
+ * runs with the same engine as before. The queue applies its concurrency caps and disk
+ * space admission, records the task status and keeps the download service in the
+ * foreground, whichever engine runs the bytes.
+ */
+fun interface DownloadEngine {
+
+	/**
+	 * Downloads [request] into its destination, suspending until the file is complete.
+	 * Cancelling the caller must stop the transfer; a later call starts it again.
+	 *
+	 * @param request The download to run.
+	 * @param progressListener Listener of the progress hub the download reports to.
+	 * @throws IOException If the download fails.
+	 */
+	suspend fun download(request: DownloadRequest, progressListener: DownloadProgressListener)
+}
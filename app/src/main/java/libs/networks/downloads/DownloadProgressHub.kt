@@ -0,0 +1,159 @@
+package libs.networks.downloads
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Single source of download progress for the UI, notifications and anything else that
+ * wants to observe running transfers.
+ *
+ * Connections report every chunk through [listenerFor], which only stores two numbers in a
+ * per-task counter: no lock, no allocation and no thread hop. A publisher coroutine turns
+ * the counters into one immutable snapshot at most once per [publishIntervalMs] and only
+ * when something changed, and exposes it as a conflated [StateFlow]. However many downloads
+ * run in parallel, collectors therefore see at most one update per frame, and the main
+ * looper is never flooded with per-chunk callbacks.
+ *
+ * Usage:
+ * ```
+ * lifecycleScope.launch {
+ *     globalDownloadProgressHub.progress.collect { snapshot -> adapter.submit(snapshot.values) }
+ * }
+ * ```
+ *
+ * @param publishIntervalMs Minimum time between two published snapshots.
+ */
+class DownloadProgressHub(private val publishIntervalMs: Long = FRAME_INTERVAL_MS) {
+
+	companion object {
+		/** One frame at 60 Hz. */
+		const val FRAME_INTERVAL_MS = 16L
+
+		/** Window over which the reported speed is averaged. */
+		private const val SPEED_WINDOW_MS = 1000L
+	}
+
+	private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+	private val counters = ConcurrentHashMap<Long, TaskCounter>()
+	private val isPublishPending = AtomicBoolean(false)
+	private val publishRequests = Channel<Unit>(Channel.CONFLATED)
+	private val snapshots = MutableStateFlow<Map<Long, DownloadProgress>>(emptyMap())
+
+	/** Latest progress of every tracked download, keyed by task id. */
+	val progress: StateFlow<Map<Long, DownloadProgress>> = snapshots.asStateFlow()
+
+	init {
+		scope.launch {
+			while (true) {
+				publishRequests.receive()
+				isPublishPending.set(false)
+				publish()
+				delay(publishIntervalMs)
+			}
+		}
+	}
+
+	/**
+	 * Returns the listener a download of [taskId] reports its bytes to.
+	 *
+	 * @param taskId Id of the download task.
+	 * @return A listener that is cheap enough to be called for every chunk.
+	 */
+	fun listenerFor(taskId: Long): DownloadProgressListener {
+		val counter = counters.getOrPut(taskId) { TaskCounter() }
+		return DownloadProgressListener { downloadedBytes, totalBytes ->
+			counter.downloadedBytes = downloadedBytes
+			counter.totalBytes = totalBytes
+			requestPublish()
+		}
+	}
+
+	/**
+	 * Stops tracking a finished or removed download.
+	 *
+	 * @param taskId Id of the download task.
+	 */
+	fun remove(taskId: Long) {
+		if (counters.remove(taskId) != null) requestPublish()
+	}
+
+	/** Wakes the publisher once, no matter how many chunks arrive before it runs. */
+	private fun requestPublish() {
+		if (isPublishPending.compareAndSet(false, true)) {
+			publishRequests.trySend(Unit)
+		}
+	}
+
+	/** Builds and emits a snapshot; only ever runs on the publisher coroutine. */
+	private fun publish() {
+		val currentTime = System.currentTimeMillis()
+		val snapshot = HashMap<Long, DownloadProgress>(counters.size)
+		counters.forEach { (taskId, counter) ->
+			snapshot[taskId] = DownloadProgress(
+				taskId = taskId,
+				downloadedBytes = counter.downloadedBytes,
+				totalBytes = counter.totalBytes,
+				bytesPerSecond = counter.sampleSpeed(currentTime)
+			)
+		}
+		snapshots.value = snapshot
+	}
+
+	/**
+	 * Lock-free progress counter of one download. Byte counts are written by the
+	 * connections; the speed sample is only touched by the publisher.
+	 */
+	private class TaskCounter {
+		@Volatile
+		var downloadedBytes = 0L
+
+		@Volatile
+		var totalBytes = -1L
+
+		private var sampleBytes = -1L
+		private var sampleTime = 0L
+		private var bytesPerSecond = 0L
+
+		fun sampleSpeed(currentTime: Long): Long {
+			val currentBytes = downloadedBytes
+			if (sampleBytes < 0) {
+				sampleBytes = currentBytes
+				sampleTime = currentTime
+			} else if (currentTime - sampleTime >= SPEED_WINDOW_MS) {
+				bytesPerSecond = (currentBytes - sampleBytes) * 1000L / (currentTime - sampleTime)
+				sampleBytes = currentBytes
+				sampleTime = currentTime
+			}
+			return bytesPerSecond.coerceAtLeast(0L)
+		}
+	}
+}
+
+/**
+ * Immutable progress of one download as published by [DownloadProgressHub].
+ *
+ * @property taskId Id of the download task.
+ * @property downloadedBytes Bytes written so far.
+ * @property totalBytes Expected file size, or `-1` if unknown.
+ * @property bytesPerSecond Speed averaged over roughly the last second.
+ */
+data class DownloadProgress(
+	val taskId: Long,
+	val downloadedBytes: Long,
+	val totalBytes: Long,
+	val bytesPerSecond: Long
+) {
+
+	/** Completion in percent, or `-1` if the size is unknown. */
+	val percentage: Int
+		get() = if (totalBytes > 0) (downloadedBytes * 100 / totalBytes).toInt() else -1
+}
@@ -0,0 +1,622 @@
+package libs.networks.downloads
+
+import core.bases.GlobalApplication.Companion.globalDatabaseHelper
+import core.database.DownloadPriority
+import core.database.DownloadStatus
+import core.database.GlobalDownloadTask
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import libs.networks.UrlMetadataProber
+import libs.process.LogHelperUtils
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * App-wide download queue that decides which downloads may run at any given moment.
+ *
+ * Two caps apply at once: at most [maxConcurrentDownloads] transfers overall, and at most
+ * [maxDownloadsPerHost] against the same host, so a batch of twenty files from one CDN neither
+ * gets the app throttled nor leaves the link idle while other hosts are waiting. Waiting
+ * downloads are ordered by [DownloadPriority] first and queue position second, and the next
+ * eligible one is started the moment a slot frees up.
+ *
+ * When [diskSpace] is supplied, a download only starts once the bytes it still has to write
+ * are reserved on its volume next to those of the running downloads; one that cannot fit
+ * waits, and one that can never fit fails right away. While downloads run, the free space is
+ * re-checked every [DiskSpaceReservations.recheckIntervalMs], and a running download that no
+ * longer fits goes back to waiting before it fails. Sizes of new downloads are learned
+ * through [metadataProber] while they wait, usually from its cache. Scheduling passes run
+ * one at a time on a background thread, and the volume is inspected outside the queue's
+ * lock. Queue operations only change the in-memory state under the lock and leave the
+ * database writes to a single background lane, so callers on the main thread never wait
+ * for storage and the records are still written in order.
+ *
+ * Downloads run with the [SegmentedDownloader] unless their request names another
+ * [DownloadEngine] registered with [registerEngine], so HLS streams and yt-dlp downloads
+ * are held to the same caps, limits and foreground service as plain files.
+ *
+ * Every queued download is backed by a [GlobalDownloadTask] record, so the queue order,
+ * priorities and paused state survive process death; [restoreUnfinishedDownloads] rebuilds
+ * the queue from those records on the next launch.
+ *
+ * Usage:
+ * ```
+ * val taskId = globalDownloadQueue.enqueue(request, DownloadPriority.HIGH)
+ * globalDownloadQueue.pause(taskId)
+ * globalDownloadQueue.resume(taskId)
+ * ```
+ *
+ * @param downloader The engine the queued downloads are run with by default.
+ * @param progressHub Hub the running downloads report their progress to.
+ * @param maxConcurrentDownloads Initial global cap of running downloads.
+ * @param maxDownloadsPerHost Initial cap of running downloads against one host.
+ * @param diskSpace Optional disk-space admission control.
+ * @param metadataProber Optional prober used to learn the size of new downloads.
+ * @param bandwidthLimits Optional speed limits; a task limit is dropped once its download
+ *        is completed or removed.
+ */
+class DownloadQueue(
+	private val downloader: SegmentedDownloader,
+	private val progressHub: DownloadProgressHub,
+	maxConcurrentDownloads: Int = DEFAULT_MAX_CONCURRENT_DOWNLOADS,
+	maxDownloadsPerHost: Int = DEFAULT_MAX_DOWNLOADS_PER_HOST,
+	private val diskSpace: DiskSpaceReservations? = null,
+	private val metadataProber: UrlMetadataProber? = null,
+	private val bandwidthLimits: BandwidthLimits? = null
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+	private val scope = CoroutineScope(
+		SupervisorJob() + Dispatchers.IO + CoroutineExceptionHandler { _, error ->
+			logger.e("Download queue job failed", error)
+		}
+	)
+
+	/** Runs scheduling passes one at a time, in the order they were requested. */
+	private val schedulingDispatcher = Dispatchers.IO.limitedParallelism(1)
+
+	/** Writes task records one at a time, in the order the queue changed them. */
+	private val persistenceDispatcher = Dispatchers.IO.limitedParallelism(1)
+
+	/** Guards every field below; scheduling decisions are cheap, so one lock is enough. */
+	private val lock = Any()
+	private val entries = LinkedHashMap<Long, QueuedDownload>()
+	private val waitingEntries = ArrayList<QueuedDownload>()
+	private val runningJobs = HashMap<Long, Job>()
+	private val runningPerHost = HashMap<String, Int>()
+	private var nextQueuePosition = System.currentTimeMillis()
+	private var spaceMonitorJob: Job? = null
+	private val activeCounts = MutableStateFlow(0)
+	private val engines = ConcurrentHashMap<String, DownloadEngine>()
+
+	companion object {
+		/** Default number of downloads running at the same time. */
+		const val DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3
+
+		/** Default number of downloads running against one host at the same time. */
+		const val DEFAULT_MAX_DOWNLOADS_PER_HOST = 2
+	}
+
+	/**
+	 * Number of downloads that are running or waiting to run. The download service stays in
+	 * the foreground while this is above zero.
+	 */
+	val activeDownloads: StateFlow<Int> = activeCounts.asStateFlow()
+
+	/** Global cap of running downloads. Raising it starts waiting work right away. */
+	@Volatile
+	var maxConcurrentDownloads: Int = maxConcurrentDownloads.coerceAtLeast(1)
+		set(value) {
+			field = value.coerceAtLeast(1)
+			scheduleNext()
+		}
+
+	/** Cap of running downloads per host. Raising it starts waiting work right away. */
+	@Volatile
+	var maxDownloadsPerHost: Int = maxDownloadsPerHost.coerceAtLeast(1)
+		set(value) {
+			field = value.coerceAtLeast(1)
+			scheduleNext()
+		}
+
+	/**
+	 * Registers an engine the downloads whose [DownloadRequest.engine] is [name] run with.
+	 * Register engines before [restoreUnfinishedDownloads], so restored downloads find them.
+	 *
+	 * @param name Name stored with the downloads of the engine.
+	 * @param engine The engine.
+	 */
+	fun registerEngine(name: String, engine: DownloadEngine) {
+		engines[name] = engine
+	}
+
+	/**
+	 * Adds a download to the queue and starts it if capacity allows.
+	 *
+	 * Enqueuing a download that is already queued, running or stopped for the same
+	 * destination resumes it. A different download cannot take over a destination the queue
+	 * still knows; the old one has to be removed first, as its saved progress belongs to it.
+	 *
+	 * @param request The download to run.
+	 * @param priority Scheduling priority; higher levels jump ahead of lower ones.
+	 * @param expectedBytes Expected size of the file if the caller knows it, `-1` to have it
+	 *        probed for plain downloads. Used to reserve disk space.
+	 * The task record is looked up and saved on a background thread.
+	 *
+	 * @return The id of the task record, used by every other queue operation.
+	 * @throws DestinationInUseException If another download of the queue writes to the same
+	 *         destination.
+	 */
+	suspend fun enqueue(
+		request: DownloadRequest,
+		priority: DownloadPriority = DownloadPriority.NORMAL,
+		expectedBytes: Long = -1L
+	): Long = withContext(Dispatchers.IO) {
+		val (entry, isQueued) = synchronized(lock) {
+			val liveEntry = entries.values.firstOrNull { it.request.destinationKey == request.destinationKey }
+			if (liveEntry != null) {
+				val liveRecord = liveEntry.checkpointer.taskRecord
+				if (!DownloadCheckpointer.isSameDownload(liveRecord, request)) {
+					throw DestinationInUseException(
+						liveRecord.id, "${request.destinationName} is already being downloaded from ${liveRecord.url}"
+					)
+				}
+				return@synchronized liveEntry to false
+			}
+
+			// Only looked up once no live download owns the destination, so a record whose
+			// transfer is still running is never rewritten or reset.
+			val checkpointer = DownloadCheckpointer.forRequest(request)
+			val taskRecord = checkpointer.taskRecord
+			taskRecord.priority = priority.level
+			taskRecord.queuePosition = nextQueuePosition++
+			val newEntry = QueuedDownload(request, checkpointer)
+			newEntry.expectedBytes = expectedBytes
+			entries[taskRecord.id] = newEntry
+			insertWaiting(newEntry)
+			probeExpectedSize(newEntry)
+			newEntry to true
+		}
+		val taskId = entry.checkpointer.taskRecord.id
+		if (isQueued) {
+			persist { entry.checkpointer.markStatus(DownloadStatus.QUEUED) }
+			scheduleNext()
+		} else {
+			resume(taskId)
+		}
+		taskId
+	}
+
+	/**
+	 * Rebuilds the queue from the database after a restart. Downloads that were queued or
+	 * running when the process died are queued again; paused ones stay paused.
+	 */
+	fun restoreUnfinishedDownloads() {
+		val unfinishedTasks = globalDatabaseHelper.getUnfinishedDownloadTasks()
+			.sortedWith(compareByDescending<GlobalDownloadTask> { it.priority }.thenBy { it.queuePosition })
+
+		synchronized(lock) {
+			unfinishedTasks.forEach { taskRecord ->
+				if (entries.containsKey(taskRecord.id)) return@forEach
+				val request = DownloadRequest.fromTaskRecord(taskRecord) ?: return@forEach
+				val entry = QueuedDownload(request, DownloadCheckpointer(taskRecord))
+				entries[taskRecord.id] = entry
+				nextQueuePosition = maxOf(nextQueuePosition, taskRecord.queuePosition + 1)
+
+				when (DownloadStatus.valueOf(taskRecord.status)) {
+					DownloadStatus.QUEUED, DownloadStatus.RUNNING -> insertWaiting(entry)
+					else -> entry.status = DownloadStatus.valueOf(taskRecord.status)
+				}
+			}
+		}
+		logger.d("Restored ${unfinishedTasks.size} unfinished download(s)")
+		scheduleNext()
+	}
+
+	/**
+	 * Pauses a download. A running transfer is cancelled after its last checkpoint, so
+	 * [resume] continues from the committed bytes.
+	 *
+	 * @param taskId Id returned by [enqueue].
+	 */
+	fun pause(taskId: Long) {
+		synchronized(lock) {
+			val entry = entries[taskId] ?: return
+			when (entry.status) {
+				DownloadStatus.QUEUED -> {
+					waitingEntries.remove(entry)
+					entry.status = DownloadStatus.PAUSED
+					persist { entry.checkpointer.markStatus(DownloadStatus.PAUSED) }
+				}
+
+				DownloadStatus.RUNNING -> {
+					entry.status = DownloadStatus.PAUSED
+					runningJobs[taskId]?.cancel()
+				}
+
+				else -> return
+			}
+		}
+		scheduleNext()
+	}
+
+	/**
+	 * Puts a paused or failed download back into the queue at its priority.
+	 *
+	 * @param taskId Id returned by [enqueue].
+	 */
+	fun resume(taskId: Long) {
+		synchronized(lock) {
+			val entry = entries[taskId] ?: return
+			if (entry.status != DownloadStatus.PAUSED && entry.status != DownloadStatus.FAILED) return
+			if (runningJobs.containsKey(taskId)) {
+				// Still winding down from a pause; it is queued again once it has stopped.
+				entry.status = DownloadStatus.QUEUED
+				return
+			}
+			insertWaiting(entry)
+			persist { entry.checkpointer.markStatus(DownloadStatus.QUEUED) }
+		}
+		scheduleNext()
+	}
+
+	/**
+	 * Stops a download and forgets it, including its saved progress. A running transfer
+	 * drops its record once it has stopped, so a late checkpoint cannot bring it back.
+	 * The partially written file is left for the caller to delete.
+	 *
+	 * @param taskId Id returned by [enqueue].
+	 */
+	fun remove(taskId: Long) {
+		synchronized(lock) {
+			val entry = entries.remove(taskId) ?: return
+			waitingEntries.remove(entry)
+			entry.isRemoved = true
+			val runningJob = runningJobs[taskId]
+			if (runningJob != null) {
+				runningJob.cancel()
+				return
+			}
+			bandwidthLimits?.clearTaskLimit(entry.request.destinationKey)
+		}
+		persist { globalDatabaseHelper.removeDownloadTask(taskId) }
+		scheduleNext()
+	}
+
+	/**
+	 * Changes the priority of a download. A waiting download is re-sorted right away;
+	 * a running one keeps running and the new priority applies if it is queued again.
+	 *
+	 * @param taskId Id returned by [enqueue].
+	 * @param priority The new priority.
+	 */
+	fun setPriority(taskId: Long, priority: DownloadPriority) {
+		synchronized(lock) {
+			val entry = entries[taskId] ?: return
+			entry.checkpointer.taskRecord.priority = priority.level
+			if (waitingEntries.remove(entry)) insertWaiting(entry)
+			persist { globalDatabaseHelper.saveDownloadTask(entry.checkpointer.taskRecord) }
+		}
+		scheduleNext()
+	}
+
+	/**
+	 * Moves a waiting download to another place in the queue. It takes over the priority of
+	 * the download it lands in front of, so the queue stays sorted by priority.
+	 *
+	 * @param taskId Id returned by [enqueue].
+	 * @param newPosition Index among the waiting downloads, `0` being the next to start.
+	 */
+	fun move(taskId: Long, newPosition: Int) {
+		synchronized(lock) {
+			val entry = entries[taskId] ?: return
+			if (!waitingEntries.remove(entry)) return
+			val targetIndex = newPosition.coerceIn(0, waitingEntries.size)
+			val neighbour = waitingEntries.getOrNull(targetIndex) ?: waitingEntries.lastOrNull()
+			neighbour?.let { entry.checkpointer.taskRecord.priority = it.checkpointer.taskRecord.priority }
+			waitingEntries.add(targetIndex, entry)
+
+			val changedRecords = waitingEntries.map { waitingEntry ->
+				waitingEntry.checkpointer.taskRecord.apply { queuePosition = nextQueuePosition++ }
+			}
+			persist { globalDatabaseHelper.saveDownloadTasks(changedRecords) }
+		}
+		scheduleNext()
+	}
+
+	/**
+	 * Returns a snapshot of every download known to the queue: running ones first, then
+	 * waiting ones in the order they will start, then paused and failed ones.
+	 */
+	fun getSnapshot(): List<GlobalDownloadTask> {
+		synchronized(lock) {
+			val runningRecords = entries.values.filter { it.status == DownloadStatus.RUNNING }
+			val stoppedRecords = entries.values.filter {
+				it.status == DownloadStatus.PAUSED || it.status == DownloadStatus.FAILED
+			}
+			return (runningRecords + waitingEntries + stoppedRecords).map { it.checkpointer.taskRecord }
+		}
+	}
+
+	/**
+	 * Runs [write] on the persistence lane, after every write requested before it.
+	 */
+	private fun persist(write: () -> Unit) {
+		scope.launch(persistenceDispatcher) { write() }
+	}
+
+	/**
+	 * Requests a scheduling pass. Passes run on a background thread, one at a time, so the
+	 * callers, often on the main thread, never wait for the volume inspection.
+	 */
+	private fun scheduleNext() {
+		scope.launch(schedulingDispatcher) { runSchedulingPass() }
+	}
+
+	/**
+	 * Starts waiting downloads, in queue order, until either cap is reached. Downloads whose
+	 * host is saturated, or that do not fit on disk next to the running ones, are skipped,
+	 * not blocking the ones behind them.
+	 *
+	 * Disk space is reserved without holding [lock], as it costs `stat` calls and binder
+	 * round trips for SAF destinations. Only one pass runs at a time, so no other pass can
+	 * start downloads in between; the caps are still checked again before the start, since
+	 * they may have been lowered meanwhile.
+	 */
+	private fun runSchedulingPass() {
+		val skippedEntries = HashSet<QueuedDownload>()
+		while (true) {
+			val entry = synchronized(lock) {
+				if (runningJobs.size >= maxConcurrentDownloads) null
+				else waitingEntries.firstOrNull { it !in skippedEntries && !isHostSaturated(it) }
+			} ?: break
+
+			val admission = admit(entry)
+			val isRejected = synchronized(lock) {
+				val isStillWaiting = waitingEntries.contains(entry)
+				val canStart = isStillWaiting && runningJobs.size < maxConcurrentDownloads && !isHostSaturated(entry)
+				if (admission == DiskSpaceReservations.Admission.ADMITTED && !canStart) {
+					diskSpace?.release(entry.checkpointer.taskRecord.id)
+				}
+				when {
+					!isStillWaiting -> false
+					admission == DiskSpaceReservations.Admission.REJECTED -> {
+						waitingEntries.remove(entry)
+						entry.status = DownloadStatus.FAILED
+						true
+					}
+
+					admission == DiskSpaceReservations.Admission.ADMITTED && canStart -> {
+						waitingEntries.remove(entry)
+						start(entry)
+						false
+					}
+
+					else -> {
+						skippedEntries.add(entry)
+						false
+					}
+				}
+			}
+			if (isRejected) persist { entry.checkpointer.markStatus(DownloadStatus.FAILED, "Not enough storage space") }
+		}
+		synchronized(lock) {
+			activeCounts.value = runningJobs.size + waitingEntries.size
+		}
+	}
+
+	/** Whether the host of [entry] already runs its maximum; must be called while holding [lock]. */
+	private fun isHostSaturated(entry: QueuedDownload): Boolean {
+		return (runningPerHost[entry.host] ?: 0) >= maxDownloadsPerHost
+	}
+
+	/** Reserves disk space for [entry]; must not be called while holding [lock]. */
+	private fun admit(entry: QueuedDownload): DiskSpaceReservations.Admission {
+		val reservations = diskSpace ?: return DiskSpaceReservations.Admission.ADMITTED
+		val taskRecord = entry.checkpointer.taskRecord
+		val expectedBytes = if (taskRecord.totalBytes > 0) taskRecord.totalBytes else entry.expectedBytes
+		return reservations.tryReserve(taskRecord.id, entry.request, expectedBytes)
+	}
+
+	/**
+	 * Learns the size of a new download while it waits, so its disk space can be reserved
+	 * before it starts. A download that starts before the answer arrives is not held up.
+	 */
+	private fun probeExpectedSize(entry: QueuedDownload) {
+		val prober = metadataProber ?: return
+		if (diskSpace == null || entry.checkpointer.taskRecord.totalBytes > 0 || entry.expectedBytes > 0) return
+		// Other engines are given a page or playlist URL, whose size says nothing.
+		if (entry.request.engine.isNotEmpty()) return
+		scope.launch {
+			val metadata = prober.probe(entry.request.url, entry.request.headers)
+			if (metadata.isAccessible) entry.expectedBytes = metadata.contentLength
+		}
+	}
+
+	/** Launches [entry]; must be called while holding [lock]. */
+	private fun start(entry: QueuedDownload) {
+		val taskId = entry.checkpointer.taskRecord.id
+		entry.syncUrl()
+		entry.status = DownloadStatus.RUNNING
+		runningPerHost[entry.host] = (runningPerHost[entry.host] ?: 0) + 1
+		startSpaceMonitor()
+		runningJobs[taskId] = scope.launch {
+			try {
+				val progressListener = progressHub.listenerFor(taskId)
+				if (entry.request.engine.isEmpty()) {
+					downloader.download(entry.request, progressListener, entry.checkpointer)
+				} else {
+					runEngine(entry, progressListener)
+				}
+				entry.status = DownloadStatus.COMPLETED
+			} catch (error: CancellationException) {
+				throw error
+			} catch (error: Exception) {
+				// Cancelling a call mid-read can surface as an IOException instead of a
+				// cancellation, so only a download nobody stopped counts as failed.
+				if (entry.status == DownloadStatus.RUNNING) {
+					logger.e("Download of ${entry.request.url} failed", error)
+					entry.status = DownloadStatus.FAILED
+					// The engine records its own I/O failures; anything else is recorded here.
+					if (error !is IOException) {
+						entry.checkpointer.markStatus(DownloadStatus.FAILED, error.message ?: error.toString())
+					}
+				}
+			} finally {
+				onFinished(taskId, entry)
+			}
+		}
+	}
+
+	/**
+	 * Runs [entry] with its registered engine, recording the task status the way the
+	 * [SegmentedDownloader] records its own.
+	 */
+	private suspend fun runEngine(entry: QueuedDownload, progressListener: DownloadProgressListener) {
+		val request = entry.request
+		val checkpointer = entry.checkpointer
+		try {
+			val engine = engines[request.engine] ?: throw IOException("No download engine named ${request.engine}")
+			checkpointer.markStatus(DownloadStatus.RUNNING)
+			engine.download(request, progressListener)
+			checkpointer.markStatus(DownloadStatus.COMPLETED)
+		} catch (error: CancellationException) {
+			checkpointer.markStatus(DownloadStatus.PAUSED)
+			throw error
+		} catch (error: IOException) {
+			checkpointer.markStatus(DownloadStatus.FAILED, error.message ?: error.toString())
+			throw error
+		}
+	}
+
+	/**
+	 * Starts re-checking the free space of running downloads, unless it already runs; must
+	 * be called while holding [lock].
+	 */
+	private fun startSpaceMonitor() {
+		val reservations = diskSpace ?: return
+		if (spaceMonitorJob?.isActive == true) return
+		spaceMonitorJob = scope.launch {
+			while (true) {
+				delay(reservations.recheckIntervalMs)
+				synchronized(lock) {
+					if (runningJobs.isEmpty()) {
+						spaceMonitorJob = null
+						return@launch
+					}
+				}
+				reservations.findOverflowingReservations().forEach { holdForSpace(it) }
+			}
+		}
+	}
+
+	/**
+	 * Stops a running download that no longer fits on its volume and queues it again, where
+	 * admission holds it until enough space is released. Its progress is kept.
+	 */
+	private fun holdForSpace(taskId: Long) {
+		synchronized(lock) {
+			val entry = entries[taskId] ?: return
+			if (entry.status != DownloadStatus.RUNNING) return
+			logger.d("Holding ${entry.request.destinationName} until there is space for it")
+			entry.status = DownloadStatus.QUEUED
+			runningJobs[taskId]?.cancel()
+		}
+	}
+
+	private fun onFinished(taskId: Long, entry: QueuedDownload) {
+		synchronized(lock) {
+			runningJobs.remove(taskId)
+			diskSpace?.release(taskId)
+			val hostCount = (runningPerHost[entry.host] ?: 1) - 1
+			if (hostCount > 0) runningPerHost[entry.host] = hostCount
+			else runningPerHost.remove(entry.host)
+			when {
+				entry.isRemoved -> {
+					progressHub.remove(taskId)
+					bandwidthLimits?.clearTaskLimit(entry.request.destinationKey)
+				}
+				entry.status == DownloadStatus.COMPLETED -> {
+					entries.remove(taskId)
+					progressHub.remove(taskId)
+					bandwidthLimits?.clearTaskLimit(entry.request.destinationKey)
+				}
+				entry.status == DownloadStatus.PAUSED -> persist { entry.checkpointer.markStatus(DownloadStatus.PAUSED) }
+				entry.status == DownloadStatus.RUNNING -> {
+					// Stopped without a pause, removal or error, e.g. by a cancelled scope.
+					entry.status = DownloadStatus.FAILED
+					persist { entry.checkpointer.markStatus(DownloadStatus.FAILED, "Download stopped unexpectedly") }
+				}
+				entry.status == DownloadStatus.QUEUED -> {
+					insertWaiting(entry)
+					persist { entry.checkpointer.markStatus(DownloadStatus.QUEUED) }
+				}
+			}
+		}
+		if (entry.isRemoved) persist { globalDatabaseHelper.removeDownloadTask(taskId) }
+		scheduleNext()
+	}
+
+	/**
+	 * Inserts [entry] behind every waiting download of the same or a higher priority;
+	 * must be called while holding [lock].
+	 */
+	private fun insertWaiting(entry: QueuedDownload) {
+		entry.status = DownloadStatus.QUEUED
+		val priority = entry.checkpointer.taskRecord.priority
+		val index = waitingEntries.indexOfFirst { it.checkpointer.taskRecord.priority < priority }
+		if (index < 0) waitingEntries.add(entry) else waitingEntries.add(index, entry)
+	}
+
+	/**
+	 * One download as seen by the queue. [request] and [host] only change in [syncUrl],
+	 * which is called while holding [lock] before the download starts.
+	 */
+	private class QueuedDownload(
+		request: DownloadRequest,
+		val checkpointer: DownloadCheckpointer
+	) {
+		@Volatile
+		var request: DownloadRequest = request
+			private set
+
+		@Volatile
+		var host: String = hostOf(request)
+			private set
+
+		/**
+		 * Takes over the URL and headers a previous run refreshed into the task record, so a
+		 * resume or retry does not start from the expired ones again.
+		 */
+		fun syncUrl() {
+			val recordedUrl = checkpointer.taskRecord.url
+			val recordedHeaders = DownloadRequest.parseHeaders(checkpointer.taskRecord.headers)
+			if (recordedUrl.isEmpty() || (recordedUrl == request.url && recordedHeaders == request.headers)) return
+			request = request.copy(url = recordedUrl, headers = recordedHeaders)
+			host = hostOf(request)
+		}
+
+		private fun hostOf(request: DownloadRequest): String = request.url.toHttpUrlOrNull()?.host.orEmpty()
+
+		@Volatile
+		var status: DownloadStatus = DownloadStatus.QUEUED
+
+		@Volatile
+		var isRemoved: Boolean = false
+
+		/** Size learned by a probe while waiting, `-1` until known. */
+		@Volatile
+		var expectedBytes: Long = -1L
+	}
+}
@@ -0,0 +1,159 @@
+package libs.networks.downloads
+
+import androidx.core.net.toUri
+import androidx.documentfile.provider.DocumentFile
+import core.bases.GlobalApplication.Companion.APP_INSTANCE
+import core.database.GlobalDownloadTask
+import libs.networks.URLUtilityKT
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.File
+import java.io.IOException
+
+/**
+ * Describes a single file transfer handled by [SegmentedDownloader].
+ *
+ * @property url The direct (already extracted) media or file URL.
+ * @property destination The file or SAF document the bytes are written into.
+ * @property headers Extra request headers such as `User-Agent`, `Referer` or `Cookie`.
+ * @property checksumTypes Checksums computed while the file is written.
+ * @property sourcePageUrl Page the media [url] was extracted from, empty for plain files.
+ * @property formatId Extractor id of the chosen media format, empty if not extracted.
+ * @property engine Name of the [DownloadEngine] the queue runs this download with, empty
+ *           for the [SegmentedDownloader].
+ */
+data class DownloadRequest(
+	val url: String,
+	val destination: DocumentFile,
+	val headers: Map<String, String> = emptyMap(),
+	val checksumTypes: Set<ChecksumType> = setOf(ChecksumType.CRC32C),
+	val sourcePageUrl: String = "",
+	val formatId: String = "",
+	val engine: String = ""
+) {
+
+	/**
+	 * Convenience constructor for downloads into a plain [File].
+	 */
+	constructor(
+		url: String,
+		destination: File,
+		headers: Map<String, String> = emptyMap(),
+		checksumTypes: Set<ChecksumType> = setOf(ChecksumType.CRC32C),
+		sourcePageUrl: String = "",
+		formatId: String = "",
+		engine: String = ""
+	) : this(url, DocumentFile.fromFile(destination), headers, checksumTypes, sourcePageUrl, formatId, engine)
+
+	companion object {
+
+		/**
+		 * Rebuilds the request of a download recorded in the database, e.g. to re-queue it
+		 * after a restart, including the headers and cookies it was sent with.
+		 *
+		 * @param taskRecord The saved download.
+		 * @return The request, or null if the destination URI cannot be resolved anymore.
+		 */
+		@JvmStatic
+		fun fromTaskRecord(taskRecord: GlobalDownloadTask): DownloadRequest? {
+			val destinationUri = taskRecord.destinationPath.toUri()
+			val destination = when (destinationUri.scheme) {
+				"file" -> DocumentFile.fromFile(File(destinationUri.path ?: return null))
+				"content" -> DocumentFile.fromSingleUri(APP_INSTANCE, destinationUri)
+				else -> null
+			} ?: return null
+			val checksumTypes = ChecksumType.parseSet(taskRecord.checksumTypes)
+			return DownloadRequest(
+				taskRecord.url, destination,
+				headers = parseHeaders(taskRecord.headers),
+				checksumTypes = checksumTypes,
+				sourcePageUrl = taskRecord.sourcePageUrl,
+				formatId = taskRecord.formatId,
+				engine = taskRecord.engine
+			)
+		}
+
+		/**
+		 * Serializes request headers for storage in the database, as a JSON object.
+		 * @param headers The headers by name.
+		 */
+		@JvmStatic
+		fun formatHeaders(headers: Map<String, String>): String {
+			return if (headers.isEmpty()) "" else JSONObject(headers).toString()
+		}
+
+		/**
+		 * Parses a value written by [formatHeaders], returning no headers if it is damaged.
+		 * @param value The stored JSON object, or an empty string.
+		 */
+		@JvmStatic
+		fun parseHeaders(value: String): Map<String, String> {
+			if (value.isEmpty()) return emptyMap()
+			return try {
+				val json = JSONObject(value)
+				json.keys().asSequence().associateWith { json.getString(it) }
+			} catch (error: JSONException) {
+				emptyMap()
+			}
+		}
+	}
+
+	/** Stable key of the destination, used to find earlier attempts of this download. */
+	val destinationKey: String
+		get() = destination.uri.toString()
+
+	/** Display name of the destination file. */
+	val destinationName: String
+		get() = destination.name ?: destinationKey.substringAfterLast('/')
+
+	/** Whether [url] was extracted from a page and can be extracted again once it expires. */
+	val isRefreshable: Boolean
+		get() = sourcePageUrl.isNotEmpty()
+}
+
+/**
+ * Callback used by [SegmentedDownloader] to report transferred bytes.
+ * It is invoked from the connection threads, so implementations must be thread-safe.
+ */
+fun interface DownloadProgressListener {
+
+	/**
+	 * @param downloadedBytes Total bytes written so far across all segments.
+	 * @param totalBytes Expected file size, or `-1` if the server did not report it.
+	 */
+	fun onProgress(downloadedBytes: Long, totalBytes: Long)
+}
+
+/**
+ * Raised when the server answers a download request with an unexpected HTTP status.
+ *
+ * @property statusCode The HTTP status code returned by the server.
+ */
+class DownloadHttpException(val statusCode: Int, message: String) : IOException(message) {
+
+	/**
+	 * Client errors other than timeouts and rate limiting will not go away on their own,
+	 * so retrying them only wastes a connection.
+	 */
+	val isRetryable: Boolean
+		get() = statusCode >= 500 || statusCode == 408 || statusCode == 429
+
+	/** Whether the status is how CDNs reject a signed URL whose lifetime ran out. */
+	val isUrlExpired: Boolean
+		get() = URLUtilityKT.isExpiredUrlStatus(statusCode)
+}
+
+/**
+ * Raised when the bytes on the server no longer line up with the ranges already on disk,
+ * e.g. because the file changed or the server stopped honoring `Range` between requests.
+ * Saved progress cannot be reused in that case and the download has to start over.
+ */
+class DownloadResumeException(message: String) : IOException(message)
+
+/**
+ * Raised when a download is queued into a destination that another download of the queue
+ * still writes to.
+ *
+ * @property taskId Id of the download that owns the destination.
+ */
+class DestinationInUseException(val taskId: Long, message: String) : IOException(message)
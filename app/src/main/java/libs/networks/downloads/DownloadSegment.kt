@@ -0,0 +1,116 @@
+package libs.networks.downloads
+
+/**
+ * A contiguous byte range of a remote file that is fetched over its own connection.
+ *
+ * Offsets are absolute positions inside the destination file and [endOffset] is inclusive,
+ * matching the semantics of the HTTP `Range` header. An [endOffset] of `-1` means the size
+ * is unknown and the segment runs until the server closes the stream.
+ *
+ * @property index Position of the segment in the download plan.
+ * @property startOffset First byte of the range.
+ * @property endOffset Last byte of the range (inclusive), or `-1` if unknown.
+ */
+class DownloadSegment(
+	val index: Int,
+	val startOffset: Long,
+	@Volatile var endOffset: Long
+) {
+
+	companion object {
+		/** Length of one throughput sample window. */
+		private const val SAMPLE_WINDOW_NANOS = 500_000_000L
+
+		/** Weight of the newest sample in the smoothed throughput. */
+		private const val SAMPLE_WEIGHT = 0.3
+	}
+
+	/** Number of bytes of this range already written to the destination file. */
+	@Volatile
+	var downloadedBytes: Long = 0L
+
+	/**
+	 * CRC32C of the leading bytes of this range, published after every chunk so checkpoints
+	 * can store it, or null if CRC32C is not computed.
+	 */
+	@Volatile
+	var crc32cProgress: Crc32cProgress? = null
+
+	/**
+	 * Smoothed transfer rate of this range in bytes per second, `0` until the first sample
+	 * window closes. Stalls count against it, which is what makes a lagging range visible.
+	 */
+	@Volatile
+	var bytesPerSecond: Double = 0.0
+		private set
+
+	@Volatile
+	private var sampleStartNanos = 0L
+
+	@Volatile
+	private var sampleBytes = 0L
+
+	/** Absolute file position of the next byte to fetch. */
+	val currentOffset: Long
+		get() = startOffset + downloadedBytes
+
+	/** Bytes still missing from this range, or `-1` if the range is open-ended. */
+	val remainingBytes: Long
+		get() = if (endOffset < 0) -1L else endOffset - currentOffset + 1
+
+	/** Whether every byte of a bounded range has been written. */
+	val isComplete: Boolean
+		get() = endOffset >= 0 && currentOffset > endOffset
+
+	/**
+	 * Expected seconds until this range completes at its current rate. A read that has been
+	 * blocked longer than one sample window drags the rate down right away, and ranges that
+	 * have not produced a sample yet report [Double.MAX_VALUE], so both are split first.
+	 */
+	val secondsRemaining: Double
+		get() {
+			val remaining = remainingBytes
+			if (remaining <= 0L) return 0.0
+			var rate = bytesPerSecond
+			val pendingNanos = System.nanoTime() - sampleStartNanos
+			if (sampleStartNanos != 0L && pendingNanos > SAMPLE_WINDOW_NANOS) {
+				rate = minOf(rate, sampleBytes * 1_000_000_000.0 / pendingNanos)
+			}
+			return if (rate > 0.0) remaining / rate else Double.MAX_VALUE
+		}
+
+	/**
+	 * Feeds a written chunk into the throughput estimate. Only the connection that owns
+	 * this segment calls it, so the sample window itself needs no locking.
+	 *
+	 * @param byteCount Bytes written by the last read.
+	 */
+	fun recordTransfer(byteCount: Int) {
+		val now = System.nanoTime()
+		if (sampleStartNanos == 0L) sampleStartNanos = now
+		sampleBytes += byteCount
+
+		val elapsedNanos = now - sampleStartNanos
+		if (elapsedNanos < SAMPLE_WINDOW_NANOS) return
+		val sample = sampleBytes * 1_000_000_000.0 / elapsedNanos
+		bytesPerSecond = if (bytesPerSecond == 0.0) sample
+		else bytesPerSecond * (1 - SAMPLE_WEIGHT) + sample * SAMPLE_WEIGHT
+		sampleStartNanos = now
+		sampleBytes = 0L
+	}
+
+	/**
+	 * Builds the `Range` header value requesting the bytes still missing from this segment.
+	 *
+	 * @return A value such as `bytes=1048576-2097151` or `bytes=1048576-` for open ranges.
+	 */
+	fun toRangeHeader(): String {
+		return if (endOffset < 0) "bytes=$currentOffset-"
+		else "bytes=$currentOffset-$endOffset"
+	}
+
+	override fun toString(): String {
+		return "DownloadSegment(index=$index, range=$startOffset-$endOffset, " +
+				"downloaded=$downloadedBytes)"
+	}
+}
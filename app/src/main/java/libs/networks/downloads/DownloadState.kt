@@ -0,0 +1,106 @@
+package libs.networks.downloads
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Live bookkeeping of one download: its byte ranges and the validators that identify the
+ * exact version of the remote file those ranges belong to.
+ *
+ * The segment list is read concurrently by the checkpoint writer while connections are
+ * still adding to it, hence the copy-on-write list. Ranges are only ever re-split through
+ * [splitSegment], and checkpoints are taken through [snapshotSegments]; both lock this
+ * state so a checkpoint never sees a shortened range without the range carved out of it.
+ *
+ * @property totalBytes Expected file size, or `-1` if unknown.
+ * @property eTag ETag reported by the server, or empty.
+ * @property lastModified Last-Modified reported by the server, or empty.
+ * @property acceptsRanges Whether the server honours `Range`, i.e. ranges may be split.
+ */
+class DownloadState(
+	@Volatile var totalBytes: Long = -1L,
+	@Volatile var eTag: String = "",
+	@Volatile var lastModified: String = "",
+	@Volatile var acceptsRanges: Boolean = false
+) {
+
+	/** Byte ranges of the file, in planning order. */
+	val segments: MutableList<DownloadSegment> = CopyOnWriteArrayList()
+
+	/** Hex checksums of the whole file, filled in once the download completed. */
+	@Volatile
+	var checksums: Map<ChecksumType, String> = emptyMap()
+
+	/** Hex checksums of every segment by segment index, filled in on completion. */
+	@Volatile
+	var segmentChecksums: Map<Int, Map<ChecksumType, String>> = emptyMap()
+
+	/** Bytes written so far across all segments. */
+	val downloadedBytes: Long
+		get() = segments.sumOf { it.downloadedBytes }
+
+	/** Whether every planned range has been written. */
+	val isComplete: Boolean
+		get() = segments.isNotEmpty() && segments.all { it.isComplete }
+
+	/**
+	 * Picks the validator sent in `If-Range` when resuming. Weak ETags are not allowed
+	 * there by RFC 9110, so those fall back to the Last-Modified date.
+	 *
+	 * @return The validator value, or null if the server sent none.
+	 */
+	fun getIfRangeValidator(): String? {
+		if (eTag.isNotEmpty() && !eTag.startsWith("W/")) return eTag
+		return lastModified.ifEmpty { null }
+	}
+
+	/**
+	 * Hands the tail of [segment] starting at [splitOffset] to a new segment. The new range
+	 * is published before the old one is shortened, so every byte stays owned by a range.
+	 *
+	 * @param segment The range being split, possibly still downloading.
+	 * @param splitOffset First byte of the new range; must lie inside the missing part.
+	 * @return The new segment covering `splitOffset..segment.endOffset`.
+	 */
+	@Synchronized
+	fun splitSegment(segment: DownloadSegment, splitOffset: Long): DownloadSegment {
+		val nextIndex = segments.maxOf { it.index } + 1
+		val tail = DownloadSegment(nextIndex, splitOffset, segment.endOffset)
+		segments.add(tail)
+		segment.endOffset = splitOffset - 1
+		return tail
+	}
+
+	/**
+	 * Captures the ranges and their progress as one consistent picture for a checkpoint.
+	 * When a segment publishes a CRC32C, its committed length is taken from that CRC, so the
+	 * saved value always covers exactly the saved bytes.
+	 *
+	 * @return `(index, startOffset, endOffset, downloadedBytes, crc32c)` of every segment.
+	 */
+	@Synchronized
+	fun snapshotSegments(): List<SegmentSnapshot> {
+		return segments.map { segment ->
+			val crcProgress = segment.crc32cProgress
+			val downloadedBytes = segment.downloadedBytes
+			if (crcProgress != null && crcProgress.byteCount <= downloadedBytes) {
+				SegmentSnapshot(
+					segment.index, segment.startOffset, segment.endOffset,
+					crcProgress.byteCount, crcProgress.combinedValue()
+				)
+			} else {
+				SegmentSnapshot(segment.index, segment.startOffset, segment.endOffset, downloadedBytes)
+			}
+		}
+	}
+
+	/**
+	 * Immutable copy of a [DownloadSegment] taken by [snapshotSegments].
+	 */
+	data class SegmentSnapshot(
+		val index: Int,
+		val startOffset: Long,
+		val endOffset: Long,
+		val downloadedBytes: Long,
+		val crc32c: Long = -1L
+	)
+}
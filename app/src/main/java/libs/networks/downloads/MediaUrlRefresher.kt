@@ -0,0 +1,32 @@
+package libs.networks.downloads
+
+/**
+ * Re-extracts the direct URL of a media download whose signed URL has expired.
+ *
+ * Extracted media URLs usually carry a signature that is only valid for a few hours, so a
+ * long or paused download can outlive its URL. When a range request is rejected as expired,
+ * [SegmentedDownloader] asks its refresher for a fresh URL of the same format and continues
+ * from the committed offsets once the new URL is confirmed to serve the same file.
+ *
+ * Usage:
+ * ```
+ * val refresher = MediaUrlRefresher { request ->
+ *     val freshUrl = extractor.extractFormatUrl(request.sourcePageUrl, request.formatId)
+ *     freshUrl?.let { request.copy(url = it) }
+ * }
+ * SegmentedDownloader(httpClient, urlRefresher = refresher)
+ * ```
+ */
+fun interface MediaUrlRefresher {
+
+	/**
+	 * Extracts a fresh URL for the media behind [request]. Called from a connection thread,
+	 * at most once at a time per download, and only for [DownloadRequest.isRefreshable] requests.
+	 *
+	 * @param request The download whose URL stopped working.
+	 * @return A copy of [request] with a new [DownloadRequest.url] and, if needed, new headers,
+	 *         or null if the media cannot be extracted anymore.
+	 * @throws java.io.IOException if the extraction fails.
+	 */
+	suspend fun refresh(request: DownloadRequest): DownloadRequest?
+}
@@ -0,0 +1,827 @@
+package libs.networks.downloads
+
+import core.bases.GlobalApplication.Companion.APP_INSTANCE
+import core.database.DownloadStatus
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import libs.files.DirectBufferPool
+import libs.files.FilePreallocator
+import libs.files.PositionalFileWriter
+import libs.files.WriteBehindLane
+import libs.process.LogHelperUtils
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.net.HttpURLConnection.HTTP_OK
+import java.net.HttpURLConnection.HTTP_PARTIAL
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Multi-connection HTTP download engine built on OkHttp.
+ *
+ * The remote file is split into byte ranges that are fetched in parallel, each over its own
+ * connection, and every range is written through one shared [PositionalFileWriter] straight
+ * into its final position inside the destination file or SAF document, so no merge step is
+ * needed afterwards. Network reads are coalesced into large block-aligned buffers from a
+ * shared [DirectBufferPool] and written behind the connections on a [WriteBehindLane], so
+ * reading never waits for the storage and no chunk allocates. The first request doubles as the
+ * range-support probe: when the server ignores `Range` and answers `200 OK`, that same
+ * response is simply streamed to disk as a single segment.
+ *
+ * Connections are scheduled by work stealing: each one tracks its throughput, and a
+ * connection that runs out of work splits the remaining bytes of the range expected to
+ * finish last and takes over its tail. A range stuck on a slow edge node therefore no
+ * longer holds the whole file back, and all connections finish at about the same time.
+ *
+ * The checksums selected in [DownloadRequest.checksumTypes] are fed from the same buffers the
+ * bytes are written from, one running digest per segment, and merged on completion into
+ * [DownloadState.checksums], so a finished file never has to be read back to be verified.
+ * Cryptographic digests such as SHA-256 cannot be merged from ranges, so a download that
+ * selects one is fetched over a single connection that hashes the file in order.
+ *
+ * When [bandwidthLimits] are supplied, every chunk is paced by the task, host and global
+ * [BandwidthLimiter]s of the request, and reads are kept small enough to flow smoothly.
+ *
+ * When a [DownloadCheckpointer] is supplied, progress is checkpointed to the database and a
+ * later call picks up every range from its last committed byte. Resumed requests carry an
+ * `If-Range` validator, so a file that changed on the server is detected and re-downloaded
+ * from scratch instead of being silently corrupted.
+ *
+ * Extracted media URLs expire. When a request is rejected the way CDNs reject an expired
+ * signature and a [urlRefresher] is supplied, the URL is extracted again once for all
+ * connections, the new URL's size and validators are checked against the bytes on disk, and
+ * every range simply continues from its current offset.
+ *
+ * Usage:
+ * ```
+ * val downloader = SegmentedDownloader(httpClient)
+ * val checkpointer = DownloadCheckpointer.forRequest(request)
+ * downloader.download(request, checkpointer = checkpointer) { downloaded, total ->
+ *     logger.d("Downloaded $downloaded of $total bytes")
+ * }
+ * ```
+ *
+ * @param httpClient The OkHttp client whose connection pool the segments share.
+ * @param maxConnections Upper bound of parallel range requests per file.
+ * @param minSegmentSize Ranges are never planned smaller than this many bytes.
+ * @param bandwidthLimits Optional speed limits applied to every transfer.
+ * @param readBufferSize Upper bound of a single network read.
+ * @param bufferPool Pool of the write buffers; shared, it caps write buffering app-wide.
+ * @param urlRefresher Optional source of fresh URLs for refreshable requests that expired.
+ */
+class SegmentedDownloader(
+	private val httpClient: OkHttpClient,
+	private val maxConnections: Int = DEFAULT_MAX_CONNECTIONS,
+	private val minSegmentSize: Long = DEFAULT_MIN_SEGMENT_SIZE,
+	private val bandwidthLimits: BandwidthLimits? = null,
+	private val readBufferSize: Int = DEFAULT_READ_BUFFER_SIZE,
+	private val bufferPool: DirectBufferPool = DirectBufferPool(),
+	private val urlRefresher: MediaUrlRefresher? = null
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+
+	/** Most bytes a connection can have read beyond its segment's committed offset. */
+	private val splitMargin = WRITE_SLOTS_PER_CONNECTION.toLong() * bufferPool.bufferSize
+
+	companion object {
+		/** Default number of parallel connections opened for one file. */
+		const val DEFAULT_MAX_CONNECTIONS = 8
+
+		/** Default lower bound for a planned range (1 MiB). */
+		const val DEFAULT_MIN_SEGMENT_SIZE = 1024L * 1024L
+
+		/** How many times a single range is re-requested before the download fails. */
+		const val MAX_SEGMENT_RETRIES = 5
+
+		/** Default upper bound of a single network read (64 KiB). */
+		const val DEFAULT_READ_BUFFER_SIZE = 64 * 1024
+
+		/** Write buffers one connection may have filling or queued at the same time. */
+		private const val WRITE_SLOTS_PER_CONNECTION = 3
+
+		/** Base back-off between two attempts of the same range. */
+		private const val RETRY_DELAY_MS = 1000L
+
+		/** A range is only split if both halves get at least this many bytes (512 KiB). */
+		private const val MIN_STOLEN_RANGE_SIZE = 512L * 1024L
+
+		/** Ranges expected to finish sooner than this are not worth a new connection. */
+		private const val MIN_SECONDS_TO_SPLIT = 1.0
+
+		/** How many times one run may replace an expired URL before giving up. */
+		private const val MAX_URL_REFRESHES = 3
+	}
+
+	/**
+	 * Downloads [request] into its destination file, suspending until every byte is written.
+	 *
+	 * @param request The URL, headers and destination of the transfer.
+	 * @param progressListener Optional listener notified after every written chunk.
+	 * @param checkpointer Optional checkpoint store used to resume and record progress.
+	 * @return The final state, including the segments the file was fetched with.
+	 * @throws IOException if the server rejects the request or a range keeps failing.
+	 */
+	suspend fun download(
+		request: DownloadRequest,
+		progressListener: DownloadProgressListener? = null,
+		checkpointer: DownloadCheckpointer? = null
+	): DownloadState = withContext(Dispatchers.IO) {
+		checkpointer?.markStatus(DownloadStatus.RUNNING)
+		try {
+			PositionalFileWriter.open(APP_INSTANCE, request.destination).use { writer ->
+				val state = resumeOrNull(request, writer, progressListener, checkpointer)
+					?: runFreshDownload(request, writer, progressListener, checkpointer)
+
+				if (state.totalBytes > 0 && writer.size() > state.totalBytes) {
+					writer.truncate(state.totalBytes)
+				}
+				checkpointer?.saveChecksums(state)
+				checkpointer?.markStatus(DownloadStatus.COMPLETED)
+				state
+			}
+		} catch (error: CancellationException) {
+			checkpointer?.markStatus(DownloadStatus.PAUSED)
+			throw error
+		} catch (error: IOException) {
+			checkpointer?.markStatus(DownloadStatus.FAILED, error.message ?: error.toString())
+			throw error
+		} finally {
+			bandwidthLimits?.release(request)
+		}
+	}
+
+	/**
+	 * Continues a checkpointed download. If the remote file turned out to have changed, the
+	 * saved ranges are discarded and null is returned so the caller starts over.
+	 */
+	private suspend fun resumeOrNull(
+		request: DownloadRequest,
+		writer: PositionalFileWriter,
+		progressListener: DownloadProgressListener?,
+		checkpointer: DownloadCheckpointer?
+	): DownloadState? {
+		if (checkpointer == null) return null
+		val savedState = checkpointer.restoreState(writer.size()) ?: return null
+		return try {
+			runDownload(createSession(request, savedState, writer, progressListener, checkpointer))
+			savedState
+		} catch (error: DownloadResumeException) {
+			logger.d("Saved progress is stale, restarting ${request.url}: ${error.message}")
+			checkpointer.reset()
+			null
+		}
+	}
+
+	/**
+	 * Downloads [request] from its first byte. A run whose remote file changed under it in a
+	 * way the bytes on disk cannot follow is started over once, from scratch.
+	 */
+	private suspend fun runFreshDownload(
+		request: DownloadRequest,
+		writer: PositionalFileWriter,
+		progressListener: DownloadProgressListener?,
+		checkpointer: DownloadCheckpointer?
+	): DownloadState {
+		val firstState = DownloadState()
+		try {
+			runDownload(createSession(request, firstState, writer, progressListener, checkpointer))
+			return firstState
+		} catch (error: DownloadResumeException) {
+			logger.d("Remote file changed mid-download, restarting ${request.url}: ${error.message}")
+			checkpointer?.reset()
+		}
+		return DownloadState().also { freshState ->
+			runDownload(createSession(request, freshState, writer, progressListener, checkpointer))
+		}
+	}
+
+	private fun createSession(
+		request: DownloadRequest,
+		state: DownloadState,
+		writer: PositionalFileWriter,
+		progressListener: DownloadProgressListener?,
+		checkpointer: DownloadCheckpointer?
+	): DownloadSession {
+		val limiters = bandwidthLimits?.limitersFor(request).orEmpty()
+		val writeLane = WriteBehindLane(writer, bufferPool)
+		// Only checksums that can be merged from ranges allow the file to be split.
+		val connectionCount = if (request.checksumTypes.all { it.isCombinable }) maxConnections else 1
+		return DownloadSession(request, state, writer, writeLane, limiters, checkpointer, progressListener, connectionCount)
+	}
+
+	/**
+	 * Runs all segment workers of [session] while periodically checkpointing their progress,
+	 * and writes a final checkpoint however the run ends. The write lane outlives a
+	 * cancellation until the workers have handed over their last buffers.
+	 */
+	private suspend fun runDownload(session: DownloadSession) {
+		val checkpointer = session.checkpointer
+		coroutineScope {
+			launch { withContext(NonCancellable) { session.writeLane.run() } }
+			val checkpointJob = checkpointer?.let {
+				launch { it.runPeriodicFlush(session.state, session.writer.channel) }
+			}
+			try {
+				coroutineScope {
+					if (session.state.segments.isEmpty()) {
+						startFreshDownload(session)
+					} else {
+						rehashWrittenBytes(session)
+						val pendingSegments = session.state.segments.filterNot { it.isComplete }
+						pendingSegments.forEach { segment ->
+							launch { runConnection(session, segment) }
+						}
+						if (session.state.acceptsRanges) {
+							repeat(session.maxConnections - pendingSegments.size) {
+								launch { runConnection(session, null) }
+							}
+						}
+					}
+				}
+				finishChecksums(session)
+			} finally {
+				session.writeLane.close()
+				checkpointJob?.cancel()
+				checkpointer?.flush(session.state, session.writer.channel)
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the running checksums of resumed segments. A CRC32C saved with the checkpoint
+	 * is simply continued; digests that cannot be saved, such as SHA-256, are rebuilt by
+	 * reading back the bytes committed before the restart.
+	 */
+	private suspend fun rehashWrittenBytes(session: DownloadSession) {
+		if (session.request.checksumTypes.isEmpty()) return
+		val buffer = bufferPool.acquire()
+		try {
+			rehashWrittenBytes(session, buffer)
+		} finally {
+			bufferPool.release(buffer)
+		}
+	}
+
+	private suspend fun rehashWrittenBytes(session: DownloadSession, buffer: ByteBuffer) {
+		session.state.segments.forEach { segment ->
+			val checksums = session.checksumsOf(segment)
+			val savedCrc = segment.crc32cProgress
+			if (checksums.isCrc32cOnly && savedCrc != null && savedCrc.byteCount == segment.downloadedBytes) {
+				checksums.restoreCrc32c(savedCrc.combinedValue(), savedCrc.byteCount)
+				return@forEach
+			}
+			segment.crc32cProgress = null
+			var position = segment.startOffset
+			while (position < segment.currentOffset) {
+				currentCoroutineContext().ensureActive()
+				buffer.clear()
+				buffer.limit(minOf(buffer.capacity().toLong(), segment.currentOffset - position).toInt())
+				val readCount = session.writer.read(buffer, position)
+				if (readCount <= 0) throw IOException("Cannot read back $segment for hashing")
+				buffer.flip()
+				checksums.update(buffer)
+				position += readCount
+			}
+			segment.crc32cProgress = checksums.getCrc32cProgress()
+		}
+	}
+
+	/**
+	 * Completes the per-segment checksums and merges them into the checksums of the file.
+	 *
+	 * Digests that cannot be merged are only fetched over one segment. A checkpoint saved
+	 * with several segments before such a digest was selected is hashed by reading the file
+	 * back in order, so the stored checksums always cover the whole file.
+	 */
+	private suspend fun finishChecksums(session: DownloadSession) {
+		val checksumTypes = session.request.checksumTypes
+		if (checksumTypes.isEmpty()) return
+		val state = session.state
+		val orderedSegments = state.segments.sortedBy { it.startOffset }
+		state.segmentChecksums = orderedSegments.associate { it.index to session.checksumsOf(it).finish() }
+		state.checksums = if (orderedSegments.size > 1 && checksumTypes.any { !it.isCombinable }) {
+			hashWrittenFile(session, state.downloadedBytes)
+		} else {
+			SegmentChecksums.combine(orderedSegments.map { session.checksumsOf(it) to it.downloadedBytes })
+		}
+	}
+
+	/** Computes the checksums of the first [length] bytes of the file by reading them back. */
+	private suspend fun hashWrittenFile(session: DownloadSession, length: Long): Map<ChecksumType, String> {
+		val checksums = SegmentChecksums(session.request.checksumTypes)
+		val buffer = bufferPool.acquire()
+		try {
+			var position = 0L
+			while (position < length) {
+				currentCoroutineContext().ensureActive()
+				buffer.clear()
+				buffer.limit(minOf(buffer.capacity().toLong(), length - position).toInt())
+				val readCount = session.writer.read(buffer, position)
+				if (readCount <= 0) throw IOException("Cannot read back ${session.request.destinationName} for hashing")
+				buffer.flip()
+				checksums.update(buffer)
+				position += readCount
+			}
+		} finally {
+			bufferPool.release(buffer)
+		}
+		return checksums.finish()
+	}
+
+	/**
+	 * Probes the server, replacing the URL first if it already expired before the download
+	 * started, then keeps fetching the first range until it is complete.
+	 */
+	private suspend fun CoroutineScope.startFreshDownload(session: DownloadSession) {
+		val firstSegment = DownloadSegment(0, 0L, -1L)
+		var probedUrl = session.request.url
+		while (true) {
+			try {
+				probe(session, firstSegment)
+				break
+			} catch (error: DownloadHttpException) {
+				// Only the probe's own status lands here, before anything has been planned.
+				if (!error.isUrlExpired || !refreshExpiredUrl(session, probedUrl)) throw error
+				probedUrl = session.request.url
+			}
+		}
+
+		if (firstSegment.endOffset >= 0) {
+			runConnection(session, firstSegment)
+		}
+	}
+
+	/**
+	 * Sends the probe request for [firstSegment] and, once it is answered, plans the ranges,
+	 * launches the other connections and streams the first range over the probe response.
+	 */
+	private suspend fun CoroutineScope.probe(session: DownloadSession, firstSegment: DownloadSegment) {
+		val state = session.state
+		httpClient.newCall(buildRequest(session, firstSegment)).executeCancellable { probeResponse ->
+			ensureSuccessful(probeResponse)
+			state.eTag = probeResponse.header("ETag").orEmpty()
+			state.lastModified = probeResponse.header("Last-Modified").orEmpty()
+			state.acceptsRanges = probeResponse.code == HTTP_PARTIAL
+			state.segments.addAll(planSegments(probeResponse, firstSegment, session.maxConnections))
+			state.totalBytes = state.segments.last().endOffset.let { if (it < 0) -1L else it + 1 }
+			session.progress.totalBytes = state.totalBytes
+			reserveDiskSpace(session)
+			logger.d("Downloading ${session.request.url} with ${state.segments.size} segment(s)")
+
+			state.segments.drop(1).forEach { segment ->
+				launch { runConnection(session, segment) }
+			}
+
+			try {
+				transferBody(probeResponse, firstSegment, session)
+			} catch (error: IOException) {
+				// An open-ended stream has no range to resume from, so give up on it.
+				if (firstSegment.endOffset < 0) throw error
+				logger.d("First segment interrupted, it will be retried: ${error.message}")
+			}
+		}
+	}
+
+	/**
+	 * Body of one connection: downloads [firstSegment], then keeps stealing work from the
+	 * slowest remaining range until nothing is left that is worth splitting.
+	 */
+	private suspend fun runConnection(session: DownloadSession, firstSegment: DownloadSegment?) {
+		var segment = firstSegment ?: stealWork(session)
+		while (segment != null) {
+			downloadSegment(session, segment)
+			segment = stealWork(session)
+		}
+	}
+
+	/**
+	 * Splits the range expected to finish last and returns its tail as a new segment.
+	 *
+	 * The split point keeps a margin past the victim's committed offset as large as all the
+	 * write buffers its connection may have filling or queued, since those bytes were read
+	 * against the old end; everything beyond that margin is split in half.
+	 *
+	 * @return The stolen range, or null if no range is slow and large enough to split.
+	 */
+	private fun stealWork(session: DownloadSession): DownloadSegment? {
+		val state = session.state
+		if (!state.acceptsRanges || session.maxConnections == 1) return null
+		// Under a speed limit the bucket is the bottleneck, more connections would not help.
+		if (session.limiters.any { it.isLimited }) return null
+
+		synchronized(state) {
+			val victim = state.segments
+				.filter { it.remainingBytes >= 2 * MIN_STOLEN_RANGE_SIZE + splitMargin }
+				.maxByOrNull { it.secondsRemaining } ?: return null
+			if (victim.secondsRemaining < MIN_SECONDS_TO_SPLIT) return null
+
+			val splittableStart = victim.currentOffset + splitMargin
+			val splitOffset = splittableStart + (victim.endOffset - splittableStart + 1) / 2
+			val stolenSegment = state.splitSegment(victim, splitOffset)
+			logger.d("Split $victim, new connection takes $stolenSegment")
+			return stolenSegment
+		}
+	}
+
+	/**
+	 * Reserves the whole file up front so parallel ranges never race to extend it and a full
+	 * volume is reported before any byte is fetched rather than at 95%.
+	 */
+	private fun reserveDiskSpace(session: DownloadSession) {
+		val totalBytes = session.state.totalBytes
+		if (totalBytes <= 0) return
+		if (!FilePreallocator.preallocate(session.writer.fileDescriptor, totalBytes)) {
+			throw IOException("Could not reserve $totalBytes bytes for ${session.request.destinationName}")
+		}
+	}
+
+	/**
+	 * Turns the probe response into the download plan. A `206` with a known total size is
+	 * split into up to [connectionCount] ranges; anything else becomes one single stream.
+	 */
+	private fun planSegments(
+		probeResponse: Response,
+		firstSegment: DownloadSegment,
+		connectionCount: Int
+	): List<DownloadSegment> {
+		val totalBytes = if (probeResponse.code == HTTP_PARTIAL) {
+			parseContentRangeTotal(probeResponse.header("Content-Range"))
+		} else probeResponse.body.contentLength()
+
+		if (probeResponse.code != HTTP_PARTIAL || totalBytes <= 0) {
+			firstSegment.endOffset = if (totalBytes > 0) totalBytes - 1 else -1L
+			return listOf(firstSegment)
+		}
+
+		val segmentCount = (totalBytes / minSegmentSize).coerceIn(1L, connectionCount.toLong()).toInt()
+		val segmentSize = totalBytes / segmentCount
+		firstSegment.endOffset = if (segmentCount == 1) totalBytes - 1 else segmentSize - 1
+
+		val segments = arrayListOf(firstSegment)
+		for (index in 1 until segmentCount) {
+			val start = index * segmentSize
+			val end = if (index == segmentCount - 1) totalBytes - 1 else start + segmentSize - 1
+			segments.add(DownloadSegment(index, start, end))
+		}
+		return segments
+	}
+
+	/**
+	 * Fetches the missing part of [segment], re-requesting it from the last written byte
+	 * whenever the connection drops, until the range is complete or retries run out.
+	 */
+	private suspend fun downloadSegment(session: DownloadSession, segment: DownloadSegment) {
+		var attempt = 0
+		while (!segment.isComplete) {
+			val requestedUrl = session.request.url
+			try {
+				val call = httpClient.newCall(buildRequest(session, segment))
+				call.executeCancellable { response ->
+					ensureSuccessful(response)
+					verifyResumedResponse(session, segment, response)
+					transferBody(response, segment, session)
+				}
+				if (segment.endOffset < 0) return
+				if (!segment.isComplete) throw IOException("Stream ended early in $segment")
+			} catch (error: IOException) {
+				if (error is DownloadResumeException) throw error
+				if (error is DownloadHttpException && error.isUrlExpired && refreshExpiredUrl(session, requestedUrl)) continue
+				if (error is DownloadHttpException && !error.isRetryable) throw error
+				if (++attempt > MAX_SEGMENT_RETRIES) throw error
+				logger.d("Retrying $segment (attempt $attempt): ${error.message}")
+				delay(RETRY_DELAY_MS * attempt)
+			}
+		}
+	}
+
+	/**
+	 * Makes sure a range response still belongs to the same file as the bytes on disk.
+	 * A `200` to a ranged request means either the `If-Range` validator failed or the server
+	 * ignored the range; a lone stream can simply start over, a split file cannot. The file
+	 * may have changed size meanwhile, so the lone stream is re-planned to the new length,
+	 * and started over as a fresh download if the new length is not reported.
+	 */
+	private fun verifyResumedResponse(session: DownloadSession, segment: DownloadSegment, response: Response) {
+		if (response.code == HTTP_OK && segment.currentOffset > 0) {
+			if (session.state.segments.size > 1) {
+				throw DownloadResumeException("Server answered a range request with the full file")
+			}
+			val newTotal = response.body.contentLength()
+			if (newTotal <= 0) {
+				throw DownloadResumeException("Server restarted the file without reporting its size")
+			}
+			if (newTotal != session.state.totalBytes) {
+				logger.d("Remote size changed from ${session.state.totalBytes} to $newTotal, re-planning $segment")
+				segment.endOffset = newTotal - 1
+				session.state.totalBytes = newTotal
+				session.progress.totalBytes = newTotal
+				reserveDiskSpace(session)
+			}
+			session.progress.add(-segment.downloadedBytes)
+			segment.crc32cProgress = null
+			segment.downloadedBytes = 0L
+			session.checksumsOf(segment).reset()
+			session.state.eTag = response.header("ETag").orEmpty()
+			session.state.lastModified = response.header("Last-Modified").orEmpty()
+			session.state.acceptsRanges = false
+			return
+		}
+
+		val expectedTotal = session.state.totalBytes
+		val reportedTotal = parseContentRangeTotal(response.header("Content-Range"))
+		if (response.code == HTTP_PARTIAL && expectedTotal > 0 && reportedTotal > 0 && reportedTotal != expectedTotal) {
+			throw DownloadResumeException("Remote size changed from $expectedTotal to $reportedTotal")
+		}
+	}
+
+	/**
+	 * Replaces an expired URL with a freshly extracted one. Connections that hit the expiry at
+	 * the same time wait for a single refresh and then all retry with the new URL.
+	 *
+	 * @param expiredUrl The URL the failed request was sent to.
+	 * @return true if the request should be retried with [DownloadSession.request], false if
+	 *         the URL cannot be refreshed and the original error stands.
+	 * @throws DownloadResumeException if the new URL serves a different file.
+	 */
+	private suspend fun refreshExpiredUrl(session: DownloadSession, expiredUrl: String): Boolean {
+		val refresher = urlRefresher ?: return false
+		if (!session.request.isRefreshable) return false
+		return session.urlRefreshLock.withLock {
+			if (session.request.url != expiredUrl) return@withLock true
+			if (session.urlRefreshCount >= MAX_URL_REFRESHES) return@withLock false
+			session.urlRefreshCount++
+
+			val refreshedRequest = try {
+				refresher.refresh(session.request)
+			} catch (error: IOException) {
+				logger.e("Could not refresh the expired URL of ${session.request.destinationName}", error)
+				null
+			} ?: return@withLock false
+			if (refreshedRequest.url == expiredUrl) return@withLock false
+
+			verifyRefreshedUrl(session, refreshedRequest)
+			session.request = refreshedRequest
+			session.checkpointer?.updateUrl(refreshedRequest)
+			logger.d("Refreshed expired URL of ${refreshedRequest.destinationName}")
+			true
+		}
+	}
+
+	/**
+	 * Makes sure a refreshed URL serves the file already partly on disk: a one-byte range
+	 * request must report the same total size, and whichever validators both URLs report
+	 * must be equal. Nothing needs checking before the first byte is planned.
+	 */
+	private suspend fun verifyRefreshedUrl(session: DownloadSession, refreshedRequest: DownloadRequest) {
+		val state = session.state
+		if (state.segments.isEmpty()) return
+		val verifyRequest = Request.Builder().url(refreshedRequest.url).apply {
+			refreshedRequest.headers.forEach { (name, value) -> header(name, value) }
+			header("Range", "bytes=0-0")
+		}.build()
+
+		httpClient.newCall(verifyRequest).executeCancellable { response ->
+			ensureSuccessful(response)
+			val reportedTotal = if (response.code == HTTP_PARTIAL) {
+				parseContentRangeTotal(response.header("Content-Range"))
+			} else response.body.contentLength()
+			if (state.totalBytes > 0 && reportedTotal != state.totalBytes) {
+				throw DownloadResumeException("Refreshed URL serves $reportedTotal bytes instead of ${state.totalBytes}")
+			}
+			if (state.acceptsRanges && response.code != HTTP_PARTIAL) {
+				throw DownloadResumeException("Refreshed URL does not honor byte ranges")
+			}
+
+			val eTag = response.header("ETag").orEmpty()
+			val lastModified = response.header("Last-Modified").orEmpty()
+			if (state.eTag.isNotEmpty() && eTag.isNotEmpty() && eTag != state.eTag) {
+				throw DownloadResumeException("Refreshed URL has ETag $eTag instead of ${state.eTag}")
+			}
+			if (state.lastModified.isNotEmpty() && lastModified.isNotEmpty() && lastModified != state.lastModified) {
+				throw DownloadResumeException("Refreshed URL was modified at $lastModified")
+			}
+		}
+	}
+
+	/**
+	 * Copies the response body into the file from the segment's current offset, stopping at
+	 * the end of the range even if the server keeps sending bytes.
+	 *
+	 * Reads land in a pooled direct buffer, so the bytes reach the file descriptor without a
+	 * heap round trip, and are hashed right there. A buffer goes to the write lane once it is
+	 * full, which after the first one always ends on a block boundary. The segment only
+	 * advances once the lane has written its bytes, and everything read has been written by
+	 * the time this returns. Under a speed limit, reads shrink to the limiter's chunk size and
+	 * wait for tokens after each.
+	 */
+	private suspend fun transferBody(response: Response, segment: DownloadSegment, session: DownloadSession) {
+		val source = response.body.source()
+		val checksums = if (session.request.checksumTypes.isEmpty()) null else session.checksumsOf(segment)
+		val segmentWriter = SegmentWriter(segment, session.writeLane)
+		var readPosition = segment.currentOffset
+		var fillingSlot: SegmentWriter.WriteSlot? = null
+		try {
+			while (true) {
+				currentCoroutineContext().ensureActive()
+				val endOffset = segment.endOffset
+				val remaining = if (endOffset < 0) -1L else endOffset - readPosition + 1
+				if (remaining == 0L) break
+				val slot = fillingSlot ?: segmentWriter.takeSlot(readPosition, session.writer.blockSize)
+				fillingSlot = slot
+				val buffer = slot.buffer ?: break
+
+				var maxRead = minOf(buffer.remaining(), readBufferSize)
+				if (remaining > 0) maxRead = minOf(remaining, maxRead.toLong()).toInt()
+				session.limiters.forEach { maxRead = minOf(maxRead, it.chunkSize) }
+				val readStart = buffer.position()
+				val fillLimit = buffer.limit()
+				buffer.limit(readStart + maxRead)
+				val readCount = source.read(buffer)
+				buffer.limit(fillLimit)
+				if (readCount == -1) break
+				if (checksums != null) {
+					buffer.limit(readStart + readCount)
+					buffer.position(readStart)
+					checksums.update(buffer)
+					buffer.position(readStart + readCount)
+					buffer.limit(fillLimit)
+				}
+
+				readPosition += readCount
+				segment.recordTransfer(readCount)
+				session.progress.add(readCount.toLong())
+				if (!buffer.hasRemaining()) {
+					segmentWriter.submit(slot, checksums)
+					fillingSlot = null
+				}
+				session.limiters.forEach { it.acquire(readCount) }
+			}
+		} finally {
+			withContext(NonCancellable) {
+				fillingSlot?.let { segmentWriter.submit(it, checksums) }
+				segmentWriter.awaitWrites()
+			}
+			segmentWriter.failure?.let { throw it }
+		}
+	}
+
+	private fun buildRequest(session: DownloadSession, segment: DownloadSegment): Request {
+		return Request.Builder().url(session.request.url).apply {
+			session.request.headers.forEach { (name, value) -> header(name, value) }
+			header("Range", segment.toRangeHeader())
+			if (segment.currentOffset > 0) {
+				session.state.getIfRangeValidator()?.let { header("If-Range", it) }
+			}
+		}.build()
+	}
+
+	private fun ensureSuccessful(response: Response) {
+		if (response.code != HTTP_OK && response.code != HTTP_PARTIAL) {
+			throw DownloadHttpException(response.code, "HTTP ${response.code} for ${response.request.url}")
+		}
+	}
+
+	/**
+	 * Reads the complete size from a header such as `bytes 0-1023/146515`.
+	 *
+	 * @return The total size in bytes, or `-1` if absent or reported as `*`.
+	 */
+	private fun parseContentRangeTotal(contentRange: String?): Long {
+		return contentRange?.substringAfterLast('/', "")?.trim()?.toLongOrNull() ?: -1L
+	}
+
+	/**
+	 * Everything the segment workers of one download share. [request] is replaced when its
+	 * URL expires, so requests are always built from the current value.
+	 */
+	private class DownloadSession(
+		@Volatile var request: DownloadRequest,
+		val state: DownloadState,
+		val writer: PositionalFileWriter,
+		val writeLane: WriteBehindLane,
+		val limiters: List<BandwidthLimiter>,
+		val checkpointer: DownloadCheckpointer?,
+		progressListener: DownloadProgressListener?,
+		val maxConnections: Int
+	) {
+		val progress = ProgressTracker(progressListener, state.downloadedBytes, state.totalBytes)
+		val urlRefreshLock = Mutex()
+		var urlRefreshCount = 0
+		private val segmentChecksums = ConcurrentHashMap<Int, SegmentChecksums>()
+
+		/** Running checksums of [segment], created on its first chunk. */
+		fun checksumsOf(segment: DownloadSegment): SegmentChecksums {
+			return segmentChecksums.getOrPut(segment.index) { SegmentChecksums(request.checksumTypes) }
+		}
+	}
+
+	/**
+	 * Write buffers of one [transferBody] call. A few slots cycle between the connection,
+	 * which fills them, and the write lane, which writes them, so at most
+	 * [WRITE_SLOTS_PER_CONNECTION] pool buffers are in use per connection and nothing is
+	 * allocated per chunk. The segment is advanced strictly in order and stops advancing at
+	 * the first failed write, so a gap is never committed.
+	 */
+	private inner class SegmentWriter(
+		private val segment: DownloadSegment,
+		private val writeLane: WriteBehindLane
+	) {
+		private val slotPermits = Semaphore(WRITE_SLOTS_PER_CONNECTION)
+		private val idleSlots = ArrayDeque<WriteSlot>(WRITE_SLOTS_PER_CONNECTION)
+
+		/** First write failure, rethrown by [transferBody] once all writes are done. */
+		@Volatile
+		var failure: IOException? = null
+
+		/**
+		 * Waits for a free slot and gives it a pooled buffer. The first buffer is shortened so
+		 * that it ends on a block boundary, making every later write block-aligned.
+		 */
+		suspend fun takeSlot(position: Long, blockSize: Int): WriteSlot {
+			slotPermits.acquire()
+			val buffer = try {
+				bufferPool.acquire()
+			} catch (error: Throwable) {
+				slotPermits.release()
+				throw error
+			}
+			val misalignment = (position % blockSize).toInt()
+			if (misalignment < buffer.capacity()) buffer.limit(buffer.capacity() - misalignment)
+
+			val slot = synchronized(idleSlots) { idleSlots.removeFirstOrNull() } ?: WriteSlot()
+			slot.buffer = buffer
+			slot.position = position
+			return slot
+		}
+
+		/** Hands the filled part of [slot] to the write lane, with the checksums up to its end. */
+		fun submit(slot: WriteSlot, checksums: SegmentChecksums?) {
+			val buffer = slot.buffer ?: return
+			buffer.flip()
+			if (!buffer.hasRemaining()) {
+				slot.buffer = null
+				bufferPool.release(buffer)
+				recycle(slot)
+				return
+			}
+			slot.crc32cProgress = checksums?.getCrc32cProgress()
+			writeLane.submit(slot)
+		}
+
+		/** Suspends until every submitted buffer has been written. */
+		suspend fun awaitWrites() {
+			repeat(WRITE_SLOTS_PER_CONNECTION) { slotPermits.acquire() }
+			repeat(WRITE_SLOTS_PER_CONNECTION) { slotPermits.release() }
+		}
+
+		private fun recycle(slot: WriteSlot) {
+			synchronized(idleSlots) { idleSlots.addLast(slot) }
+			slotPermits.release()
+		}
+
+		inner class WriteSlot : WriteBehindLane.PendingWrite() {
+			var crc32cProgress: Crc32cProgress? = null
+
+			override fun onWritten(byteCount: Int, error: IOException?) {
+				if (error != null && failure == null) failure = error
+				if (failure == null) {
+					segment.downloadedBytes += byteCount
+					crc32cProgress?.let { segment.crc32cProgress = it }
+				}
+				crc32cProgress = null
+				recycle(this)
+			}
+		}
+	}
+
+	/**
+	 * Thread-safe byte counter shared by all segments of one download.
+	 */
+	private class ProgressTracker(
+		private val listener: DownloadProgressListener?,
+		initialBytes: Long,
+		@Volatile var totalBytes: Long
+	) {
+		private val downloadedBytes = AtomicLong(initialBytes)
+
+		fun add(byteCount: Long) {
+			val downloaded = downloadedBytes.addAndGet(byteCount)
+			listener?.onProgress(downloaded, totalBytes)
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package libs.networks.downloads.hls
+
+import android.net.Uri
+import androidx.annotation.OptIn
+import androidx.core.net.toUri
+import androidx.media3.common.C
+import androidx.media3.common.Format
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.common.util.UriUtil
+import androidx.media3.exoplayer.hls.playlist.HlsMediaPlaylist
+import androidx.media3.exoplayer.hls.playlist.HlsMultivariantPlaylist
+import androidx.media3.exoplayer.hls.playlist.HlsPlaylist
+import androidx.media3.exoplayer.hls.playlist.HlsPlaylistParser
+import core.bases.GlobalApplication.Companion.APP_INSTANCE
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import libs.networks.downloads.BandwidthLimiter
+import libs.networks.downloads.BandwidthLimits
+import libs.networks.downloads.DiskSpaceReservations
+import libs.networks.downloads.DownloadHttpException
+import libs.networks.downloads.DownloadProgressListener
+import libs.networks.downloads.DownloadRequest
+import libs.networks.downloads.executeCancellable
+import libs.process.LogHelperUtils
+import okhttp3.Call
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import javax.crypto.Cipher
+import javax.crypto.CipherInputStream
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Downloads HLS streams natively, without ffmpeg.
+ *
+ * Playlists are parsed with media3's [HlsPlaylistParser]. For a multivariant playlist the
+ * best variant within [maxVideoHeight] is chosen, together with its separate audio rendition
+ * if it has one. Media segments are then fetched in parallel, at most [maxParallelSegments]
+ * at a time over the shared OkHttp client, decrypted if they use `AES-128`, and appended in
+ * playlist order into one intermediate stream per rendition. Finally [HlsRemuxer] copies the
+ * samples into an MP4 container with `MediaMuxer`; nothing is decoded or re-encoded.
+ *
+ * Fetching never runs more than [maxSegmentsAhead] segments ahead of the one being appended,
+ * so a slow or retrying early segment cannot pile the rest of the stream up in the cache.
+ * When [diskSpace] is supplied, the intermediate streams are reserved on the cache volume
+ * before any segment is fetched, next to the reservations of the queued downloads.
+ *
+ * When [bandwidthLimits] are supplied, segment bodies are read in small chunks paced by the
+ * task, host and global [BandwidthLimiter]s of the request.
+ *
+ * Only finished (VOD) playlists are supported, since a live window has no end to wait for.
+ * `SAMPLE-AES` encrypted streams are rejected.
+ *
+ * Usage:
+ * ```
+ * HlsDownloader(globalHttpClient).download(DownloadRequest(playlistUrl, outputFile)) { done, _ ->
+ *     logger.d("Downloaded $done bytes")
+ * }
+ * ```
+ *
+ * @param httpClient The OkHttp client playlists, keys and segments are fetched with.
+ * @param maxParallelSegments Upper bound of segments fetched at the same time.
+ * @param maxVideoHeight Variants taller than this are skipped when others exist.
+ * @param bandwidthLimits Optional speed limits applied to every transfer.
+ * @param diskSpace Optional disk-space reservations the intermediate streams are held in.
+ * @param maxSegmentsAhead How far fetching may run ahead of the appended segments.
+ */
+@OptIn(UnstableApi::class)
+class HlsDownloader(
+	private val httpClient: OkHttpClient,
+	private val maxParallelSegments: Int = DEFAULT_MAX_PARALLEL_SEGMENTS,
+	private val maxVideoHeight: Int = Int.MAX_VALUE,
+	private val bandwidthLimits: BandwidthLimits? = null,
+	private val diskSpace: DiskSpaceReservations? = null,
+	private val maxSegmentsAhead: Int = DEFAULT_MAX_SEGMENTS_AHEAD
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+
+	companion object {
+		/** Default number of segments fetched at the same time. */
+		const val DEFAULT_MAX_PARALLEL_SEGMENTS = 6
+
+		/** Default number of segments fetching may run ahead of the appended ones. */
+		const val DEFAULT_MAX_SEGMENTS_AHEAD = 16
+
+		/**
+		 * Reservation ids of intermediate streams count down from here, so they never clash
+		 * with the task ids the queue reserves under.
+		 */
+		private val nextScratchId = AtomicLong(-1L)
+
+		/** How many times a single segment is re-requested before the download fails. */
+		private const val MAX_SEGMENT_RETRIES = 3
+
+		/** Base back-off between two attempts of the same segment. */
+		private const val RETRY_DELAY_MS = 1000L
+
+		/** Size of the copy buffer used when fetching and concatenating segments. */
+		private const val COPY_BUFFER_SIZE = 64 * 1024
+
+		/** AES block size, also the length of an HLS initialization vector. */
+		private const val AES_BLOCK_SIZE = 16
+	}
+
+	/**
+	 * Downloads the stream at [DownloadRequest.url] into [DownloadRequest.destination].
+	 *
+	 * @param request The playlist URL, headers and destination of the transfer.
+	 * @param progressListener Optional listener notified as segments arrive; the total is
+	 *        only known when every segment carries a byte range, `-1` otherwise.
+	 * @throws IOException if a playlist, key or segment cannot be fetched, the stream is live
+	 *         or uses an unsupported encryption, or the samples cannot be remuxed.
+	 */
+	suspend fun download(
+		request: DownloadRequest,
+		progressListener: DownloadProgressListener? = null
+	): Unit = withContext(Dispatchers.IO) {
+		val selectedStream = resolveMediaPlaylists(request)
+		val mediaPlaylists = selectedStream.playlists
+		val workDirectory = File(APP_INSTANCE.cacheDir, "hls/${request.destinationKey.hashCode().toUInt()}")
+		workDirectory.deleteRecursively()
+		if (!workDirectory.mkdirs()) throw IOException("Cannot create $workDirectory")
+
+		val scratchIds = ArrayList<Long>()
+		try {
+			val knownSizes = mediaPlaylists.map { getKnownSize(it) }
+			val totalBytes = if (knownSizes.any { it < 0 }) -1L else knownSizes.sum()
+			val streamFiles = mediaPlaylists.indices.map { File(workDirectory, "stream_$it") }
+			streamFiles.forEachIndexed { playlistIndex, streamFile ->
+				val playlist = mediaPlaylists[playlistIndex]
+				val expectedBytes = knownSizes[playlistIndex].takeIf { it > 0 }
+					?: estimateSize(playlist, selectedStream.bitrate)
+				reserveScratchSpace(request, streamFile, expectedBytes)?.let { scratchIds.add(it) }
+			}
+
+			val limiters = bandwidthLimits?.limitersFor(request).orEmpty()
+			val progress = SegmentProgress(progressListener, totalBytes, limiters)
+			streamFiles.forEachIndexed { playlistIndex, streamFile ->
+				downloadMediaPlaylist(request, mediaPlaylists[playlistIndex], workDirectory, streamFile, progress)
+			}
+			HlsRemuxer.remux(APP_INSTANCE, streamFiles, request.destination)
+			logger.d("Finished HLS download of ${request.url} into ${request.destinationName}")
+		} finally {
+			scratchIds.forEach { diskSpace?.release(it) }
+			bandwidthLimits?.release(request)
+			workDirectory.deleteRecursively()
+		}
+	}
+
+	/**
+	 * Reserves the space an intermediate stream will take on the cache volume, waiting while
+	 * running downloads hold it.
+	 *
+	 * @return The id the space is reserved under, or null if nothing had to be reserved.
+	 * @throws IOException If the stream cannot fit on the cache volume at all.
+	 */
+	private suspend fun reserveScratchSpace(request: DownloadRequest, streamFile: File, expectedBytes: Long): Long? {
+		val reservations = diskSpace ?: return null
+		if (expectedBytes <= 0) return null
+		if (!streamFile.exists() && !streamFile.createNewFile()) throw IOException("Cannot create $streamFile")
+		val scratchId = nextScratchId.getAndDecrement()
+		val scratchRequest = DownloadRequest(request.url, streamFile)
+		while (true) {
+			when (reservations.tryReserve(scratchId, scratchRequest, expectedBytes)) {
+				DiskSpaceReservations.Admission.ADMITTED -> return scratchId
+				DiskSpaceReservations.Admission.REJECTED -> {
+					throw IOException("Not enough cache space for ${request.destinationName}")
+				}
+
+				DiskSpaceReservations.Admission.HELD -> delay(reservations.recheckIntervalMs)
+			}
+		}
+	}
+
+	/**
+	 * Estimates the size of [playlist] from its duration and [bitrate], `-1` if unknown.
+	 */
+	private fun estimateSize(playlist: HlsMediaPlaylist, bitrate: Int): Long {
+		if (bitrate == Format.NO_VALUE || bitrate <= 0 || playlist.durationUs <= 0) return -1L
+		return bitrate.toLong() / 8 * playlist.durationUs / 1_000_000L
+	}
+
+	/**
+	 * Loads the playlist behind [request] and returns the media playlists to download: the
+	 * playlist itself if it already is one, else the chosen variant and audio rendition.
+	 */
+	private suspend fun resolveMediaPlaylists(request: DownloadRequest): SelectedStream {
+		val playlistUri = request.url.toUri()
+		val playlist = fetchPlaylist(request, playlistUri)
+		if (playlist is HlsMediaPlaylist) return SelectedStream(listOf(requireFinished(playlist)), Format.NO_VALUE)
+
+		val multivariantPlaylist = playlist as HlsMultivariantPlaylist
+		val variant = selectVariant(multivariantPlaylist)
+			?: throw IOException("No playable variant in ${request.url}")
+		val audioRendition = variant.audioGroupId?.let { groupId ->
+			val renditions = multivariantPlaylist.audios.filter { it.groupId == groupId && it.url != null }
+			renditions.firstOrNull { it.format.selectionFlags and C.SELECTION_FLAG_DEFAULT != 0 }
+				?: renditions.firstOrNull()
+		}
+
+		val mediaPlaylists = arrayListOf(fetchMediaPlaylist(request, variant.url))
+		audioRendition?.url?.let { audioUrl ->
+			if (audioUrl != variant.url) mediaPlaylists.add(fetchMediaPlaylist(request, audioUrl))
+		}
+		logger.d("Selected ${variant.format.height}p variant at ${variant.format.bitrate} bps")
+		return SelectedStream(mediaPlaylists, variant.format.bitrate)
+	}
+
+	/**
+	 * Picks the highest-bitrate variant not taller than [maxVideoHeight], falling back to the
+	 * smallest one if every variant is taller.
+	 */
+	private fun selectVariant(playlist: HlsMultivariantPlaylist): HlsMultivariantPlaylist.Variant? {
+		val fittingVariants = playlist.variants.filter { variant ->
+			variant.format.height == Format.NO_VALUE || variant.format.height <= maxVideoHeight
+		}
+		return fittingVariants.maxByOrNull { it.format.bitrate }
+			?: playlist.variants.minByOrNull { it.format.height }
+	}
+
+	private suspend fun fetchMediaPlaylist(request: DownloadRequest, uri: Uri): HlsMediaPlaylist {
+		val playlist = fetchPlaylist(request, uri) as? HlsMediaPlaylist
+			?: throw IOException("Expected a media playlist at $uri")
+		return requireFinished(playlist)
+	}
+
+	private suspend fun fetchPlaylist(request: DownloadRequest, uri: Uri): HlsPlaylist =
+		newCall(request, uri.toString()).executeCancellable { response ->
+			ensureSuccessful(response)
+			HlsPlaylistParser().parse(uri, response.body.byteStream())
+		}
+
+	private fun requireFinished(playlist: HlsMediaPlaylist): HlsMediaPlaylist {
+		if (!playlist.hasEndTag) throw IOException("Live HLS streams are not supported")
+		return playlist
+	}
+
+	/**
+	 * Sum of the byte ranges of [playlist], or `-1` if any segment has no byte range.
+	 */
+	private fun getKnownSize(playlist: HlsMediaPlaylist): Long {
+		if (playlist.segments.any { it.byteRangeLength == C.LENGTH_UNSET.toLong() }) return -1L
+		return playlist.segments.sumOf { it.byteRangeLength }
+	}
+
+	/**
+	 * Fetches every segment of [playlist] with bounded parallelism and appends them, in
+	 * order, to [streamFile]. Each segment is buffered in its own temporary file only until
+	 * every segment before it has been appended.
+	 */
+	private suspend fun downloadMediaPlaylist(
+		request: DownloadRequest,
+		playlist: HlsMediaPlaylist,
+		workDirectory: File,
+		streamFile: File,
+		progress: SegmentProgress
+	) = coroutineScope {
+		val segments = playlist.segments
+		if (segments.isEmpty()) throw IOException("Empty media playlist ${playlist.baseUri}")
+		segments.firstOrNull { it.drmInitData != null }?.let {
+			throw IOException("SAMPLE-AES encrypted HLS streams are not supported")
+		}
+
+		val keyCache = ConcurrentHashMap<String, ByteArray>()
+		val permits = Semaphore(maxParallelSegments)
+		val fetchedSegments = List(segments.size) { CompletableDeferred<File>() }
+		val appendedSegments = List(segments.size) { CompletableDeferred<Unit>() }
+		val window = maxOf(maxSegmentsAhead, maxParallelSegments)
+		segments.forEachIndexed { index, segment ->
+			launch {
+				if (index >= window) appendedSegments[index - window].await()
+				permits.withPermit {
+					val segmentFile = File(workDirectory, "${streamFile.name}_$index")
+					val mediaSequence = playlist.mediaSequence + index
+					fetchSegment(request, playlist, segment, mediaSequence, segmentFile, keyCache, progress)
+					fetchedSegments[index].complete(segmentFile)
+				}
+			}
+		}
+
+		streamFile.outputStream().buffered(COPY_BUFFER_SIZE).use { output ->
+			segments.first().initializationSegment?.let { initSegment ->
+				val initFile = File(workDirectory, "${streamFile.name}_init")
+				fetchSegment(request, playlist, initSegment, playlist.mediaSequence, initFile, keyCache, null)
+				appendAndDelete(initFile, output)
+			}
+			fetchedSegments.forEachIndexed { index, fetchedSegment ->
+				appendAndDelete(fetchedSegment.await(), output)
+				appendedSegments[index].complete(Unit)
+			}
+		}
+	}
+
+	/**
+	 * Downloads one segment, or its byte range, into [targetFile], decrypting it on the fly
+	 * when the playlist declares an `AES-128` key for it.
+	 */
+	private suspend fun fetchSegment(
+		request: DownloadRequest,
+		playlist: HlsMediaPlaylist,
+		segment: HlsMediaPlaylist.Segment,
+		mediaSequence: Long,
+		targetFile: File,
+		keyCache: MutableMap<String, ByteArray>,
+		progress: SegmentProgress?
+	) {
+		val segmentUrl = UriUtil.resolve(playlist.baseUri, segment.url)
+		val key = segment.fullSegmentEncryptionKeyUri?.let { uri ->
+			val resolvedKeyUri = UriUtil.resolve(playlist.baseUri, uri)
+			keyCache[resolvedKeyUri] ?: fetchKey(request, resolvedKeyUri).also { keyCache[resolvedKeyUri] = it }
+		}
+
+		var attempt = 0
+		while (true) {
+			var receivedBytes = 0L
+			try {
+				// A cipher keeps CBC state, so every attempt starts from a fresh one.
+				val cipher = key?.let { createCipher(it, segment.encryptionIV, mediaSequence) }
+				val call = newCall(request, segmentUrl, segment.byteRangeOffset, segment.byteRangeLength)
+				call.executeCancellable { response ->
+					ensureSuccessful(response)
+					val bodyStream: InputStream = response.body.byteStream()
+					val input = cipher?.let { CipherInputStream(bodyStream, it) } ?: bodyStream
+					targetFile.outputStream().use { output ->
+						val buffer = ByteArray(COPY_BUFFER_SIZE)
+						while (true) {
+							val readCount = input.read(buffer, 0, progress?.readSize ?: buffer.size)
+							if (readCount == -1) break
+							output.write(buffer, 0, readCount)
+							receivedBytes += readCount
+							progress?.add(readCount.toLong())
+							progress?.pace(readCount)
+						}
+					}
+				}
+				return
+			} catch (error: IOException) {
+				progress?.add(-receivedBytes)
+				if (error is DownloadHttpException && !error.isRetryable) throw error
+				if (++attempt > MAX_SEGMENT_RETRIES) throw error
+				logger.d("Retrying HLS segment $segmentUrl (attempt $attempt): ${error.message}")
+				delay(RETRY_DELAY_MS * attempt)
+			}
+		}
+	}
+
+	private suspend fun fetchKey(request: DownloadRequest, keyUrl: String): ByteArray {
+		return newCall(request, keyUrl).executeCancellable { response ->
+			ensureSuccessful(response)
+			response.body.bytes().also { key ->
+				if (key.size != AES_BLOCK_SIZE) throw IOException("Invalid AES-128 key at $keyUrl")
+			}
+		}
+	}
+
+	/**
+	 * Builds the AES-128-CBC cipher of a segment. Without an explicit `IV` attribute, HLS
+	 * uses the media sequence number as a 128-bit big-endian value.
+	 */
+	private fun createCipher(key: ByteArray, explicitIv: String?, mediaSequence: Long): Cipher {
+		val iv = ByteArray(AES_BLOCK_SIZE)
+		if (explicitIv != null) {
+			val hexDigits = explicitIv.removePrefix("0x").removePrefix("0X").padStart(AES_BLOCK_SIZE * 2, '0')
+			for (index in 0 until AES_BLOCK_SIZE) {
+				iv[index] = hexDigits.substring(index * 2, index * 2 + 2).toInt(16).toByte()
+			}
+		} else {
+			ByteBuffer.wrap(iv, AES_BLOCK_SIZE - Long.SIZE_BYTES, Long.SIZE_BYTES).putLong(mediaSequence)
+		}
+		return Cipher.getInstance("AES/CBC/PKCS5Padding").apply {
+			init(Cipher.DECRYPT_MODE, SecretKeySpec(key, "AES"), IvParameterSpec(iv))
+		}
+	}
+
+	private fun appendAndDelete(segmentFile: File, output: OutputStream) {
+		segmentFile.inputStream().use { input -> input.copyTo(output, COPY_BUFFER_SIZE) }
+		segmentFile.delete()
+	}
+
+	private fun newCall(
+		request: DownloadRequest,
+		url: String,
+		byteRangeOffset: Long = 0L,
+		byteRangeLength: Long = C.LENGTH_UNSET.toLong()
+	): Call = httpClient.newCall(Request.Builder().url(url).apply {
+		request.headers.forEach { (name, value) -> header(name, value) }
+		if (byteRangeLength != C.LENGTH_UNSET.toLong()) {
+			header("Range", "bytes=$byteRangeOffset-${byteRangeOffset + byteRangeLength - 1}")
+		}
+	}.build())
+
+	private fun ensureSuccessful(response: Response) {
+		if (!response.isSuccessful) {
+			throw DownloadHttpException(response.code, "HTTP ${response.code} for ${response.request.url}")
+		}
+	}
+
+	/**
+	 * The media playlists chosen for download, and the bitrate the variant advertises.
+	 */
+	private class SelectedStream(val playlists: List<HlsMediaPlaylist>, val bitrate: Int)
+
+	/**
+	 * Thread-safe byte counter shared by all segments of one stream, which also paces the
+	 * segment reads to the speed limits of the download.
+	 */
+	private class SegmentProgress(
+		private val listener: DownloadProgressListener?,
+		knownTotalBytes: Long,
+		private val limiters: List<BandwidthLimiter>
+	) {
+		private val totalBytes = if (knownTotalBytes > 0) knownTotalBytes else -1L
+		private val downloadedBytes = AtomicLong()
+
+		/** Largest read that keeps the flow smooth under the current limits. */
+		val readSize: Int
+			get() = limiters.fold(COPY_BUFFER_SIZE) { size, limiter -> minOf(size, limiter.chunkSize) }
+
+		fun add(byteCount: Long) {
+			listener?.onProgress(downloadedBytes.addAndGet(byteCount), totalBytes)
+		}
+
+		/** Suspends until every limiter has tokens for [byteCount] more bytes. */
+		suspend fun pace(byteCount: Int) {
+			limiters.forEach { it.acquire(byteCount) }
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package libs.networks.downloads.hls
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import androidx.documentfile.provider.DocumentFile
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Copies the elementary streams of downloaded HLS renditions into one MP4 file.
+ *
+ * Samples are moved from [MediaExtractor] to [MediaMuxer] untouched, so this costs about as
+ * much as copying the file once; no codec is ever opened. Both MPEG-TS and fragmented MP4
+ * renditions are read by the platform extractor.
+ */
+object HlsRemuxer {
+
+	/** Fallback sample buffer size when a track does not report its maximum input size. */
+	private const val DEFAULT_SAMPLE_BUFFER_SIZE = 1024 * 1024
+
+	/**
+	 * Muxes the video track of the first input and the audio track of the last input that
+	 * has one into [destination]. A separate audio rendition, passed last, therefore wins
+	 * over audio muxed into the video rendition.
+	 *
+	 * @param context The Android [Context] used to open the destination.
+	 * @param inputs Concatenated renditions, video rendition first.
+	 * @param destination The MP4 file or SAF document to write.
+	 * @throws IOException if no track can be muxed or the destination cannot be written.
+	 */
+	@JvmStatic
+	fun remux(context: Context, inputs: List<File>, destination: DocumentFile) {
+		val tracks = selectTracks(inputs)
+		try {
+			if (tracks.isEmpty()) throw IOException("No audio or video track found in HLS stream")
+			val descriptor = context.contentResolver.openFileDescriptor(destination.uri, "rwt")
+				?: throw FileNotFoundException("Cannot open ${destination.uri} for writing")
+			descriptor.use {
+				val muxer = MediaMuxer(it.fileDescriptor, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+				try {
+					copySamples(tracks, muxer)
+				} catch (error: IllegalStateException) {
+					throw IOException("Cannot remux HLS stream: ${error.message}", error)
+				} catch (error: IllegalArgumentException) {
+					throw IOException("Cannot remux HLS stream: ${error.message}", error)
+				} finally {
+					muxer.release()
+				}
+			}
+		} finally {
+			tracks.forEach { it.extractor.release() }
+		}
+	}
+
+	/**
+	 * Opens one extractor per chosen track, so every track can be read at its own pace.
+	 */
+	private fun selectTracks(inputs: List<File>): List<TrackSource> {
+		val tracks = ArrayList<TrackSource>()
+		var audioTrack: TrackSource? = null
+		try {
+			collectTracks(inputs, tracks) { track ->
+				audioTrack?.extractor?.release()
+				audioTrack = track
+			}
+		} catch (error: IOException) {
+			tracks.forEach { it.extractor.release() }
+			audioTrack?.extractor?.release()
+			throw error
+		}
+		audioTrack?.let { tracks.add(it) }
+		return tracks
+	}
+
+	private fun collectTracks(
+		inputs: List<File>,
+		videoTracks: MutableList<TrackSource>,
+		onAudioTrack: (TrackSource) -> Unit
+	) {
+		inputs.forEachIndexed { inputIndex, input ->
+			for (trackIndex in 0 until probeTrackCount(input)) {
+				val extractor = MediaExtractor().apply { setDataSource(input.path) }
+				val format = extractor.getTrackFormat(trackIndex)
+				val mimeType = format.getString(MediaFormat.KEY_MIME).orEmpty()
+				val isWanted = when {
+					mimeType.startsWith("video/") -> inputIndex == 0 && videoTracks.isEmpty()
+					mimeType.startsWith("audio/") -> true
+					else -> false
+				}
+				if (!isWanted) {
+					extractor.release()
+					continue
+				}
+
+				extractor.selectTrack(trackIndex)
+				val track = TrackSource(extractor, format, mimeType.startsWith("video/"))
+				if (track.isVideo) videoTracks.add(track) else onAudioTrack(track)
+			}
+		}
+	}
+
+	private fun probeTrackCount(input: File): Int {
+		val extractor = MediaExtractor()
+		return try {
+			extractor.setDataSource(input.path)
+			extractor.trackCount
+		} finally {
+			extractor.release()
+		}
+	}
+
+	/**
+	 * Writes the samples of all tracks in timestamp order, shifting them so the earliest
+	 * sample starts at zero, since HLS timestamps rarely do.
+	 */
+	@SuppressLint("WrongConstant")
+	private fun copySamples(tracks: List<TrackSource>, muxer: MediaMuxer) {
+		tracks.forEach { it.muxerTrackIndex = muxer.addTrack(it.format) }
+		val bufferSize = tracks.maxOf { track ->
+			if (track.format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+				track.format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+			} else DEFAULT_SAMPLE_BUFFER_SIZE
+		}
+		val buffer = ByteBuffer.allocateDirect(bufferSize)
+		val bufferInfo = MediaCodec.BufferInfo()
+		val baseTimeUs = tracks.mapNotNull { track ->
+			track.extractor.sampleTime.takeIf { it >= 0 }
+		}.minOrNull() ?: 0L
+
+		muxer.start()
+		while (true) {
+			val track = tracks.filter { !it.isFinished && it.extractor.sampleTime >= 0 }
+				.minByOrNull { it.extractor.sampleTime } ?: break
+			val extractor = track.extractor
+			val sampleSize = extractor.readSampleData(buffer, 0)
+			if (sampleSize < 0) {
+				track.isFinished = true
+				continue
+			}
+
+			val isKeyFrame = extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
+			bufferInfo.set(
+				0, sampleSize,
+				(extractor.sampleTime - baseTimeUs).coerceAtLeast(0L),
+				if (isKeyFrame) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+			)
+			muxer.writeSampleData(track.muxerTrackIndex, buffer, bufferInfo)
+			extractor.advance()
+		}
+		muxer.stop()
+	}
+
+	/**
+	 * One selected track and the extractor reading it.
+	 */
+	private class TrackSource(
+		val extractor: MediaExtractor,
+		val format: MediaFormat,
+		val isVideo: Boolean
+	) {
+		var muxerTrackIndex = -1
+		var isFinished = false
+	}
+}
@@ -2,11 +2,14 @@ package libs.process;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class for executing asynchronous jobs in the background with optional result delivery
@@ -19,6 +22,9 @@ public final class AsyncJobsUtility<TaskResult> {
     // Handler for posting tasks to the main UI thread
     private static final Handler UI_HANDLER = new Handler(Looper.getMainLooper());
 
+    // Minimum time between two progress deliveries, one frame at 60 Hz
+    private static final long PROGRESS_FRAME_INTERVAL_MS = 16L;
+
     // Core components for async execution
     private BackgroundTask<TaskResult> backgroundTask;
     private ResultTask<TaskResult> resultTask;
@@ -28,6 +34,12 @@ public final class AsyncJobsUtility<TaskResult> {
     private FutureTask<?> backgroundFutureTask;
     private TaskResult result;
 
+    // Progress conflation: only the latest value is delivered, at most once per frame
+    private final AtomicInteger latestProgress = new AtomicInteger();
+    private final AtomicBoolean isProgressPostPending = new AtomicBoolean(false);
+    private volatile long lastProgressDeliveryTime;
+    private final Runnable progressDelivery = this::deliverLatestProgress;
+
     /**
      * Executes a UI task on the main thread.
      *
@@ -68,11 +80,7 @@ public final class AsyncJobsUtility<TaskResult> {
     public void start() {
         if (backgroundTask != null) {
             Runnable task = () -> {
-                result = backgroundTask.runInBackground(progress -> {
-                    if (progressUpdateTask != null) {
-                        UI_HANDLER.post(() -> progressUpdateTask.onProgressUpdate(progress));
-                    }
-                });
+                result = backgroundTask.runInBackground(this::publishProgress);
                 deliverResult();
             };
 
@@ -86,12 +94,48 @@ public final class AsyncJobsUtility<TaskResult> {
         }
     }
 
+    /**
+     * Stores the latest progress and schedules a single delivery for it. Ticks arriving
+     * before that delivery runs only overwrite the value, so a fast background task never
+     * queues more than one progress message on the main looper.
+     *
+     * @param progress The latest progress value.
+     */
+    private void publishProgress(int progress) {
+        if (progressUpdateTask == null) return;
+        latestProgress.set(progress);
+        if (isProgressPostPending.compareAndSet(false, true)) {
+            long nextFrameTime = lastProgressDeliveryTime + PROGRESS_FRAME_INTERVAL_MS;
+            long delay = Math.max(0L, nextFrameTime - SystemClock.uptimeMillis());
+            UI_HANDLER.postDelayed(progressDelivery, delay);
+        }
+    }
+
+    /**
+     * Delivers the most recent progress value on the main thread.
+     */
+    private void deliverLatestProgress() {
+        isProgressPostPending.set(false);
+        lastProgressDeliveryTime = SystemClock.uptimeMillis();
+        if (progressUpdateTask != null) {
+            progressUpdateTask.onProgressUpdate(latestProgress.get());
+        }
+    }
+
     /**
      * Delivers the result of the background task to the result handler on the main thread.
+     * A progress delivery still waiting for its frame is run first, so the last progress
+     * update never arrives after the result.
      */
     private void deliverResult() {
         if (resultTask != null) {
-            UI_HANDLER.post(() -> resultTask.onResult(result));
+            UI_HANDLER.post(() -> {
+                if (isProgressPostPending.get()) {
+                    UI_HANDLER.removeCallbacks(progressDelivery);
+                    deliverLatestProgress();
+                }
+                resultTask.onResult(result);
+            });
         }
     }
 
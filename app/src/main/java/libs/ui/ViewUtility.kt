@@ -57,17 +57,16 @@ import androidx.core.view.doOnLayout
 import androidx.core.view.isVisible
 import com.bumptech.glide.Glide
 import core.bases.GlobalApplication.Companion.APP_INSTANCE
+import core.bases.GlobalApplication.Companion.globalHttpClient
 import libs.files.FileUtility
 import libs.process.ThreadsUtility
 import net.base.R
-import java.io.BufferedInputStream
+import okhttp3.Request
 import java.io.File
-import java.io.IOException
-import java.io.InputStream
 import java.lang.ref.WeakReference
-import java.net.HttpURLConnection
-import java.net.URL
+import java.net.HttpURLConnection.HTTP_OK
 import java.util.Locale
+import java.util.concurrent.TimeUnit.MILLISECONDS
 
 /**
  * Utility object providing commonly used view-related helper functions for Android UI components.
@@ -80,6 +79,9 @@ import java.util.Locale
  */
 object ViewUtility {
 	
+	/** Whole-call timeout for downloading a thumbnail bitmap. */
+	private const val THUMBNAIL_FETCH_TIMEOUT_MS = 10_000L
+	
 	/**
 	 * Retrieves the width of the device screen in pixels.
 	 *
@@ -967,15 +969,12 @@ object ViewUtility {
 		// Execute the image loading in a background thread
 		ThreadsUtility.executeInBackground(codeBlock = {
 			try {
-				// Create a connection to the image URL
-				val url = URL(thumbnailUrl)
-				val connection = url.openConnection() as HttpURLConnection
-				connection.doInput = true
-				connection.connect()
-				
-				// Get the input stream and decode the image into a bitmap
-				val input: InputStream = connection.inputStream
-				val bitmap = decodeStream(input)
+				// Fetch the image through the shared, connection-pooled HTTP client
+				val request = Request.Builder().url(thumbnailUrl).build()
+				val bitmap = globalHttpClient.newCall(request).execute().use { response ->
+					// Get the input stream and decode the image into a bitmap
+					decodeStream(response.body.byteStream())
+				}
 				
 				// Check if the image is in portrait orientation (height > width)
 				val isPortrait = bitmap.height > bitmap.width
@@ -1276,36 +1275,23 @@ object ViewUtility {
 	fun getBitmapFromThumbnailUrl(thumbnailUrl: String?): Bitmap? {
 		if (thumbnailUrl.isNullOrEmpty()) return null
 		
-		var connection: HttpURLConnection? = null
-		var inputStream: InputStream? = null
-		
 		return try {
-			val url = URL(thumbnailUrl)
-			connection = url.openConnection() as? HttpURLConnection
-			connection?.apply {
-				connectTimeout = 5000
-				readTimeout = 5000
-				doInput = true
-				connect()
-			}
+			val request = Request.Builder().url(thumbnailUrl).build()
+			val call = globalHttpClient.newCall(request)
+			call.timeout().timeout(THUMBNAIL_FETCH_TIMEOUT_MS, MILLISECONDS)
 			
-			if (connection?.responseCode == HttpURLConnection.HTTP_OK &&
-				connection.contentType?.startsWith("image/") == true
-			) {
-				inputStream = BufferedInputStream(connection.inputStream)
-				decodeStream(inputStream)
-			} else {
-				null
+			// The response (and with it the pooled connection) is released by use {}
+			call.execute().use { response ->
+				val contentType = response.header("Content-Type")
+				if (response.code == HTTP_OK && contentType?.startsWith("image/") == true) {
+					decodeStream(response.body.byteStream())
+				} else {
+					null
+				}
 			}
 		} catch (error: Exception) {
 			error.printStackTrace()
 			null
-		} finally {
-			try {
-				inputStream?.close()
-			} catch (_: IOException) {
-			}
-			connection?.disconnect()
 		}
 	}
 	
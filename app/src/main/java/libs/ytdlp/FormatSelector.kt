@@ -0,0 +1,213 @@
+package libs.ytdlp
+
+/**
+ * Picks the best format of a [MediaInfo] for a set of [FormatConstraints], locally and
+ * without running yt-dlp again.
+ *
+ * Candidates are the formats that carry both video and audio, and pairs of a video-only
+ * format with the best audio-only format that fits next to it, as sites like YouTube only
+ * offer their higher resolutions that way. Every candidate is checked against the
+ * constraints and the best one is kept in a single pass over the formats, ranked by
+ * resolution, then by the order of [FormatConstraints.videoCodecs], frame rate and
+ * bitrate. A candidate that needs no merging wins a tie, since it downloads as one file.
+ * On a typical list of a few dozen formats, a selection takes microseconds, so the
+ * quality picker can re-select on every change.
+ *
+ * Usage:
+ * ```
+ * val constraints = FormatConstraints(maxHeight = 1080, videoCodecs = listOf(VideoCodec.H264), maxBytes = 500L shl 20)
+ * val selection = FormatSelector.select(MediaInfo.parse(infoJson), constraints)
+ * ```
+ */
+object FormatSelector {
+
+	/** Containers an audio-only format can be merged into without re-muxing to MKV. */
+	private val COMPATIBLE_AUDIO_CONTAINERS = mapOf(
+		"mp4" to setOf("m4a", "mp4"),
+		"webm" to setOf("webm", "weba")
+	)
+
+	/** Container yt-dlp merges into when video and audio containers do not match. */
+	internal const val FALLBACK_MERGE_CONTAINER = "mkv"
+
+	/**
+	 * Returns the best selection for [constraints], or null if no format satisfies them.
+	 *
+	 * @param info The parsed extraction result.
+	 * @param constraints What the user asked for.
+	 */
+	@JvmStatic
+	fun select(info: MediaInfo, constraints: FormatConstraints): FormatSelection? {
+		val formats = info.formats
+		val bestAudio = findBestAudio(formats, constraints, null)
+		if (constraints.isAudioOnly) return bestAudio?.let { FormatSelection(null, it) }
+
+		val audioByContainer = HashMap<String, MediaFormat?>()
+		var bestSelection: FormatSelection? = null
+		for (format in formats) {
+			if (!format.hasVideo || format.hasDrm || !matchesVideo(format, constraints)) continue
+			val candidate = if (format.hasAudio) {
+				if (!matchesAudio(format, constraints)) continue
+				FormatSelection(format, null)
+			} else {
+				val audio = audioByContainer.getOrPut(format.container) {
+					findBestAudio(formats, constraints, format.container)
+				} ?: bestAudio ?: continue
+				FormatSelection(format, audio)
+			}
+			if (!matchesSelection(candidate, constraints)) continue
+			if (bestSelection == null || compare(candidate, bestSelection, constraints) > 0) {
+				bestSelection = candidate
+			}
+		}
+		return bestSelection
+	}
+
+	/**
+	 * Best audio-only format for [constraints], preferring those that merge into
+	 * [videoContainer] without re-muxing when it is given.
+	 */
+	private fun findBestAudio(
+		formats: List<MediaFormat>,
+		constraints: FormatConstraints,
+		videoContainer: String?
+	): MediaFormat? {
+		val compatibleContainers = videoContainer?.let { COMPATIBLE_AUDIO_CONTAINERS[it] }
+		if (videoContainer != null && compatibleContainers == null) return null
+
+		var bestAudio: MediaFormat? = null
+		for (format in formats) {
+			if (format.hasVideo || !format.hasAudio || format.hasDrm) continue
+			if (compatibleContainers != null && format.container !in compatibleContainers) continue
+			if (!matchesAudio(format, constraints)) continue
+			if (constraints.isAudioOnly && !matchesSize(format.estimatedBytes, constraints)) continue
+			val currentBest = bestAudio
+			if (currentBest == null || compareAudio(format, currentBest, constraints) > 0) bestAudio = format
+		}
+		return bestAudio
+	}
+
+	/** Whether [audio] can be merged into the container of [video] as is. */
+	internal fun isMergeCompatible(video: MediaFormat, audio: MediaFormat): Boolean {
+		return audio.container == video.container ||
+			COMPATIBLE_AUDIO_CONTAINERS[video.container]?.contains(audio.container) == true
+	}
+
+	private fun matchesVideo(format: MediaFormat, constraints: FormatConstraints): Boolean {
+		if (format.height > constraints.maxHeight || format.height < constraints.minHeight) return false
+		if (constraints.videoCodecs.isNotEmpty() && format.videoCodec !in constraints.videoCodecs) return false
+		if (constraints.maxFps > 0 && format.fps > constraints.maxFps) return false
+		return constraints.maxBitrateKbps <= 0 || format.bitrateKbps <= constraints.maxBitrateKbps
+	}
+
+	private fun matchesAudio(format: MediaFormat, constraints: FormatConstraints): Boolean {
+		if (constraints.audioCodecs.isNotEmpty() && format.audioCodec !in constraints.audioCodecs) return false
+		if (!constraints.isAudioOnly) return true
+		if (constraints.containers.isNotEmpty() && format.container !in constraints.containers) return false
+		return constraints.maxBitrateKbps <= 0 || format.bitrateKbps <= constraints.maxBitrateKbps
+	}
+
+	private fun matchesSelection(selection: FormatSelection, constraints: FormatConstraints): Boolean {
+		if (constraints.containers.isNotEmpty() && selection.container !in constraints.containers) return false
+		return matchesSize(selection.estimatedBytes, constraints)
+	}
+
+	/** A format of unknown size passes a size limit, since excluding it could leave nothing. */
+	private fun matchesSize(estimatedBytes: Long, constraints: FormatConstraints): Boolean {
+		return constraints.maxBytes <= 0 || estimatedBytes < 0 || estimatedBytes <= constraints.maxBytes
+	}
+
+	private fun compare(first: FormatSelection, second: FormatSelection, constraints: FormatConstraints): Int {
+		val firstVideo = first.video ?: return -1
+		val secondVideo = second.video ?: return 1
+		return compareValuesBy(firstVideo, secondVideo,
+			{ it.height },
+			{ -codecRank(it.videoCodec, constraints.videoCodecs) },
+			{ it.fps },
+			{ it.bitrateKbps }
+		).takeIf { it != 0 }
+			?: compareValues(if (first.isMerged) 0 else 1, if (second.isMerged) 0 else 1).takeIf { it != 0 }
+			?: compareAudio(first.audio ?: firstVideo, second.audio ?: secondVideo, constraints)
+	}
+
+	private fun compareAudio(first: MediaFormat, second: MediaFormat, constraints: FormatConstraints): Int {
+		return compareValuesBy(first, second,
+			{ -codecRank(it.audioCodec, constraints.audioCodecs) },
+			{ it.bitrateKbps }
+		)
+	}
+
+	/** Position of [codec] in the preference list; codecs that are not listed rank last. */
+	private fun <T> codecRank(codec: T, preferredCodecs: List<T>): Int {
+		val index = preferredCodecs.indexOf(codec)
+		return if (index < 0) preferredCodecs.size else index
+	}
+}
+
+/**
+ * What the user asked for in a format. Every constraint is optional; an empty list or a
+ * non-positive limit means "any".
+ *
+ * @property maxHeight Highest acceptable video height, e.g. `1080`.
+ * @property minHeight Lowest acceptable video height.
+ * @property maxFps Highest acceptable frame rate.
+ * @property videoCodecs Acceptable video codecs, most preferred first.
+ * @property audioCodecs Acceptable audio codecs, most preferred first.
+ * @property containers Acceptable containers of the resulting file, e.g. `mp4`.
+ * @property maxBitrateKbps Highest acceptable bitrate of a single format, in kbit/s.
+ * @property maxBytes Highest acceptable estimated size of the resulting file.
+ * @property isAudioOnly Whether only the audio is wanted.
+ */
+data class FormatConstraints(
+	val maxHeight: Int = Int.MAX_VALUE,
+	val minHeight: Int = 0,
+	val maxFps: Double = 0.0,
+	val videoCodecs: List<VideoCodec> = emptyList(),
+	val audioCodecs: List<AudioCodec> = emptyList(),
+	val containers: Set<String> = emptySet(),
+	val maxBitrateKbps: Double = 0.0,
+	val maxBytes: Long = 0L,
+	val isAudioOnly: Boolean = false
+)
+
+/**
+ * Result of [FormatSelector.select]: a single format, or a video-only and an audio-only
+ * format to be merged.
+ *
+ * @property video The video format, which also carries the audio when [audio] is null;
+ *           null for audio-only selections.
+ * @property audio The audio-only format, or null if [video] already has audio.
+ */
+data class FormatSelection(
+	val video: MediaFormat?,
+	val audio: MediaFormat?
+) {
+
+	/** Whether two formats have to be downloaded and merged. */
+	val isMerged: Boolean
+		get() = video != null && audio != null
+
+	/** The format of a selection that downloads as one file. */
+	val singleFormat: MediaFormat?
+		get() = if (isMerged) null else video ?: audio
+
+	/** Container of the resulting file. */
+	val container: String
+		get() {
+			val videoFormat = video ?: return audio?.container.orEmpty()
+			val audioFormat = audio ?: return videoFormat.container
+			return if (FormatSelector.isMergeCompatible(videoFormat, audioFormat)) videoFormat.container
+			else FormatSelector.FALLBACK_MERGE_CONTAINER
+		}
+
+	/** Estimated size of the resulting file, `-1` if unknown. */
+	val estimatedBytes: Long
+		get() {
+			val sizes = listOfNotNull(video, audio).map { it.estimatedBytes }
+			return if (sizes.any { it < 0 }) -1L else sizes.sum()
+		}
+
+	/** The `-f` argument that makes yt-dlp download this selection. */
+	val formatSpec: String
+		get() = listOfNotNull(video, audio).joinToString("+") { it.formatId }
+}
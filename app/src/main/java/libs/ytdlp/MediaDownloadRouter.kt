@@ -0,0 +1,247 @@
+package libs.ytdlp
+
+import com.yausername.youtubedl_android.YoutubeDL
+import com.yausername.youtubedl_android.YoutubeDLException
+import com.yausername.youtubedl_android.YoutubeDLRequest
+import core.bases.GlobalApplication.Companion.APP_INSTANCE
+import core.database.DownloadPriority
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.withContext
+import libs.networks.downloads.BandwidthLimiter
+import libs.networks.downloads.BandwidthLimits
+import libs.networks.downloads.DownloadProgressListener
+import libs.networks.downloads.DownloadQueue
+import libs.networks.downloads.DownloadRequest
+import libs.networks.downloads.hls.HlsDownloader
+import libs.process.LogHelperUtils
+import java.io.File
+import java.io.IOException
+import java.util.UUID
+
+/**
+ * Decides which engine downloads a selected format, so yt-dlp's single-threaded downloader
+ * is only used where nothing else can do the job.
+ *
+ * - A single progressive HTTP(S) file is fetched by the segmented engine over parallel
+ *   ranges, with the headers and cookies yt-dlp provided. The request keeps the page URL
+ *   and format id, so an expired URL is re-extracted.
+ * - A single HLS stream is fetched by [HlsDownloader], again in parallel.
+ * - Everything else, such as a video and an audio format that need merging, DASH
+ *   fragments or protocols we do not speak, is handed to yt-dlp. It is given the cached
+ *   info JSON with `--load-info-json`, so it does not extract the page a second time.
+ *
+ * Every route is queued on the [DownloadQueue], the HLS and yt-dlp ones through the
+ * [DownloadQueue.registerEngine] engines of this router. All downloads are therefore held
+ * to the same concurrency caps, speed limits and disk space admission, report to the
+ * progress hub under their task id, and keep running in the download service after the
+ * screen that started them is gone. The engine name is saved with the task, so a restored
+ * download keeps its route.
+ *
+ * Usage:
+ * ```
+ * val selection = FormatSelector.select(info, constraints) ?: return
+ * val taskId = globalMediaDownloadRouter.download(pageUrl, selection, outputFile).taskId
+ * ```
+ *
+ * @param runtime The runtime yt-dlp downloads wait for.
+ * @param extractor Extractor the info JSON for yt-dlp downloads comes from.
+ * @param downloadQueue Queue every download is added to.
+ * @param hlsDownloader Engine of single HLS streams.
+ * @param bandwidthLimits Optional speed limits; yt-dlp gets the strictest one as it starts.
+ */
+class MediaDownloadRouter(
+	private val runtime: YtdlpRuntime,
+	private val extractor: YtdlpExtractor,
+	private val downloadQueue: DownloadQueue,
+	private val hlsDownloader: HlsDownloader,
+	private val bandwidthLimits: BandwidthLimits? = null
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+
+	companion object {
+		/** yt-dlp protocol names of plain, single-file HTTP downloads. */
+		private val PROGRESSIVE_PROTOCOLS = setOf("http", "https")
+
+		/** yt-dlp protocol names of HLS streams. */
+		private val HLS_PROTOCOLS = setOf("m3u8", "m3u8_native")
+
+		/** Queue engine name of [DownloadRoute.HLS] downloads. */
+		const val HLS_ENGINE = "hls"
+
+		/** Queue engine name of [DownloadRoute.YTDLP] downloads. */
+		const val YTDLP_ENGINE = "ytdlp"
+
+		/**
+		 * Returns the engine [selection] is downloaded with.
+		 *
+		 * @param selection The formats to download.
+		 */
+		@JvmStatic
+		fun routeOf(selection: FormatSelection): DownloadRoute {
+			val format = selection.singleFormat ?: return DownloadRoute.YTDLP
+			return when {
+				format.hasDrm -> DownloadRoute.YTDLP
+				format.protocol in PROGRESSIVE_PROTOCOLS && !format.isFragmented -> DownloadRoute.SEGMENTED
+				format.protocol in HLS_PROTOCOLS -> DownloadRoute.HLS
+				else -> DownloadRoute.YTDLP
+			}
+		}
+	}
+
+	init {
+		downloadQueue.registerEngine(HLS_ENGINE) { request, progressListener ->
+			hlsDownloader.download(request, progressListener)
+		}
+		downloadQueue.registerEngine(YTDLP_ENGINE) { request, progressListener ->
+			downloadWithYtdlp(request, progressListener)
+		}
+	}
+
+	/**
+	 * Queues [selection] of the media at [pageUrl] for download into [destination]. This
+	 * returns once the download is queued; its progress is published by the progress hub
+	 * under the returned task id.
+	 *
+	 * @param pageUrl The page the selection was extracted from.
+	 * @param selection The formats to download.
+	 * @param destination The output file. yt-dlp downloads keep its name but take the
+	 *        extension of the resulting container, see [RoutedDownload.outputFile].
+	 * @param priority Queue priority of the download.
+	 * @return The route taken, the file written, and the task id of the download.
+	 */
+	suspend fun download(
+		pageUrl: String,
+		selection: FormatSelection,
+		destination: File,
+		priority: DownloadPriority = DownloadPriority.NORMAL
+	): RoutedDownload {
+		val route = routeOf(selection)
+		logger.d("Downloading ${selection.formatSpec} of $pageUrl via $route")
+		val singleFormat = selection.singleFormat
+		val (request, outputFile) = when {
+			route == DownloadRoute.SEGMENTED && singleFormat != null -> {
+				createRequest(pageUrl, singleFormat, destination) to destination
+			}
+
+			route == DownloadRoute.HLS && singleFormat != null -> {
+				val request = createRequest(pageUrl, singleFormat, destination)
+				request.copy(checksumTypes = emptySet(), engine = HLS_ENGINE) to destination
+			}
+
+			else -> {
+				// yt-dlp always names the file after the container it ends up with, e.g.
+				// `.mkv` when the merge falls back to it.
+				val baseName = destination.nameWithoutExtension.ifEmpty { destination.name }
+				val outputFile = File(destination.parentFile, "$baseName.${selection.container}")
+				val request = DownloadRequest(
+					url = pageUrl,
+					destination = outputFile,
+					checksumTypes = emptySet(),
+					sourcePageUrl = pageUrl,
+					formatId = selection.formatSpec,
+					engine = YTDLP_ENGINE
+				)
+				request to outputFile
+			}
+		}
+		val taskId = downloadQueue.enqueue(request, priority, selection.estimatedBytes)
+		return RoutedDownload(route, outputFile, taskId)
+	}
+
+	private fun createRequest(pageUrl: String, format: MediaFormat, destination: File): DownloadRequest {
+		return DownloadRequest(
+			url = format.url,
+			destination = destination,
+			headers = format.httpHeaders,
+			sourcePageUrl = pageUrl,
+			formatId = format.formatId
+		)
+	}
+
+	/**
+	 * Lets yt-dlp download and merge a queued selection, reusing the cached extraction.
+	 * Cancelling the caller stops yt-dlp; a later run continues its partial files.
+	 *
+	 * The request carries the page in [DownloadRequest.sourcePageUrl], the `-f` argument in
+	 * [DownloadRequest.formatId] and the container in the extension of the destination, so
+	 * a download restored from its task record runs exactly as queued.
+	 */
+	private suspend fun downloadWithYtdlp(
+		queuedRequest: DownloadRequest,
+		progressListener: DownloadProgressListener
+	): Unit = withContext(Dispatchers.IO) {
+		val pageUrl = queuedRequest.sourcePageUrl
+		val formatSpec = queuedRequest.formatId
+		val destinationUri = queuedRequest.destination.uri
+		val outputPath = destinationUri.path.takeIf { destinationUri.scheme == "file" }
+			?: throw IOException("yt-dlp can only write plain files, not ${queuedRequest.destinationKey}")
+		val outputFile = File(outputPath)
+		val infoJson = extractor.extractInfo(pageUrl)
+		runtime.awaitReady()
+
+		val infoFile = File(APP_INSTANCE.cacheDir, "ytdlp-info-${UUID.randomUUID()}.json")
+		infoFile.writeText(infoJson)
+		val parser = ProgressOutputParser(ProgressEventListener.reportingTo(progressListener))
+		val rateLimit = bandwidthLimits?.rateFor(queuedRequest) ?: BandwidthLimiter.UNLIMITED
+		val request = YoutubeDLRequest(emptyList()).apply {
+			addOption("--load-info-json", infoFile.absolutePath)
+			addOption("-f", formatSpec)
+			// A literal % in the name would start a template field.
+			val outputTemplate = File(outputFile.parentFile, outputFile.nameWithoutExtension.replace("%", "%%") + ".%(ext)s")
+			addOption("-o", outputTemplate.absolutePath)
+			addOption("--newline")
+			addOption("--no-warnings")
+			if (formatSpec.contains('+')) addOption("--merge-output-format", outputFile.extension)
+			if (rateLimit > BandwidthLimiter.UNLIMITED) addOption("--limit-rate", rateLimit.toString())
+		}
+
+		val processId = "download-${UUID.randomUUID()}"
+		try {
+			runInterruptible {
+				YoutubeDL.getInstance().execute(request, processId = processId, callback = { _, _, line ->
+					parser.feedLine(line)
+				})
+			}
+		} catch (error: YoutubeDLException) {
+			throw IOException("yt-dlp could not download $pageUrl: ${error.message}", error)
+		} catch (error: YoutubeDL.CanceledException) {
+			// Our own cancellation surfaces as one; anything else stopped yt-dlp under us.
+			ensureActive()
+			throw IOException("yt-dlp download of $pageUrl was stopped", error)
+		} finally {
+			YoutubeDL.getInstance().destroyProcessById(processId)
+			infoFile.delete()
+		}
+	}
+}
+
+/**
+ * Engines a media download can be routed to.
+ */
+enum class DownloadRoute {
+	/** Our parallel range engine. */
+	SEGMENTED,
+
+	/** Our native HLS engine. */
+	HLS,
+
+	/** yt-dlp's own downloader, for everything else. */
+	YTDLP
+}
+
+/**
+ * Result of [MediaDownloadRouter.download].
+ *
+ * @property route The engine the download was routed to.
+ * @property outputFile The file the download was written to. For [DownloadRoute.YTDLP]
+ *           its extension is that of the resulting container.
+ * @property taskId Queue task id of the download, also its id in the progress hub.
+ */
+data class RoutedDownload(
+	val route: DownloadRoute,
+	val outputFile: File,
+	val taskId: Long
+)
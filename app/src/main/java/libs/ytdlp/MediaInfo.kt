@@ -0,0 +1,240 @@
+package libs.ytdlp
+
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.IOException
+
+/**
+ * Parsed form of the info JSON yt-dlp prints for one media page, reduced to what format
+ * selection and downloading need.
+ *
+ * Parsing happens once per extraction; everything built on top of it, such as
+ * [FormatSelector], works on plain fields without touching JSON again.
+ *
+ * @property id The site's id of the media.
+ * @property title Title of the media.
+ * @property webpageUrl Page URL the info was extracted from.
+ * @property durationSeconds Duration in seconds, `0` if unknown.
+ * @property formats Every format the site offers, in yt-dlp's order, worst first.
+ */
+data class MediaInfo(
+	val id: String,
+	val title: String,
+	val webpageUrl: String,
+	val durationSeconds: Double,
+	val formats: List<MediaFormat>
+) {
+
+	companion object {
+
+		/**
+		 * Parses the output of `yt-dlp --dump-single-json`. Pages that only have one format
+		 * carry it at the top level, and it is returned as the single entry of [formats].
+		 *
+		 * @param infoJson The info JSON.
+		 * @throws IOException If the JSON is malformed.
+		 */
+		@JvmStatic
+		fun parse(infoJson: String): MediaInfo {
+			return try {
+				val json = JSONObject(infoJson)
+				val durationSeconds = json.optDouble("duration", 0.0).takeUnless { it.isNaN() } ?: 0.0
+				val formatsJson = json.optJSONArray("formats")
+				val formats = if (formatsJson != null && formatsJson.length() > 0) {
+					List(formatsJson.length()) { MediaFormat.parse(formatsJson.getJSONObject(it), durationSeconds) }
+				} else {
+					listOf(MediaFormat.parse(json, durationSeconds))
+				}
+				MediaInfo(
+					id = json.optString("id"),
+					title = json.optString("title"),
+					webpageUrl = json.optString("webpage_url"),
+					durationSeconds = durationSeconds,
+					formats = formats.filter { it.url.isNotEmpty() }
+				)
+			} catch (error: JSONException) {
+				throw IOException("Malformed yt-dlp info: ${error.message}", error)
+			}
+		}
+	}
+}
+
+/**
+ * One format of a [MediaInfo].
+ *
+ * @property formatId yt-dlp's id of the format, as used in `-f`.
+ * @property url Media URL, or manifest URL for streaming protocols.
+ * @property protocol yt-dlp's protocol name, e.g. `https`, `m3u8_native`, `http_dash_segments`.
+ * @property container File extension of the format, e.g. `mp4`, `webm`, `m4a`.
+ * @property width Width in pixels, `0` for audio-only or unknown.
+ * @property height Height in pixels, `0` for audio-only or unknown.
+ * @property fps Frame rate, `0` if unknown.
+ * @property videoCodec Video codec family, [VideoCodec.NONE] if the format has no video.
+ * @property audioCodec Audio codec family, [AudioCodec.NONE] if the format has no audio.
+ * @property bitrateKbps Total bitrate in kbit/s, `0` if unknown.
+ * @property estimatedBytes File size as reported, or estimated from bitrate and duration;
+ *           `-1` if neither is known.
+ * @property isFragmented Whether the media comes as fragments rather than one file.
+ * @property hasDrm Whether the format is DRM protected and cannot be downloaded.
+ * @property httpHeaders Headers yt-dlp would send for this format, with its cookies folded
+ *           into a `Cookie` header.
+ */
+data class MediaFormat(
+	val formatId: String,
+	val url: String,
+	val protocol: String,
+	val container: String,
+	val width: Int,
+	val height: Int,
+	val fps: Double,
+	val videoCodec: VideoCodec,
+	val audioCodec: AudioCodec,
+	val bitrateKbps: Double,
+	val estimatedBytes: Long,
+	val isFragmented: Boolean,
+	val hasDrm: Boolean,
+	val httpHeaders: Map<String, String>
+) {
+
+	/** Whether the format carries a video stream. */
+	val hasVideo: Boolean
+		get() = videoCodec != VideoCodec.NONE
+
+	/** Whether the format carries an audio stream. */
+	val hasAudio: Boolean
+		get() = audioCodec != AudioCodec.NONE
+
+	companion object {
+
+		/** Attribute names that can follow a cookie in yt-dlp's `cookies` field. */
+		private val COOKIE_ATTRIBUTES = setOf("domain", "path", "expires", "max-age", "samesite", "secure", "httponly")
+
+		/** Extensions of audio-only files. */
+		private val AUDIO_CONTAINERS = setOf("mp3", "m4a", "aac", "opus", "ogg", "oga", "wav", "flac")
+
+		/**
+		 * Parses one entry of the `formats` array.
+		 *
+		 * @param json The format object.
+		 * @param durationSeconds Duration of the media, used to estimate sizes.
+		 */
+		@JvmStatic
+		fun parse(json: JSONObject, durationSeconds: Double): MediaFormat {
+			val container = json.optString("ext")
+			// Generic extractors often report no codecs at all for a plain media file.
+			val isCodecUnknown = !json.has("vcodec") && !json.has("acodec")
+			val videoCodec = when {
+				!isCodecUnknown -> VideoCodec.fromCodecString(json.optString("vcodec"), json.optInt("height"))
+				container in AUDIO_CONTAINERS -> VideoCodec.NONE
+				else -> VideoCodec.OTHER
+			}
+			val audioCodec = if (isCodecUnknown) AudioCodec.OTHER else AudioCodec.fromCodecString(json.optString("acodec"))
+			val bitrateKbps = json.optPositiveDouble("tbr")
+				?: ((json.optPositiveDouble("vbr") ?: 0.0) + (json.optPositiveDouble("abr") ?: 0.0))
+			val reportedBytes = json.optLong("filesize").takeIf { it > 0 } ?: json.optLong("filesize_approx")
+			val estimatedBytes = when {
+				reportedBytes > 0 -> reportedBytes
+				bitrateKbps > 0 && durationSeconds > 0 -> (bitrateKbps * 125 * durationSeconds).toLong()
+				else -> -1L
+			}
+			val protocol = json.optString("protocol")
+			return MediaFormat(
+				formatId = json.optString("format_id"),
+				url = json.optString("url"),
+				protocol = protocol,
+				container = container,
+				width = json.optInt("width"),
+				height = json.optInt("height"),
+				fps = json.optPositiveDouble("fps") ?: 0.0,
+				videoCodec = videoCodec,
+				audioCodec = audioCodec,
+				bitrateKbps = bitrateKbps,
+				estimatedBytes = estimatedBytes,
+				isFragmented = json.has("fragments") || protocol.contains("m3u8") || protocol.contains("dash"),
+				hasDrm = json.optBoolean("has_drm"),
+				httpHeaders = json.optJSONObject("http_headers").toStringMap()
+					.withCookies(json.optString("cookies").takeUnless { it == "null" }.orEmpty())
+			)
+		}
+
+		/**
+		 * Adds the cookies yt-dlp lists for a format, in `Set-Cookie` attribute form such as
+		 * `a=1; Domain=.site.com; Path=/; b=2; Secure`, as a `Cookie` header.
+		 */
+		private fun Map<String, String>.withCookies(cookies: String): Map<String, String> {
+			if (cookies.isEmpty()) return this
+			val cookiePairs = cookies.split(';')
+				.map { it.trim() }
+				.filter { pair -> pair.contains('=') && pair.substringBefore('=').lowercase() !in COOKIE_ATTRIBUTES }
+			if (cookiePairs.isEmpty()) return this
+			val existingCookies = this["Cookie"]?.let { listOf(it) }.orEmpty()
+			return this + ("Cookie" to (existingCookies + cookiePairs).joinToString("; "))
+		}
+
+		private fun JSONObject.optPositiveDouble(name: String): Double? {
+			return optDouble(name, 0.0).takeIf { !it.isNaN() && it > 0 }
+		}
+
+		private fun JSONObject?.toStringMap(): Map<String, String> {
+			if (this == null) return emptyMap()
+			val names = names() ?: JSONArray()
+			return (0 until names.length()).associate { index ->
+				val name = names.getString(index)
+				name to optString(name)
+			}
+		}
+	}
+}
+
+/**
+ * Video codec families, from yt-dlp's `vcodec` strings such as `avc1.64001F` or `vp09.00.40.08`.
+ */
+enum class VideoCodec {
+	NONE, H264, H265, VP9, AV1, OTHER;
+
+	companion object {
+
+		/**
+		 * @param codec The `vcodec` value.
+		 * @param height The `height` value, telling a video of unknown codec from no video.
+		 */
+		@JvmStatic
+		fun fromCodecString(codec: String, height: Int): VideoCodec {
+			val name = codec.lowercase()
+			return when {
+				name.startsWith("avc") || name.startsWith("h264") -> H264
+				name.startsWith("hev") || name.startsWith("hvc") || name.startsWith("h265") -> H265
+				name.startsWith("vp9") || name.startsWith("vp09") -> VP9
+				name.startsWith("av01") || name.startsWith("av1") -> AV1
+				name == "none" -> NONE
+				name.isEmpty() || name == "null" -> if (height > 0) OTHER else NONE
+				else -> OTHER
+			}
+		}
+	}
+}
+
+/**
+ * Audio codec families, from yt-dlp's `acodec` strings such as `mp4a.40.2` or `opus`.
+ */
+enum class AudioCodec {
+	NONE, AAC, OPUS, VORBIS, MP3, OTHER;
+
+	companion object {
+
+		/** @param codec The `acodec` value. */
+		@JvmStatic
+		fun fromCodecString(codec: String): AudioCodec {
+			val name = codec.lowercase()
+			return when {
+				name.startsWith("mp4a") || name.startsWith("aac") -> AAC
+				name.startsWith("opus") -> OPUS
+				name.startsWith("vorbis") -> VORBIS
+				name.startsWith("mp3") -> MP3
+				name.isEmpty() || name == "none" || name == "null" -> NONE
+				else -> OTHER
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package libs.ytdlp
+
+import com.yausername.youtubedl_android.YoutubeDL
+import com.yausername.youtubedl_android.YoutubeDLException
+import com.yausername.youtubedl_android.YoutubeDLRequest
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.launch
+import libs.process.LogHelperUtils
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.IOException
+import java.util.UUID
+
+/**
+ * Extracts playlists and channels in two passes, so the first entries show up within a
+ * second instead of after one blocking extraction of the whole list.
+ *
+ * [listEntries] runs yt-dlp with `--flat-playlist`, which only reads the list pages, and
+ * emits every entry the moment yt-dlp prints it. The full extraction of an entry is only
+ * done when it is needed: [prefetch] queues the entries that are on screen, [extract]
+ * queues a selected one ahead of everything else and waits for it. At most
+ * [maxParallelExtractions] entries are extracted at a time, most recently requested first,
+ * so the work follows the user's scrolling. Results go through [YtdlpExtractor] and
+ * therefore into the extraction cache, and an entry that is queued or running is never
+ * queued a second time.
+ *
+ * Usage:
+ * ```
+ * globalPlaylistExtractor.listEntries(playlistUrl).collect { entry -> adapter.add(entry) }
+ * globalPlaylistExtractor.prefetch(adapter.visibleEntries())
+ * val infoJson = globalPlaylistExtractor.extract(selectedEntry)
+ * ```
+ *
+ * @param runtime The runtime the flat pass waits for.
+ * @param extractor Extractor used for the full pass of single entries.
+ * @param maxParallelExtractions Upper bound of entries extracted at the same time.
+ */
+class PlaylistExtractor(
+	private val runtime: YtdlpRuntime,
+	private val extractor: YtdlpExtractor,
+	private val maxParallelExtractions: Int = DEFAULT_MAX_PARALLEL_EXTRACTIONS
+) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+	private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+	/** Guards every field below. */
+	private val lock = Any()
+	private val pendingRequests = ArrayList<EntryRequest>()
+	private val requestsByUrl = HashMap<String, EntryRequest>()
+	private var runningCount = 0
+	private var nextPriority = 0L
+
+	companion object {
+		/** Default number of entries extracted at the same time. */
+		const val DEFAULT_MAX_PARALLEL_EXTRACTIONS = 3
+
+		/** Added to the priority of selected entries, so they pass every prefetch. */
+		private const val SELECTED_PRIORITY_BOOST = Long.MAX_VALUE / 2
+	}
+
+	/**
+	 * Streams the entries of a playlist or channel as yt-dlp lists them. Cancelling the
+	 * collection stops yt-dlp.
+	 *
+	 * @param url The playlist or channel URL.
+	 * @return The entries, in list order; fails with an [IOException] if yt-dlp fails.
+	 */
+	fun listEntries(url: String): Flow<PlaylistEntry> = callbackFlow {
+		runtime.awaitReady()
+		val processId = "playlist-${UUID.randomUUID()}"
+		val request = YoutubeDLRequest(url).apply {
+			addOption("--flat-playlist")
+			addOption("--dump-json")
+			addOption("--no-warnings")
+		}
+
+		launch(Dispatchers.IO) {
+			var entryCount = 0
+			try {
+				val response = YoutubeDL.getInstance().execute(request, processId = processId, callback = { _, _, line ->
+					PlaylistEntry.parse(line, entryCount)?.let { entry ->
+						entryCount++
+						trySend(entry)
+					}
+				})
+				// Builds that only report progress lines to the callback still print every
+				// entry to stdout, so nothing is lost, only streamed later.
+				if (entryCount == 0) {
+					response.out.lineSequence().forEach { line ->
+						PlaylistEntry.parse(line, entryCount)?.let { entry ->
+							entryCount++
+							trySend(entry)
+						}
+					}
+				}
+				logger.d("Listed $entryCount entries of $url")
+				close()
+			} catch (error: YoutubeDLException) {
+				close(IOException("Could not list $url: ${error.message}", error))
+			} catch (error: YoutubeDL.CanceledException) {
+				close()
+			} catch (error: InterruptedException) {
+				close(IOException("Listing $url was interrupted", error))
+			}
+		}
+		awaitClose { YoutubeDL.getInstance().destroyProcessById(processId) }
+	}.buffer(Channel.UNLIMITED)
+
+	/**
+	 * Queues the full extraction of entries that became visible. Entries passed later, and
+	 * in later calls, are extracted first; entries already queued move up.
+	 *
+	 * @param entries The visible entries, in the order they should be extracted.
+	 */
+	fun prefetch(entries: List<PlaylistEntry>) {
+		synchronized(lock) {
+			entries.asReversed().forEach { enqueue(it.url, nextPriority++) }
+		}
+		dispatch()
+	}
+
+	/**
+	 * Extracts a selected entry ahead of every prefetched one and returns its info JSON.
+	 *
+	 * @param entry The entry the user selected.
+	 * @throws IOException If yt-dlp cannot extract the entry.
+	 */
+	suspend fun extract(entry: PlaylistEntry): String {
+		val request = synchronized(lock) { enqueue(entry.url, SELECTED_PRIORITY_BOOST + nextPriority++) }
+		dispatch()
+		return request.result.await()
+	}
+
+	/** Drops every queued extraction that has not started, e.g. when the list is closed. */
+	fun cancelPending() {
+		synchronized(lock) {
+			pendingRequests.forEach { request ->
+				requestsByUrl.remove(request.url)
+				request.result.cancel()
+			}
+			pendingRequests.clear()
+		}
+	}
+
+	/**
+	 * Queues [url] or raises the priority of its queued request; must be called while
+	 * holding [lock].
+	 */
+	private fun enqueue(url: String, priority: Long): EntryRequest {
+		val existingRequest = requestsByUrl[url]
+		if (existingRequest != null) {
+			existingRequest.priority = maxOf(existingRequest.priority, priority)
+			return existingRequest
+		}
+		val request = EntryRequest(url, priority)
+		requestsByUrl[url] = request
+		pendingRequests.add(request)
+		return request
+	}
+
+	/** Starts the highest-priority requests until [maxParallelExtractions] are running. */
+	private fun dispatch() {
+		synchronized(lock) {
+			while (runningCount < maxParallelExtractions && pendingRequests.isNotEmpty()) {
+				val request = pendingRequests.maxBy { it.priority }
+				pendingRequests.remove(request)
+				runningCount++
+				scope.launch { run(request) }
+			}
+		}
+	}
+
+	private suspend fun run(request: EntryRequest) {
+		try {
+			request.result.complete(extractor.extractInfo(request.url))
+		} catch (error: CancellationException) {
+			request.result.cancel(error)
+			throw error
+		} catch (error: Exception) {
+			// A malformed answer or a library failure must not leave extract() waiting.
+			logger.e("Could not extract ${request.url}", error)
+			request.result.completeExceptionally(error)
+		} finally {
+			synchronized(lock) {
+				runningCount--
+				requestsByUrl.remove(request.url)
+			}
+			dispatch()
+		}
+	}
+
+	/**
+	 * One queued or running full extraction.
+	 */
+	private class EntryRequest(val url: String, var priority: Long) {
+		val result = CompletableDeferred<String>()
+	}
+}
+
+/**
+ * One entry of a flat playlist listing.
+ *
+ * @property index Position of the entry in the list, starting at `0`.
+ * @property id The site's id of the entry.
+ * @property url Page URL of the entry, as passed to the full extraction.
+ * @property title Title of the entry, empty if the site did not list one.
+ * @property durationSeconds Duration in seconds, `-1` if unknown.
+ * @property thumbnailUrl URL of a thumbnail, empty if none was listed.
+ */
+data class PlaylistEntry(
+	val index: Int,
+	val id: String,
+	val url: String,
+	val title: String,
+	val durationSeconds: Long,
+	val thumbnailUrl: String
+) {
+
+	companion object {
+
+		/**
+		 * Parses one line printed by `--flat-playlist --dump-json`.
+		 *
+		 * @param line The output line.
+		 * @param index Position the entry gets in the list.
+		 * @return The entry, or null if the line is not an entry with a usable URL.
+		 */
+		@JvmStatic
+		fun parse(line: String, index: Int): PlaylistEntry? {
+			if (!line.startsWith("{")) return null
+			return try {
+				val json = JSONObject(line)
+				val url = json.optString("url").takeIf { it.startsWith("http") }
+					?: json.optString("webpage_url").takeIf { it.startsWith("http") }
+					?: return null
+				val thumbnails = json.optJSONArray("thumbnails")
+				val thumbnailUrl = json.optString("thumbnail").ifEmpty {
+					thumbnails?.optJSONObject(thumbnails.length() - 1)?.optString("url").orEmpty()
+				}
+				PlaylistEntry(
+					index = index,
+					id = json.optString("id"),
+					url = url,
+					title = json.optString("title"),
+					durationSeconds = json.optDouble("duration", -1.0).toLong(),
+					thumbnailUrl = thumbnailUrl
+				)
+			} catch (error: JSONException) {
+				null
+			}
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package libs.ytdlp
+
+import libs.networks.downloads.DownloadProgressHub
+import libs.networks.downloads.DownloadProgressListener
+
+/**
+ * Streaming parser that turns the text output of yt-dlp and ffmpeg into [ProgressEvent]s.
+ *
+ * Output is fed as bytes, or as the lines a process wrapper already produced, and collected
+ * into a fixed line buffer. Each complete line is parsed in place, byte by byte: numbers,
+ * sizes and times are read without building a String, and the reported event is one
+ * reused [ProgressEvent] instance. A busy download therefore reports progress without
+ * allocating anything per line. Both `\n` and `\r` end a line, as ffmpeg and yt-dlp
+ * without `--newline` redraw their progress with carriage returns.
+ *
+ * Recognized lines:
+ * ```
+ * [download]  45.3% of ~ 12.34MiB at  1.23MiB/s ETA 00:07 (frag 12/40)
+ * [download] Destination: video.f137.mp4
+ * [Merger] Merging formats into "video.mkv"
+ * frame= 120 fps= 30 size=    1024kB time=00:00:05.12 bitrate=1637.9kbits/s speed=1.2x
+ * out_time_us=5120000            (from ffmpeg -progress)
+ * ```
+ *
+ * Not thread-safe; use one parser per process output.
+ *
+ * @param listener Receives the events, on the thread that feeds the parser. It must copy
+ *        what it needs, as the event is reused.
+ */
+class ProgressOutputParser(private val listener: ProgressEventListener) {
+
+	private val line = ByteArray(MAX_LINE_LENGTH)
+	private var lineLength = 0
+	private val event = ProgressEvent()
+
+	/** Length of the media being processed by ffmpeg, to turn its `time` into a percentage. */
+	var durationSeconds = 0.0
+
+	companion object {
+		/** Progress lines are short; anything beyond this is not a progress line anyway. */
+		private const val MAX_LINE_LENGTH = 512
+
+		private val DOWNLOAD_TAG = "[download]".toByteArray()
+		private val DESTINATION = "Destination:".toByteArray()
+		private val OF = "of".toByteArray()
+		private val AT = "at".toByteArray()
+		private val ETA = "ETA".toByteArray()
+		private val FRAGMENT = "(frag".toByteArray()
+		private val SIZE_KEY = "size".toByteArray()
+		private val TOTAL_SIZE_KEY = "total_size".toByteArray()
+		private val TIME_KEY = "time".toByteArray()
+		private val OUT_TIME_US_KEY = "out_time_us".toByteArray()
+		private val SPEED_KEY = "speed".toByteArray()
+
+		/** Bracketed tags of yt-dlp's post-processors. */
+		private val POST_PROCESSOR_TAGS = listOf(
+			"[Merger]".toByteArray() to PostProcessor.MERGE,
+			"[ExtractAudio]".toByteArray() to PostProcessor.EXTRACT_AUDIO,
+			"[VideoConvertor]".toByteArray() to PostProcessor.CONVERT,
+			"[VideoRemuxer]".toByteArray() to PostProcessor.CONVERT,
+			"[FixupM3u8]".toByteArray() to PostProcessor.FIXUP,
+			"[FixupM4a]".toByteArray() to PostProcessor.FIXUP,
+			"[FixupStretched]".toByteArray() to PostProcessor.FIXUP,
+			"[EmbedThumbnail]".toByteArray() to PostProcessor.EMBED,
+			"[EmbedSubtitle]".toByteArray() to PostProcessor.EMBED,
+			"[Metadata]".toByteArray() to PostProcessor.METADATA
+		)
+	}
+
+	/**
+	 * Feeds raw process output.
+	 *
+	 * @param bytes Output bytes, in any chunking.
+	 * @param offset Index of the first byte to feed.
+	 * @param length Number of bytes to feed.
+	 */
+	fun feed(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset) {
+		for (index in offset until offset + length) append(bytes[index])
+	}
+
+	/**
+	 * Feeds one line a process wrapper has already split off, without copying it into a
+	 * String of its own. Non-ASCII characters never matter for progress and are replaced.
+	 *
+	 * @param text The line, with or without its line break.
+	 */
+	fun feedLine(text: CharSequence) {
+		for (index in 0 until text.length) {
+			val character = text[index]
+			append(if (character.code < 0x80) character.code.toByte() else '?'.code.toByte())
+		}
+		endLine()
+	}
+
+	private fun append(byte: Byte) {
+		if (byte == '\n'.code.toByte() || byte == '\r'.code.toByte()) {
+			endLine()
+		} else if (lineLength < MAX_LINE_LENGTH) {
+			line[lineLength++] = byte
+		}
+	}
+
+	private fun endLine() {
+		if (lineLength > 0) parseLine()
+		lineLength = 0
+	}
+
+	private fun parseLine() {
+		when {
+			startsWith(DOWNLOAD_TAG) -> parseDownloadLine(DOWNLOAD_TAG.size)
+			line[0] == '['.code.toByte() -> parsePostProcessorLine()
+			else -> parseFfmpegLine()
+		}
+	}
+
+	/** Parses the tokens of a `[download]` line that follow the tag. */
+	private fun parseDownloadLine(start: Int) {
+		var position = skipSpaces(start)
+		if (matchesAt(position, DESTINATION)) {
+			event.reset(ProgressStage.PART_STARTED)
+			listener.onProgressEvent(event)
+			return
+		}
+
+		event.reset(ProgressStage.DOWNLOADING)
+		var isProgressLine = false
+		while (true) {
+			position = skipSpaces(position)
+			if (position >= lineLength) break
+			val tokenEnd = findTokenEnd(position)
+			when {
+				line[tokenEnd - 1] == '%'.code.toByte() -> {
+					event.percent = parseNumber(position, tokenEnd - 1)
+					isProgressLine = event.percent >= 0
+				}
+
+				isToken(position, tokenEnd, OF) -> {
+					position = skipSpaces(tokenEnd)
+					if (position < lineLength && line[position] == '~'.code.toByte()) position = skipSpaces(position + 1)
+					val sizeEnd = findTokenEnd(position)
+					event.totalBytes = parseSize(position, sizeEnd)
+					position = sizeEnd
+					continue
+				}
+
+				isToken(position, tokenEnd, AT) -> {
+					position = skipSpaces(tokenEnd)
+					val speedEnd = findTokenEnd(position)
+					event.bytesPerSecond = parseSize(position, speedEnd)
+					position = speedEnd
+					continue
+				}
+
+				isToken(position, tokenEnd, ETA) -> {
+					position = skipSpaces(tokenEnd)
+					val etaEnd = findTokenEnd(position)
+					event.etaSeconds = parseTime(position, etaEnd).toLong()
+					position = etaEnd
+					continue
+				}
+
+				isToken(position, tokenEnd, FRAGMENT) -> {
+					position = skipSpaces(tokenEnd)
+					val fragmentEnd = findTokenEnd(position)
+					parseFragment(position, fragmentEnd)
+					position = fragmentEnd
+					continue
+				}
+			}
+			position = tokenEnd
+		}
+
+		if (!isProgressLine) return
+		if (event.totalBytes > 0) event.downloadedBytes = (event.totalBytes * event.percent / 100.0).toLong()
+		listener.onProgressEvent(event)
+	}
+
+	private fun parsePostProcessorLine() {
+		val postProcessor = POST_PROCESSOR_TAGS.firstOrNull { (tag, _) -> startsWith(tag) }?.second ?: return
+		event.reset(ProgressStage.POST_PROCESSING)
+		event.postProcessor = postProcessor
+		listener.onProgressEvent(event)
+	}
+
+	/**
+	 * Parses the `key=value` pairs of an ffmpeg stats line, or one line of its `-progress`
+	 * output. Values may be padded with spaces after the `=`.
+	 */
+	private fun parseFfmpegLine() {
+		event.reset(ProgressStage.POST_PROCESSING)
+		event.postProcessor = PostProcessor.FFMPEG
+		var timeSeconds = -1.0
+		var position = 0
+		while (position < lineLength) {
+			val keyStart = skipSpaces(position)
+			var keyEnd = keyStart
+			while (keyEnd < lineLength && line[keyEnd] != '='.code.toByte() && line[keyEnd] != ' '.code.toByte()) keyEnd++
+			if (keyEnd >= lineLength || line[keyEnd] != '='.code.toByte()) {
+				position = findTokenEnd(keyEnd)
+				continue
+			}
+			val valueStart = skipSpaces(keyEnd + 1)
+			val valueEnd = findTokenEnd(valueStart)
+			when {
+				isToken(keyStart, keyEnd, SIZE_KEY) -> event.downloadedBytes = parseSize(valueStart, valueEnd)
+				isToken(keyStart, keyEnd, TOTAL_SIZE_KEY) -> event.downloadedBytes = parseSize(valueStart, valueEnd)
+				isToken(keyStart, keyEnd, TIME_KEY) -> timeSeconds = parseTime(valueStart, valueEnd)
+				isToken(keyStart, keyEnd, OUT_TIME_US_KEY) -> timeSeconds = parseNumber(valueStart, valueEnd) / 1_000_000.0
+				isToken(keyStart, keyEnd, SPEED_KEY) -> event.speedFactor = parseNumber(valueStart, valueEnd)
+			}
+			position = valueEnd
+		}
+
+		if (timeSeconds < 0) return
+		if (durationSeconds > 0) event.percent = (timeSeconds * 100.0 / durationSeconds).coerceIn(0.0, 100.0)
+		if (event.speedFactor > 0 && durationSeconds > timeSeconds) {
+			event.etaSeconds = ((durationSeconds - timeSeconds) / event.speedFactor).toLong()
+		}
+		listener.onProgressEvent(event)
+	}
+
+	/** Parses `X/Y)` of a `(frag X/Y)` group. */
+	private fun parseFragment(start: Int, end: Int) {
+		var slash = start
+		while (slash < end && line[slash] != '/'.code.toByte()) slash++
+		if (slash >= end) return
+		var numberEnd = end
+		if (line[numberEnd - 1] == ')'.code.toByte()) numberEnd--
+		event.fragmentIndex = parseNumber(start, slash).toInt()
+		event.fragmentCount = parseNumber(slash + 1, numberEnd).toInt()
+	}
+
+	/**
+	 * Parses a size such as `12.34MiB`, `1024kB` or `1.23MiB/s` into bytes, counting every
+	 * unit in powers of 1024 like both tools do. Returns `-1` if there is no number.
+	 */
+	private fun parseSize(start: Int, end: Int): Long {
+		var numberEnd = start
+		while (numberEnd < end && isNumberByte(line[numberEnd])) numberEnd++
+		val value = parseNumber(start, numberEnd)
+		if (value < 0) return -1L
+		val multiplier = if (numberEnd < end) {
+			when (line[numberEnd].toInt().toChar().uppercaseChar()) {
+				'K' -> 1024.0
+				'M' -> 1024.0 * 1024
+				'G' -> 1024.0 * 1024 * 1024
+				'T' -> 1024.0 * 1024 * 1024 * 1024
+				else -> 1.0
+			}
+		} else 1.0
+		return (value * multiplier).toLong()
+	}
+
+	/** Parses `SS`, `MM:SS` or `HH:MM:SS.ss` into seconds; `-1` if it is not a time. */
+	private fun parseTime(start: Int, end: Int): Double {
+		var seconds = 0.0
+		var partStart = start
+		var position = start
+		while (position <= end) {
+			if (position == end || line[position] == ':'.code.toByte()) {
+				val part = parseNumber(partStart, position)
+				if (part < 0) return -1.0
+				seconds = seconds * 60 + part
+				partStart = position + 1
+			}
+			position++
+		}
+		return seconds
+	}
+
+	/** Parses an unsigned decimal number; `-1` if the range holds none. */
+	private fun parseNumber(start: Int, end: Int): Double {
+		var value = 0.0
+		var fractionScale = 0.0
+		var hasDigits = false
+		for (position in start until end) {
+			val byte = line[position]
+			when {
+				byte >= '0'.code.toByte() && byte <= '9'.code.toByte() -> {
+					val digit = byte - '0'.code.toByte()
+					if (fractionScale == 0.0) {
+						value = value * 10 + digit
+					} else {
+						value += digit * fractionScale
+						fractionScale /= 10
+					}
+					hasDigits = true
+				}
+
+				byte == '.'.code.toByte() && fractionScale == 0.0 -> fractionScale = 0.1
+				else -> break
+			}
+		}
+		return if (hasDigits) value else -1.0
+	}
+
+	private fun isNumberByte(byte: Byte): Boolean {
+		return (byte >= '0'.code.toByte() && byte <= '9'.code.toByte()) || byte == '.'.code.toByte()
+	}
+
+	private fun skipSpaces(start: Int): Int {
+		var position = start
+		while (position < lineLength && line[position] == ' '.code.toByte()) position++
+		return position
+	}
+
+	private fun findTokenEnd(start: Int): Int {
+		var position = start
+		while (position < lineLength && line[position] != ' '.code.toByte()) position++
+		return position
+	}
+
+	private fun startsWith(prefix: ByteArray): Boolean = matchesAt(0, prefix)
+
+	private fun matchesAt(start: Int, expected: ByteArray): Boolean {
+		if (start + expected.size > lineLength) return false
+		for (index in expected.indices) {
+			if (line[start + index] != expected[index]) return false
+		}
+		return true
+	}
+
+	private fun isToken(start: Int, end: Int, expected: ByteArray): Boolean {
+		return end - start == expected.size && matchesAt(start, expected)
+	}
+}
+
+/**
+ * Stage of a yt-dlp run as reported by [ProgressOutputParser].
+ */
+enum class ProgressStage {
+	/** Bytes of a format are being downloaded. */
+	DOWNLOADING,
+
+	/** yt-dlp started downloading the next format, e.g. the audio after the video. */
+	PART_STARTED,
+
+	/** A post-processor, such as merging or converting, is running. */
+	POST_PROCESSING
+}
+
+/**
+ * Post-processors yt-dlp runs after downloading.
+ */
+enum class PostProcessor { NONE, MERGE, EXTRACT_AUDIO, CONVERT, FIXUP, EMBED, METADATA, FFMPEG }
+
+/**
+ * One progress report. Instances are reused by the parser; values that a line did not
+ * carry are `-1`.
+ */
+class ProgressEvent {
+	var stage = ProgressStage.DOWNLOADING
+	var postProcessor = PostProcessor.NONE
+	var percent = -1.0
+	var downloadedBytes = -1L
+	var totalBytes = -1L
+	var bytesPerSecond = -1L
+	var etaSeconds = -1L
+	var fragmentIndex = -1
+	var fragmentCount = -1
+
+	/** ffmpeg's processing speed relative to real time, `-1` if not reported. */
+	var speedFactor = -1.0
+
+	internal fun reset(stage: ProgressStage) {
+		this.stage = stage
+		postProcessor = PostProcessor.NONE
+		percent = -1.0
+		downloadedBytes = -1L
+		totalBytes = -1L
+		bytesPerSecond = -1L
+		etaSeconds = -1L
+		fragmentIndex = -1
+		fragmentCount = -1
+		speedFactor = -1.0
+	}
+}
+
+/**
+ * Receiver of [ProgressEvent]s.
+ */
+fun interface ProgressEventListener {
+
+	/** @param event The event; only valid during this call. */
+	fun onProgressEvent(event: ProgressEvent)
+
+	companion object {
+
+		/**
+		 * Forwards download progress to a [DownloadProgressListener], normally the one
+		 * [DownloadProgressHub.listenerFor] returns for the queued task, so yt-dlp runs show
+		 * up in the hub and the download notification like every other download. The bytes
+		 * of earlier parts of a multi-format download are added, so the reported count keeps
+		 * growing from the video into the audio. Once yt-dlp post-processes the file, the
+		 * download is reported as complete, so a long merge does not look stuck at the last
+		 * percent of the audio.
+		 *
+		 * @param progressListener The listener to report to.
+		 */
+		@JvmStatic
+		fun reportingTo(progressListener: DownloadProgressListener): ProgressEventListener {
+			var completedPartBytes = 0L
+			var currentPartBytes = 0L
+			var isDownloadComplete = false
+			return ProgressEventListener { event ->
+				when (event.stage) {
+					ProgressStage.PART_STARTED -> {
+						completedPartBytes += currentPartBytes
+						currentPartBytes = 0L
+					}
+
+					ProgressStage.DOWNLOADING -> {
+						if (event.downloadedBytes < 0) return@ProgressEventListener
+						currentPartBytes = event.downloadedBytes
+						val totalBytes = if (event.totalBytes > 0) completedPartBytes + event.totalBytes else -1L
+						progressListener.onProgress(completedPartBytes + currentPartBytes, totalBytes)
+					}
+
+					ProgressStage.POST_PROCESSING -> {
+						if (isDownloadComplete) return@ProgressEventListener
+						isDownloadComplete = true
+						val downloadedBytes = completedPartBytes + currentPartBytes
+						if (downloadedBytes > 0) progressListener.onProgress(downloadedBytes, downloadedBytes)
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package libs.ytdlp
+
+import android.content.Context
+import com.yausername.youtubedl_android.YoutubeDL
+import com.yausername.youtubedl_android.YoutubeDLException
+import com.yausername.youtubedl_android.YoutubeDLRequest
+import core.caches.ExtractionCache
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.IOException
+
+/**
+ * Thin wrapper around the embedded yt-dlp that turns page URLs into info JSON, going
+ * through the [ExtractionCache] first.
+ *
+ * A cache hit costs one file read instead of a Python run of several seconds. Results are
+ * cached per extractor version, which combines the app's version code (the bundled yt-dlp)
+ * with the version yt-dlp reports after an in-app update, so updating the extractor never
+ * serves results of the old one.
+ *
+ * Usage:
+ * ```
+ * val infoJson = globalYtdlpExtractor.extractInfo(pageUrl)
+ * ```
+ *
+ * @param context Any context; only the application context is kept.
+ * @param runtime The runtime extractions wait for before running yt-dlp.
+ * @param extractionCache Cache the results are read from and written to.
+ */
+class YtdlpExtractor(
+	context: Context,
+	private val runtime: YtdlpRuntime,
+	private val extractionCache: ExtractionCache
+) {
+
+	private val appContext = context.applicationContext
+
+	private val appVersionCode: Long by lazy {
+		appContext.packageManager.getPackageInfo(appContext.packageName, 0).longVersionCode
+	}
+
+	/** Version the cached results are tied to. */
+	val extractorVersion: String
+		get() = "$appVersionCode:${YoutubeDL.getInstance().version(appContext).orEmpty()}"
+
+	/**
+	 * Returns the info JSON of a single media page, from the cache when possible.
+	 *
+	 * @param url The page URL.
+	 * @param isCacheBypassed Extracts again even if a cached result exists, e.g. after its
+	 *        media URLs were rejected; the new result replaces the cached one.
+	 * @return The info JSON as printed by `yt-dlp --dump-single-json`.
+	 * @throws IOException If yt-dlp cannot extract the page.
+	 */
+	suspend fun extractInfo(url: String, isCacheBypassed: Boolean = false): String {
+		return withContext(Dispatchers.IO) {
+			val version = extractorVersion
+			if (!isCacheBypassed) extractionCache.get(url, version)?.let { return@withContext it }
+
+			val request = YoutubeDLRequest(url).apply {
+				addOption("--dump-single-json")
+				addOption("--no-playlist")
+				addOption("--no-warnings")
+			}
+			val infoJson = execute(request).trim()
+			if (infoJson.isEmpty()) throw IOException("yt-dlp returned no info for $url")
+			extractionCache.put(url, version, infoJson)
+			infoJson
+		}
+	}
+
+	/**
+	 * Runs [request] once the runtime is ready and returns its standard output.
+	 *
+	 * @throws IOException If yt-dlp fails or the runtime cannot be initialized.
+	 */
+	private suspend fun execute(request: YoutubeDLRequest): String {
+		runtime.awaitReady()
+		return try {
+			YoutubeDL.getInstance().execute(request).out
+		} catch (error: YoutubeDLException) {
+			throw IOException("yt-dlp failed: ${error.message}", error)
+		} catch (error: InterruptedException) {
+			throw IOException("yt-dlp was interrupted", error)
+		}
+	}
+}
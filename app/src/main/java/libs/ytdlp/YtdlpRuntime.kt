@@ -0,0 +1,124 @@
+package libs.ytdlp
+
+import android.content.Context
+import android.os.SystemClock
+import com.yausername.ffmpeg.FFmpeg
+import com.yausername.youtubedl_android.YoutubeDL
+import com.yausername.youtubedl_android.YoutubeDLException
+import com.yausername.youtubedl_android.YoutubeDLRequest
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import libs.process.LogHelperUtils
+import java.io.IOException
+
+/**
+ * Process-wide owner of the embedded yt-dlp and ffmpeg runtimes.
+ *
+ * The first use of yt-dlp unpacks the Python runtime, yt-dlp and the ffmpeg binaries, and
+ * its first run reads hundreds of modules from storage. [warmUp] does both ahead of time,
+ * so the first extraction the user waits for is as fast as every later one. yt-dlp runs as
+ * a child process, so what stays warm across activities is the unpacked runtime and the
+ * module files in the page cache, for as long as the process lives.
+ *
+ * Callers never initialize yt-dlp themselves; they suspend in [awaitReady], which also
+ * starts the warm-up if nobody has yet.
+ *
+ * Usage:
+ * ```
+ * globalYtdlpRuntime.awaitReady()
+ * YoutubeDL.getInstance().execute(request)
+ * ```
+ *
+ * @param context Any context; only the application context is kept.
+ */
+class YtdlpRuntime(context: Context) {
+
+	private val logger = LogHelperUtils.from(javaClass)
+	private val appContext = context.applicationContext
+
+	/** Guards [isWarmUpStarted] and [readiness]. */
+	private val lock = Any()
+	private var isWarmUpStarted = false
+
+	/** Outcome of the current warm-up attempt; replaced when an attempt fails. */
+	@Volatile
+	private var readiness = CompletableDeferred<Unit>()
+
+	/** Whether the runtime is initialized and warm; false while warming up or after a failure. */
+	val isReady: Boolean
+		get() = readiness.let { it.isCompleted && it.getCompletionExceptionOrNull() == null }
+
+	/**
+	 * Initializes and warms the runtime on the calling thread; does nothing if another
+	 * thread already started. Meant for a background startup lane.
+	 *
+	 * Every failure completes the readiness of this attempt, so callers of [awaitReady]
+	 * get an error instead of waiting forever, and is not rethrown, so it cannot take down
+	 * the startup lane. Only a cancellation is passed on. A failed attempt is forgotten, so
+	 * the next [awaitReady] tries again.
+	 */
+	fun warmUp() {
+		startWarmUp()
+	}
+
+	/**
+	 * Suspends until the runtime is ready, starting the warm-up if it has not started yet or
+	 * the last attempt failed.
+	 *
+	 * @throws IOException If the runtime could not be initialized.
+	 */
+	suspend fun awaitReady() {
+		val attempt = synchronized(lock) { if (isWarmUpStarted) readiness else null }
+			?: withContext(Dispatchers.IO) { startWarmUp() }
+		attempt.await()
+	}
+
+	/**
+	 * Runs a warm-up attempt unless one is running or succeeded.
+	 *
+	 * @return The readiness of the attempt the caller should wait for.
+	 */
+	private fun startWarmUp(): CompletableDeferred<Unit> {
+		val attempt = synchronized(lock) {
+			if (isWarmUpStarted) return readiness
+			isWarmUpStarted = true
+			readiness
+		}
+		val startTime = SystemClock.elapsedRealtime()
+		try {
+			YoutubeDL.getInstance().init(appContext)
+			FFmpeg.getInstance().init(appContext)
+			// A no-op run loads the interpreter and yt-dlp's modules once.
+			YoutubeDL.getInstance().execute(YoutubeDLRequest(emptyList()).addOption("--version"))
+			logger.d("yt-dlp warmed up in ${SystemClock.elapsedRealtime() - startTime} ms")
+			attempt.complete(Unit)
+		} catch (error: YoutubeDLException) {
+			logger.e("Could not initialize yt-dlp", error)
+			fail(attempt, IOException("yt-dlp is unavailable", error))
+		} catch (error: InterruptedException) {
+			fail(attempt, IOException("yt-dlp warm-up was interrupted", error))
+		} catch (error: Throwable) {
+			if (error is CancellationException) {
+				fail(attempt, IOException("yt-dlp warm-up was cancelled", error))
+				throw error
+			}
+			logger.e("Could not initialize yt-dlp", error)
+			fail(attempt, IOException("yt-dlp is unavailable", error))
+		}
+		return attempt
+	}
+
+	/**
+	 * Fails the waiters of [attempt] and lets the next caller start over, so one transient
+	 * failure, such as low storage while unpacking, does not disable yt-dlp for good.
+	 */
+	private fun fail(attempt: CompletableDeferred<Unit>, error: IOException) {
+		synchronized(lock) {
+			readiness = CompletableDeferred()
+			isWarmUpStarted = false
+		}
+		attempt.completeExceptionally(error)
+	}
+}
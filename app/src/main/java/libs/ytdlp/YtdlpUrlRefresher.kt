@@ -0,0 +1,23 @@
+package libs.ytdlp
+
+import libs.networks.downloads.DownloadRequest
+import libs.networks.downloads.MediaUrlRefresher
+
+/**
+ * [MediaUrlRefresher] that extracts the page of an expired download again with yt-dlp and
+ * picks the same format from the fresh result.
+ *
+ * The cached extraction is bypassed, since it holds the URL that just expired, and is
+ * replaced by the new one. Headers and cookies are taken from the new format as well, as
+ * sites often rotate them together with the URL.
+ *
+ * @param extractor Extractor used to re-extract the page.
+ */
+class YtdlpUrlRefresher(private val extractor: YtdlpExtractor) : MediaUrlRefresher {
+
+	override suspend fun refresh(request: DownloadRequest): DownloadRequest? {
+		val infoJson = extractor.extractInfo(request.sourcePageUrl, isCacheBypassed = true)
+		val format = MediaInfo.parse(infoJson).formats.firstOrNull { it.formatId == request.formatId } ?: return null
+		return request.copy(url = format.url, headers = request.headers + format.httpHeaders)
+	}
+}